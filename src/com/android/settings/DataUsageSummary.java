@@ -130,9 +130,11 @@ import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
 import com.android.settings.net.DataUsageMeteredSettings;
 import com.android.settings.net.NetworkPolicyEditor;
+import com.android.settings.net.NetworkStatsPoller;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
 import com.android.settings.net.UidDetailProvider;
+import com.android.settings.net.UidUsageAggregator;
 import com.android.settings.search.BaseSearchIndexProvider;
 import com.android.settings.search.Indexable;
 import com.android.settings.search.SearchIndexableRaw;
@@ -143,6 +145,7 @@ import com.google.android.collect.Lists;
 import libcore.util.Objects;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
@@ -188,6 +191,9 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     private static final int LOADER_CHART_DATA = 2;
     private static final int LOADER_SUMMARY = 3;
 
+    // Number of rows of the app list whose details are loaded as soon as the stats are
+    private static final int PREFETCH_DETAILS = 20;
+
     private INetworkManagementService mNetworkService;
     private INetworkStatsService mStatsService;
     private NetworkPolicyManager mPolicyManager;
@@ -452,27 +458,16 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             }
         });
 
-        // kick off background task to update stats
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                try {
-                    // wait a few seconds before kicking off
-                    Thread.sleep(2 * DateUtils.SECOND_IN_MILLIS);
-                    mStatsService.forceUpdate();
-                } catch (InterruptedException e) {
-                } catch (RemoteException e) {
-                }
-                return null;
-            }
-
+        // The stats already collected are shown right away; ask for fresh
+        // ones in the background and reload the stats once they are there.
+        NetworkStatsPoller.requestPoll(mStatsService, new Runnable() {
             @Override
-            protected void onPostExecute(Void result) {
-                if (isAdded()) {
-                    updateBody();
+            public void run() {
+                if (isResumed()) {
+                    reloadStats();
                 }
             }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        });
     }
 
     @Override
@@ -612,7 +607,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         mDataEnabledView = null;
         mDisableAtLimitView = null;
 
-        mUidDetailProvider.clearCache();
+        // The details stay cached for the next time
         mUidDetailProvider = null;
 
         TrafficStats.closeQuietly(mStatsSession);
@@ -813,6 +808,16 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         mBinding = false;
     }
 
+    /**
+     * Reload the stats of the current tab, leaving everything else as is. The
+     * chart only redraws the series that changed.
+     */
+    private void reloadStats() {
+        if (mTemplate == null) return;
+        getLoaderManager().restartLoader(LOADER_CHART_DATA,
+                ChartDataLoader.buildArgs(mTemplate, mCurrentApp), mChartDataCallbacks);
+    }
+
     private boolean isAppDetailMode() {
         return mCurrentApp != null;
     }
@@ -1338,6 +1343,19 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                     POLICY_REJECT_METERED_BACKGROUND);
             mAdapter.bindStats(data, restrictedUids);
             updateEmptyVisible();
+
+            // Load the details of the first rows in one go, and show them all at once
+            final int[] keys = mAdapter.getItemKeys(PREFETCH_DETAILS);
+            if (keys.length > 0 && mUidDetailProvider != null) {
+                mUidDetailProvider.prefetch(keys, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isAdded()) {
+                            mAdapter.notifyDataSetChanged();
+                        }
+                    }
+                });
+            }
         }
 
         @Override
@@ -1568,6 +1586,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         private final UidDetailProvider mProvider;
         private final int mInsetSide;
         private final UserManager mUm;
+        private final UidUsageAggregator mAggregator = new UidUsageAggregator();
 
         private ArrayList<AppItem> mItems = Lists.newArrayList();
         private long mLargest;
@@ -1586,26 +1605,26 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             mLargest = 0;
 
             final int currentUserId = ActivityManager.getCurrentUser();
-            final List<UserHandle> profiles = mUm.getUserProfiles();
+            final long[] profiles = UidUsageAggregator.buildUserBits(mUm.getUserProfiles());
             final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
 
-            NetworkStats.Entry entry = null;
-            final int size = stats != null ? stats.size() : 0;
-            for (int i = 0; i < size; i++) {
-                entry = stats.getValues(i, entry);
+            // Sum the entries by uid first, so that the items are only looked up once per uid.
+            mAggregator.aggregate(stats);
+            final int count = mAggregator.getCount();
+            for (int i = 0; i < count; i++) {
+                final int uid = mAggregator.getUid(i);
+                final long total = mAggregator.getTotal(i);
 
                 // Decide how to collapse items together
-                final int uid = entry.uid;
-
                 final int collapseKey;
                 final int category;
                 final int userId = UserHandle.getUserId(uid);
                 if (UserHandle.isApp(uid)) {
-                    if (profiles.contains(new UserHandle(userId))) {
+                    if (UidUsageAggregator.containsUser(profiles, userId)) {
                         if (userId != currentUserId) {
                             // Add to a managed user item.
                             final int managedKey = UidDetailProvider.buildKeyForUser(userId);
-                            accumulate(managedKey, knownItems, entry,
+                            accumulate(managedKey, knownItems, uid, total,
                                     AppItem.CATEGORY_USER);
                         }
                         // Add to app item.
@@ -1623,14 +1642,15 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                     collapseKey = android.os.Process.SYSTEM_UID;
                     category = AppItem.CATEGORY_APP;
                 }
-                accumulate(collapseKey, knownItems, entry, category);
+                accumulate(collapseKey, knownItems, uid, total, category);
             }
+            mAggregator.clear();
 
             final int restrictedUidsMax = restrictedUids.length;
             for (int i = 0; i < restrictedUidsMax; ++i) {
                 final int uid = restrictedUids[i];
                 // Only splice in restricted state for current user or managed users
-                if (!profiles.contains(new UserHandle(UserHandle.getUserId(uid)))) {
+                if (!UidUsageAggregator.containsUser(profiles, UserHandle.getUserId(uid))) {
                     continue;
                 }
 
@@ -1655,18 +1675,34 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         }
 
         /**
-         * Accumulate data usage of a network stats entry for the item mapped by the collapse key.
+         * @return the keys of the first items, at most max of them, skipping the
+         *         title.
+         */
+        public int[] getItemKeys(int max) {
+            final int[] keys = new int[Math.min(max, mItems.size())];
+            int count = 0;
+            for (int i = 0; i < mItems.size() && count < keys.length; i++) {
+                final AppItem item = mItems.get(i);
+                if (item.category != AppItem.CATEGORY_APP_TITLE) {
+                    keys[count++] = item.key;
+                }
+            }
+            return count == keys.length ? keys : Arrays.copyOf(keys, count);
+        }
+
+        /**
+         * Accumulate data usage of a uid for the item mapped by the collapse key.
          * Creates the item if needed.
          *
          * @param collapseKey the collapse key used to map the item.
          * @param knownItems collection of known (already existing) items.
-         * @param entry the network stats entry to extract data usage from.
+         * @param uid the uid the data usage belongs to.
+         * @param bytes the data usage of the uid.
          * @param itemCategory the item is categorized on the list view by this category. Must be
          *            either AppItem.APP_ITEM_CATEGORY or AppItem.MANAGED_USER_ITEM_CATEGORY
          */
         private void accumulate(int collapseKey, final SparseArray<AppItem> knownItems,
-                NetworkStats.Entry entry, int itemCategory) {
-            final int uid = entry.uid;
+                int uid, long bytes, int itemCategory) {
             AppItem item = knownItems.get(collapseKey);
             if (item == null) {
                 item = new AppItem(collapseKey);
@@ -1675,7 +1711,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                 knownItems.put(item.key, item);
             }
             item.addUid(uid);
-            item.total += entry.rxBytes + entry.txBytes;
+            item.total += bytes;
             if (mLargest < item.total) {
                 mLargest = item.total;
             }
@@ -2260,6 +2296,10 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             final UidDetail cachedDetail = provider.getUidDetail(item.key, false);
             if (cachedDetail != null) {
                 bindView(cachedDetail, target);
+            } else if (provider.isPrefetching(item.key)) {
+                // The whole list is rebound once the prefetching is done
+                target.setTag(null);
+                bindPreview(provider, item, target);
             } else {
                 target.setTag(new UidDetailTask(provider, item, target).executeOnExecutor(
                         AsyncTask.THREAD_POOL_EXECUTOR));
@@ -2280,9 +2320,21 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             }
         }
 
+        /**
+         * Show the label last known for the item, if any, while its details are loaded.
+         */
+        private static void bindPreview(UidDetailProvider provider, AppItem item, View target) {
+            final CharSequence label = provider.getPreviewLabel(item.key);
+            bindView(null, target);
+            if (label != null) {
+                final TextView title = (TextView) target.findViewById(android.R.id.title);
+                title.setText(label);
+            }
+        }
+
         @Override
         protected void onPreExecute() {
-            bindView(null, mTarget);
+            bindPreview(mProvider, mItem, mTarget);
         }
 
         @Override
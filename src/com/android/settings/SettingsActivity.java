@@ -28,6 +28,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
@@ -35,6 +36,7 @@ import android.content.res.Configuration;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.nfc.NfcAdapter;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.INetworkManagementService;
@@ -75,6 +77,7 @@ import com.android.settings.bluetooth.BluetoothSettings;
 import com.android.settings.dashboard.DashboardCategory;
 import com.android.settings.dashboard.DashboardSummary;
 import com.android.settings.dashboard.DashboardTile;
+import com.android.settings.dashboard.DashboardTileCache;
 import com.android.settings.dashboard.NoHomeDialogFragment;
 import com.android.settings.dashboard.SearchResultsSummary;
 import com.android.settings.deviceinfo.Memory;
@@ -116,7 +119,9 @@ import com.android.settings.wifi.p2p.WifiP2pSettings;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -424,6 +429,12 @@ public class SettingsActivity extends Activity
         Index.getInstance(this).update();
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        Index.getInstance(this).dump(prefix, writer);
+    }
+
     @Override
     protected void onStart() {
         super.onStart();
@@ -974,9 +985,99 @@ public class SettingsActivity extends Activity
      * @param categories The list in which to place the tiles categories.
      */
     private void buildDashboardCategories(List<DashboardCategory> categories) {
+        final DashboardTileCache cache = DashboardTileCache.getInstance(this);
+        // The "no home" notice is shown while the tiles are being checked
+        if (!sShowNoHomeNotice) {
+            final List<DashboardCategory> cached =
+                    cache.get(getDashboardCategoriesKey(cache.getTargetPackages()));
+            if (cached != null) {
+                categories.clear();
+                categories.addAll(cached);
+                return;
+            }
+        }
+
         categories.clear();
         loadCategoriesFromResource(R.xml.dashboard_categories, categories);
         updateTilesList(categories);
+
+        final List<String> targetPackages = getTileTargetPackages(categories);
+        cache.put(getDashboardCategoriesKey(targetPackages), targetPackages, categories);
+    }
+
+    /**
+     * Describe everything that decides which tiles are shown by {@link #updateTilesList(List)}.
+     *
+     * The system features and the kernel support for data usage only change with the build.
+     * The tiles pointing to an activity of another package can only point to a system package
+     * (see {@link Utils#updateTileToSpecificActivityFromMetaDataOrRemove}), so they only change
+     * with the build or with an update of that package.
+     *
+     * @param targetPackages The packages of the activities the tiles are pointing to.
+     */
+    private String getDashboardCategoriesKey(List<String> targetPackages) {
+        final PackageManager pm = getPackageManager();
+        final UserManager um = (UserManager) getSystemService(Context.USER_SERVICE);
+        final StringBuilder sb = new StringBuilder();
+        sb.append(Build.FINGERPRINT);
+        sb.append('|').append(getPackageLastUpdateTime(pm, getPackageName()));
+        sb.append('|').append(getResources().getConfiguration().locale);
+        sb.append('|').append(UserHandle.myUserId());
+        sb.append('|').append(um.getUserCount());
+        sb.append('|').append(um.hasUserRestriction(UserManager.DISALLOW_DEBUGGING_FEATURES));
+        sb.append('|').append(mDevelopmentPreferences.getBoolean(DevelopmentSettings.PREF_SHOW,
+                android.os.Build.TYPE.equals("eng")));
+        sb.append('|').append(mBatteryPresent);
+        final NfcAdapter adapter = NfcAdapter.getDefaultAdapter(this);
+        sb.append('|').append(adapter != null && adapter.isEnabled());
+        sb.append('|').append(Utils.showSimCardTile(this));
+        sb.append('|').append(Utils.isMonkeyRunning());
+
+        // Once shown, the Home settings are always shown
+        final SharedPreferences sp =
+                getSharedPreferences(HomeSettings.HOME_PREFS, Context.MODE_PRIVATE);
+        if (sp.getBoolean(HomeSettings.HOME_PREFS_DO_SHOW, false)) {
+            sb.append("|home");
+        } else {
+            sb.append('|').append(getHomeActivitiesCount());
+        }
+
+        final int count = targetPackages.size();
+        for (int n = 0; n < count; n++) {
+            final String packageName = targetPackages.get(n);
+            sb.append('|').append(packageName);
+            sb.append('@').append(getPackageLastUpdateTime(pm, packageName));
+        }
+        return sb.toString();
+    }
+
+    private static long getPackageLastUpdateTime(PackageManager pm, String packageName) {
+        try {
+            final PackageInfo info = pm.getPackageInfo(packageName, 0);
+            return info.lastUpdateTime;
+        } catch (NameNotFoundException e) {
+            return -1;
+        }
+    }
+
+    private List<String> getTileTargetPackages(List<DashboardCategory> categories) {
+        final ArrayList<String> packages = new ArrayList<String>();
+        final int size = categories.size();
+        for (int i = 0; i < size; i++) {
+            final DashboardCategory category = categories.get(i);
+            final int count = category.getTilesCount();
+            for (int n = 0; n < count; n++) {
+                final Intent intent = category.getTile(n).intent;
+                if (intent == null || intent.getComponent() == null) {
+                    continue;
+                }
+                final String packageName = intent.getComponent().getPackageName();
+                if (!packageName.equals(getPackageName()) && !packages.contains(packageName)) {
+                    packages.add(packageName);
+                }
+            }
+        }
+        return packages;
     }
 
     /**
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
+import android.os.UserHandle;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Labels and icons of the applications, shared by all the screens of Settings so that moving
+ * between them does not load the same labels and icons again.
+ *
+ * The icons are kept in a LRU cache bounded by the size of their bitmaps, and each caller gets
+ * its own drawable sharing the cached bitmap.  The entries of a package are dropped when it is
+ * added, changed or removed, and all the labels are dropped when the locale changes.
+ */
+public class AppLabelIconCache {
+    private static final String TAG = "AppLabelIconCache";
+
+    private static final int MAX_LABELS = 1000;
+
+    // Part of the heap used by the icons
+    private static final int ICON_MEMORY_DIVIDER = 16;
+
+    private static AppLabelIconCache sInstance;
+
+    private final Context mContext;
+    private final PackageManager mPm;
+
+    private final LruCache<String, CharSequence> mLabels =
+            new LruCache<String, CharSequence>(MAX_LABELS);
+    private final LruCache<String, Drawable.ConstantState> mIcons;
+
+    // Incremented each time labels or icons are dropped.  Also held while dropping them and
+    // while caching a loaded value, so that a value loaded before being dropped is not cached.
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+                synchronized (mGeneration) {
+                    mGeneration.incrementAndGet();
+                    mLabels.evictAll();
+                }
+            } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                final String[] packages =
+                        intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                if (packages != null) {
+                    for (String packageName : packages) {
+                        invalidate(packageName);
+                    }
+                }
+            } else if (intent.getData() != null) {
+                invalidate(intent.getData().getSchemeSpecificPart());
+            }
+        }
+    };
+
+    public static synchronized AppLabelIconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppLabelIconCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AppLabelIconCache(Context context) {
+        mContext = context;
+        mPm = context.getPackageManager();
+
+        final int maxIconBytes = (int) (Runtime.getRuntime().maxMemory() / ICON_MEMORY_DIVIDER);
+        mIcons = new LruCache<String, Drawable.ConstantState>(maxIconBytes) {
+            @Override
+            protected int sizeOf(String key, Drawable.ConstantState state) {
+                return getByteCount(state);
+            }
+        };
+
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+
+        final IntentFilter otherFilter = new IntentFilter(Intent.ACTION_LOCALE_CHANGED);
+        otherFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        otherFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiver(mPackageReceiver, otherFilter);
+    }
+
+    /**
+     * Return the label of an application, loading it if needed.  Can be called from any thread.
+     */
+    public CharSequence getLabel(ApplicationInfo info) {
+        final String key = getKey(info);
+        CharSequence label = mLabels.get(key);
+        if (label == null) {
+            final int generation = mGeneration.get();
+            label = info.loadLabel(mPm);
+            if (label == null) {
+                label = info.packageName;
+            }
+            putIfCurrent(mLabels, key, label, generation);
+        }
+        return label;
+    }
+
+    /**
+     * Return the (unbadged) icon of an application, loading it if needed.  Each call returns a
+     * new drawable, which may share its bitmap with the other ones.  Can be called from any
+     * thread.
+     */
+    public Drawable getIcon(ApplicationInfo info) {
+        final String key = getKey(info);
+        final Drawable.ConstantState state = mIcons.get(key);
+        if (state != null) {
+            return state.newDrawable(mContext.getResources());
+        }
+        final int generation = mGeneration.get();
+        final Drawable icon = info.loadIcon(mPm);
+        if (icon != null && icon.getConstantState() != null) {
+            putIfCurrent(mIcons, key, icon.getConstantState(), generation);
+        }
+        return icon;
+    }
+
+    /**
+     * Cache a value loaded at the given generation, unless labels or icons have been dropped
+     * since: it may have been loaded from the package before it was updated.
+     */
+    private <V> void putIfCurrent(LruCache<String, V> cache, String key, V value,
+            int generation) {
+        synchronized (mGeneration) {
+            if (mGeneration.get() == generation) {
+                cache.put(key, value);
+            }
+        }
+    }
+
+    /**
+     * Load the labels, and optionally the icons, of the given applications in the background.
+     * They are loaded from the end of the list, so that a caller going through the same list
+     * from its start meets the prefetching half way instead of loading the same entries.
+     */
+    public void prefetch(List<ApplicationInfo> infos, final boolean icons) {
+        final ArrayList<ApplicationInfo> toLoad = new ArrayList<ApplicationInfo>();
+        for (int i = 0; i < infos.size(); i++) {
+            final ApplicationInfo info = infos.get(i);
+            final String key = getKey(info);
+            if (mLabels.get(key) == null || (icons && mIcons.get(key) == null)) {
+                toLoad.add(info);
+            }
+        }
+        if (toLoad.isEmpty()) {
+            return;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = toLoad.size() - 1; i >= 0; i--) {
+                    final ApplicationInfo info = toLoad.get(i);
+                    try {
+                        getLabel(info);
+                        if (icons) {
+                            getIcon(info);
+                        }
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "Cannot load " + info.packageName, e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Forget the label and the icon of a package, for all the users.
+     */
+    public void invalidate(String packageName) {
+        final String prefix = packageName + "/";
+        synchronized (mGeneration) {
+            mGeneration.incrementAndGet();
+            for (String key : mLabels.snapshot().keySet()) {
+                if (key.startsWith(prefix)) {
+                    mLabels.remove(key);
+                }
+            }
+            for (String key : mIcons.snapshot().keySet()) {
+                if (key.startsWith(prefix)) {
+                    mIcons.remove(key);
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (mGeneration) {
+            mGeneration.incrementAndGet();
+            mLabels.evictAll();
+            mIcons.evictAll();
+        }
+    }
+
+    /**
+     * @return a number that changes each time labels or icons are dropped, so that the callers
+     *         keeping things built from them know when to build them again.
+     */
+    public int getGeneration() {
+        return mGeneration.get();
+    }
+
+    private static String getKey(ApplicationInfo info) {
+        return info.packageName + "/" + UserHandle.getUserId(info.uid);
+    }
+
+    private int getByteCount(Drawable.ConstantState state) {
+        final Drawable drawable = state.newDrawable(mContext.getResources());
+        if (drawable instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (bitmap != null) {
+                return bitmap.getByteCount();
+            }
+        }
+        // Assume an ARGB_8888 bitmap of the intrinsic size
+        return Math.max(1, drawable.getIntrinsicWidth() * drawable.getIntrinsicHeight() * 4);
+    }
+}
@@ -230,7 +230,7 @@ public class AppOpsState {
         public Drawable getIcon() {
             if (mIcon == null) {
                 if (mApkFile.exists()) {
-                    mIcon = mInfo.loadIcon(mState.mPm);
+                    mIcon = AppLabelIconCache.getInstance(mState.mContext).getIcon(mInfo);
                     return mIcon;
                 } else {
                     mMounted = false;
@@ -240,7 +240,7 @@ public class AppOpsState {
                 // its icon.
                 if (mApkFile.exists()) {
                     mMounted = true;
-                    mIcon = mInfo.loadIcon(mState.mPm);
+                    mIcon = AppLabelIconCache.getInstance(mState.mContext).getIcon(mInfo);
                     return mIcon;
                 }
             } else {
@@ -262,8 +262,7 @@ public class AppOpsState {
                     mLabel = mInfo.packageName;
                 } else {
                     mMounted = true;
-                    CharSequence label = mInfo.loadLabel(context.getPackageManager());
-                    mLabel = label != null ? label.toString() : mInfo.packageName;
+                    mLabel = AppLabelIconCache.getInstance(context).getLabel(mInfo).toString();
                 }
             }
         }
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the last computed sizes of the applications, so that they can be
+ * shown right away the next time the list of applications is displayed, while
+ * the real sizes are being computed again.
+ *
+ * The sizes of a package are only used if the package has not been updated
+ * since they were computed.  The reading and writing of the file should be
+ * done on a background thread, everything else is synchronized by the caller.
+ */
+class AppSizeCache {
+    private static final String TAG = "AppSizeCache";
+
+    private static final String FILE_NAME = "app_sizes";
+    private static final int VERSION = 1;
+
+    static class Entry extends ApplicationsState.SizeInfo {
+        long lastUpdateTime;
+    }
+
+    private final AtomicFile mFile;
+    private HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    AppSizeCache(Context context) {
+        mFile = new AtomicFile(new File(context.getCacheDir(), FILE_NAME));
+    }
+
+    boolean isLoaded() {
+        return mLoaded;
+    }
+
+    void setEntries(HashMap<String, Entry> entries) {
+        // Keep the sizes computed while the file was being read.
+        entries.putAll(mEntries);
+        mEntries = entries;
+        mLoaded = true;
+    }
+
+    Entry get(String packageName, long lastUpdateTime) {
+        Entry entry = mEntries.get(packageName);
+        if (entry != null && entry.lastUpdateTime == lastUpdateTime) {
+            return entry;
+        }
+        return null;
+    }
+
+    void put(String packageName, long lastUpdateTime, ApplicationsState.SizeInfo sizes) {
+        Entry entry = mEntries.get(packageName);
+        if (entry != null && entry.lastUpdateTime == lastUpdateTime
+                && entry.cacheSize == sizes.cacheSize
+                && entry.codeSize == sizes.codeSize
+                && entry.dataSize == sizes.dataSize
+                && entry.externalCodeSize == sizes.externalCodeSize
+                && entry.externalDataSize == sizes.externalDataSize
+                && entry.externalCacheSize == sizes.externalCacheSize) {
+            return;
+        }
+        // Entries are never modified, as a snapshot may be being written.
+        entry = new Entry();
+        entry.lastUpdateTime = lastUpdateTime;
+        entry.cacheSize = sizes.cacheSize;
+        entry.codeSize = sizes.codeSize;
+        entry.dataSize = sizes.dataSize;
+        entry.externalCodeSize = sizes.externalCodeSize;
+        entry.externalDataSize = sizes.externalDataSize;
+        entry.externalCacheSize = sizes.externalCacheSize;
+        mEntries.put(packageName, entry);
+        mDirty = true;
+    }
+
+    void remove(String packageName) {
+        if (mEntries.remove(packageName) != null) {
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Returns a copy of the entries to write, or null if nothing changed since
+     * the last call.
+     */
+    HashMap<String, Entry> takeSnapshotIfDirty() {
+        if (!mDirty || !mLoaded) {
+            return null;
+        }
+        mDirty = false;
+        return new HashMap<String, Entry>(mEntries);
+    }
+
+    HashMap<String, Entry> read() {
+        final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != VERSION) {
+                return entries;
+            }
+            final int count = in.readInt();
+            for (int i=0; i<count; i++) {
+                final String packageName = in.readUTF();
+                final Entry entry = new Entry();
+                entry.lastUpdateTime = in.readLong();
+                entry.cacheSize = in.readLong();
+                entry.codeSize = in.readLong();
+                entry.dataSize = in.readLong();
+                entry.externalCodeSize = in.readLong();
+                entry.externalDataSize = in.readLong();
+                entry.externalCacheSize = in.readLong();
+                entries.put(packageName, entry);
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + mFile.getBaseFile(), e);
+            entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return entries;
+    }
+
+    void write(HashMap<String, Entry> entries) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                final Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.lastUpdateTime);
+                out.writeLong(entry.cacheSize);
+                out.writeLong(entry.codeSize);
+                out.writeLong(entry.dataSize);
+                out.writeLong(entry.externalCodeSize);
+                out.writeLong(entry.externalDataSize);
+                out.writeLong(entry.externalCacheSize);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write " + mFile.getBaseFile(), e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+}
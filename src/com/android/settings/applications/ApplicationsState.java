@@ -30,7 +30,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
@@ -46,11 +49,73 @@ public class ApplicationsState {
         public void onRunningStateChanged(boolean running);
         public void onPackageListChanged();
         public void onRebuildComplete(ArrayList<AppEntry> apps);
+        public void onRebuildChanged(ChangeSet changes);
         public void onPackageIconChanged();
         public void onPackageSizeChanged(String packageName);
         public void onAllSizesComputed();
     }
 
+    /**
+     * The changes made to the list of a session by an incremental rebuild, see
+     * {@link Session#rebuildIncremental()}. Applying the operations in order to the list
+     * previously received by the session's callbacks gives the new list.
+     */
+    public static class ChangeSet {
+        /** Remove the entry at {@link Op#from}. */
+        public static final int OP_REMOVE = 0;
+        /** Insert {@link Op#entry} at {@link Op#to}. */
+        public static final int OP_INSERT = 1;
+        /** Remove the entry at {@link Op#from}, then insert {@link Op#entry} at {@link Op#to}. */
+        public static final int OP_MOVE = 2;
+        /** Replace the entry at {@link Op#to} by {@link Op#entry}. */
+        public static final int OP_CHANGE = 3;
+
+        public static class Op {
+            public final int type;
+            public final int from;
+            public final int to;
+            public final AppEntry entry;
+
+            Op(int type, int from, int to, AppEntry entry) {
+                this.type = type;
+                this.from = from;
+                this.to = to;
+                this.entry = entry;
+            }
+        }
+
+        public final ArrayList<Op> ops = new ArrayList<Op>();
+
+        public boolean isEmpty() {
+            return ops.isEmpty();
+        }
+
+        /**
+         * Apply the changes to a list, which must be the one previously received by the session's
+         * callbacks (or a copy of it).
+         */
+        public void applyTo(List<AppEntry> apps) {
+            for (int i=0; i<ops.size(); i++) {
+                final Op op = ops.get(i);
+                switch (op.type) {
+                    case OP_REMOVE:
+                        apps.remove(op.from);
+                        break;
+                    case OP_INSERT:
+                        apps.add(op.to, op.entry);
+                        break;
+                    case OP_MOVE:
+                        apps.remove(op.from);
+                        apps.add(op.to, op.entry);
+                        break;
+                    case OP_CHANGE:
+                        apps.set(op.to, op.entry);
+                        break;
+                }
+            }
+        }
+    }
+
     public static interface AppFilter {
         public void init();
         public boolean filterApp(ApplicationInfo info);
@@ -59,6 +124,9 @@ public class ApplicationsState {
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
+    // Default number of package size requests kept in flight
+    static final int DEFAULT_MAX_SIZE_REQUESTS = 4;
+
     static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -131,8 +199,8 @@ public class ApplicationsState {
                     this.label = info.packageName;
                 } else {
                     this.mounted = true;
-                    CharSequence label = info.loadLabel(context.getPackageManager());
-                    this.label = label != null ? label.toString() : info.packageName;
+                    this.label = AppLabelIconCache.getInstance(context).getLabel(info)
+                            .toString();
                 }
             }
         }
@@ -140,7 +208,7 @@ public class ApplicationsState {
         boolean ensureIconLocked(Context context, PackageManager pm) {
             if (this.icon == null) {
                 if (this.apkFile.exists()) {
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = AppLabelIconCache.getInstance(context).getIcon(this.info);
                     return true;
                 } else {
                     this.mounted = false;
@@ -152,7 +220,7 @@ public class ApplicationsState {
                 // its icon.
                 if (this.apkFile.exists()) {
                     this.mounted = true;
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = AppLabelIconCache.getInstance(context).getIcon(this.info);
                     return true;
                 }
             }
@@ -272,15 +340,23 @@ public class ApplicationsState {
     boolean mHaveDisabledApps;
 
     // Information about all applications.  Synchronize on mEntriesMap
-    // to protect access to these.
+    // to protect access to these.  The entries map itself can be read
+    // without the lock, it is only modified while holding it.  The fields
+    // of an entry are protected by the entry, so loading the label or the
+    // icon of an application does not block anyone else than the users of
+    // that entry: never acquire mEntriesMap while holding an entry.
     final ArrayList<Session> mSessions = new ArrayList<Session>();
     final ArrayList<Session> mRebuildingSessions = new ArrayList<Session>();
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
-    final HashMap<String, AppEntry> mEntriesMap = new HashMap<String, AppEntry>();
+    final ConcurrentHashMap<String, AppEntry> mEntriesMap =
+            new ConcurrentHashMap<String, AppEntry>();
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
-    long mCurId = 1;
-    String mCurComputingSizePkg;
+    final AtomicLong mCurId = new AtomicLong(1);
+    // Packages whose size is being computed, at most mMaxSizeRequests of them.
+    final HashSet<String> mComputingSizePkgs = new HashSet<String>();
+    int mMaxSizeRequests = DEFAULT_MAX_SIZE_REQUESTS;
+    final AppSizeCache mSizeCache;
     boolean mSessionsChanged;
 
     // Temporary for dispatching session callbacks.  Only touched by main thread.
@@ -372,8 +448,24 @@ public class ApplicationsState {
             switch (msg.what) {
                 case MSG_REBUILD_COMPLETE: {
                     Session s = (Session)msg.obj;
-                    if (mActiveSessions.contains(s)) {
-                        s.mCallbacks.onRebuildComplete(s.mLastAppList);
+                    ArrayList<Object> results;
+                    synchronized (s.mRebuildSync) {
+                        results = new ArrayList<Object>(s.mPendingResults);
+                        s.mPendingResults.clear();
+                        if (!mActiveSessions.contains(s)) {
+                            // The next change sets would not apply to the list of the
+                            // callbacks, so the next rebuild has to be a full one.
+                            s.mResultsDropped |= results.size() > 0;
+                            break;
+                        }
+                    }
+                    for (int i=0; i<results.size(); i++) {
+                        Object result = results.get(i);
+                        if (result instanceof ChangeSet) {
+                            s.mCallbacks.onRebuildChanged((ChangeSet)result);
+                        } else {
+                            s.mCallbacks.onRebuildComplete((ArrayList<AppEntry>)result);
+                        }
                     }
                 } break;
                 case MSG_PACKAGE_LIST_CHANGED: {
@@ -430,6 +522,7 @@ public class ApplicationsState {
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
         mBackgroundHandler = new BackgroundHandler(mThread.getLooper());
+        mSizeCache = new AppSizeCache(mContext);
 
         // Only the owner can see all apps.
         if (UserHandle.myUserId() == 0) {
@@ -471,10 +564,25 @@ public class ApplicationsState {
         final Object mRebuildSync = new Object();
         boolean mRebuildRequested;
         boolean mRebuildAsync;
+        boolean mRebuildIncremental;
         AppFilter mRebuildFilter;
         Comparator<AppEntry> mRebuildComparator;
         ArrayList<AppEntry> mRebuildResult;
+
+        // Last list given to the callbacks, with its filter and comparator.  Only
+        // touched by the background thread.
         ArrayList<AppEntry> mLastAppList;
+        AppFilter mLastFilter;
+        Comparator<AppEntry> mLastComparator;
+
+        // Full lists and change sets waiting to be given to the callbacks, in order.
+        // Synchronized on mRebuildSync.
+        final ArrayList<Object> mPendingResults = new ArrayList<Object>();
+        boolean mResultsDropped;
+
+        // Packages added, removed or changed since the last rebuild.  Synchronized
+        // on mEntriesMap.
+        final HashSet<String> mChangedPackages = new HashSet<String>();
 
         Session(Callbacks callbacks) {
             mCallbacks = callbacks;
@@ -511,6 +619,7 @@ public class ApplicationsState {
                 synchronized (mEntriesMap) {
                     mRebuildingSessions.add(this);
                     mRebuildRequested = true;
+                    mRebuildIncremental = false;
                     mRebuildAsync = false;
                     mRebuildFilter = filter;
                     mRebuildComparator = comparator;
@@ -542,21 +651,63 @@ public class ApplicationsState {
             }
         }
 
+        /**
+         * Rebuild the list with the last filter and comparator, only updating the packages that
+         * were added, removed or changed since the last rebuild.  The result is given to
+         * {@link Callbacks#onRebuildChanged(ChangeSet)}, or to
+         * {@link Callbacks#onRebuildComplete(ArrayList)} if a full rebuild is needed.
+         * Does not wait for the result.
+         */
+        void rebuildIncremental() {
+            synchronized (mRebuildSync) {
+                synchronized (mEntriesMap) {
+                    if (!mRebuildRequested) {
+                        mRebuildRequested = true;
+                        mRebuildIncremental = true;
+                    }
+                    mRebuildAsync = true;
+                    mRebuildingSessions.add(this);
+                    if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_REBUILD_LIST)) {
+                        mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_REBUILD_LIST);
+                    }
+                }
+            }
+        }
+
         void handleRebuildList() {
             AppFilter filter;
             Comparator<AppEntry> comparator;
+            boolean incremental = false;
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
                     return;
                 }
 
-                filter = mRebuildFilter;
-                comparator = mRebuildComparator;
+                if (mRebuildIncremental) {
+                    if (mLastComparator == null) {
+                        // Nothing has been built yet.
+                        mRebuildRequested = false;
+                        mRebuildIncremental = false;
+                        return;
+                    }
+                    incremental = !mResultsDropped;
+                    filter = mLastFilter;
+                    comparator = mLastComparator;
+                } else {
+                    filter = mRebuildFilter;
+                    comparator = mRebuildComparator;
+                }
                 mRebuildRequested = false;
+                mRebuildIncremental = false;
                 mRebuildFilter = null;
                 mRebuildComparator = null;
             }
 
+            if (incremental) {
+                handleIncrementalRebuild(filter, comparator);
+                return;
+            }
+
             Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
 
             if (filter != null) {
@@ -566,6 +717,7 @@ public class ApplicationsState {
             List<ApplicationInfo> apps;
             synchronized (mEntriesMap) {
                 apps = new ArrayList<ApplicationInfo>(mApplications);
+                mChangedPackages.clear();
             }
 
             ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>();
@@ -573,14 +725,12 @@ public class ApplicationsState {
             for (int i=0; i<apps.size(); i++) {
                 ApplicationInfo info = apps.get(i);
                 if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
+                    AppEntry entry = obtainEntry(info);
+                    synchronized (entry) {
                         entry.ensureLabel(mContext);
-                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
-                        filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
                     }
+                    if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                    filteredApps.add(entry);
                 }
             }
 
@@ -588,16 +738,19 @@ public class ApplicationsState {
 
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
+                    // The callbacks get their own copy, the list of the session is patched
+                    // by the incremental rebuilds.
                     mLastAppList = filteredApps;
+                    mLastFilter = filter;
+                    mLastComparator = comparator;
+                    mResultsDropped = false;
+                    // A full list supersedes all the results not delivered yet.
+                    mPendingResults.clear();
                     if (!mRebuildAsync) {
-                        mRebuildResult = filteredApps;
+                        mRebuildResult = new ArrayList<AppEntry>(filteredApps);
                         mRebuildSync.notifyAll();
                     } else {
-                        if (!mMainHandler.hasMessages(MainHandler.MSG_REBUILD_COMPLETE, this)) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_REBUILD_COMPLETE, this);
-                            mMainHandler.sendMessage(msg);
-                        }
+                        postResultLocked(new ArrayList<AppEntry>(filteredApps));
                     }
                 }
             }
@@ -605,6 +758,87 @@ public class ApplicationsState {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         }
 
+        // Patches the sorted list in place with a binary insertion of each changed package.
+        private void handleIncrementalRebuild(AppFilter filter,
+                Comparator<AppEntry> comparator) {
+            final ArrayList<AppEntry> list = mLastAppList;
+
+            ArrayList<String> packages;
+            synchronized (mEntriesMap) {
+                packages = new ArrayList<String>(mChangedPackages);
+                mChangedPackages.clear();
+            }
+            if (packages.isEmpty()) {
+                return;
+            }
+            if (DEBUG) Log.i(TAG, "Incremental rebuild of " + packages);
+
+            if (filter != null) {
+                filter.init();
+            }
+
+            final ChangeSet changes = new ChangeSet();
+            for (int i=0; i<packages.size(); i++) {
+                final String pkgName = packages.get(i);
+
+                int from = -1;
+                for (int j=0; j<list.size(); j++) {
+                    if (list.get(j).info.packageName.equals(pkgName)) {
+                        from = j;
+                        break;
+                    }
+                }
+
+                ApplicationInfo info = null;
+                synchronized (mEntriesMap) {
+                    int idx = indexOfApplicationInfoLocked(pkgName);
+                    if (idx >= 0) {
+                        info = mApplications.get(idx);
+                    }
+                }
+                AppEntry entry = null;
+                if (info != null && (filter == null || filter.filterApp(info))) {
+                    entry = obtainEntry(info);
+                    synchronized (entry) {
+                        entry.ensureLabel(mContext);
+                    }
+                }
+
+                if (from >= 0) {
+                    list.remove(from);
+                }
+                int to = -1;
+                if (entry != null) {
+                    to = upperBound(list, entry, comparator);
+                    list.add(to, entry);
+                }
+
+                if (from >= 0 && entry != null) {
+                    changes.ops.add(new ChangeSet.Op(from == to ? ChangeSet.OP_CHANGE
+                            : ChangeSet.OP_MOVE, from, to, entry));
+                } else if (from >= 0) {
+                    changes.ops.add(new ChangeSet.Op(ChangeSet.OP_REMOVE, from, -1, null));
+                } else if (entry != null) {
+                    changes.ops.add(new ChangeSet.Op(ChangeSet.OP_INSERT, -1, to, entry));
+                }
+            }
+
+            if (!changes.isEmpty()) {
+                synchronized (mRebuildSync) {
+                    postResultLocked(changes);
+                }
+            }
+        }
+
+        private void postResultLocked(Object result) {
+            mPendingResults.add(result);
+            if (!mMainHandler.hasMessages(MainHandler.MSG_REBUILD_COMPLETE, this)) {
+                Message msg = mMainHandler.obtainMessage(
+                        MainHandler.MSG_REBUILD_COMPLETE, this);
+                mMainHandler.sendMessage(msg);
+            }
+        }
+
         public void release() {
             pause();
             synchronized (mEntriesMap) {
@@ -634,6 +868,9 @@ public class ApplicationsState {
         if (mApplications == null) {
             mApplications = new ArrayList<ApplicationInfo>();
         }
+        // The loader creates the entries from the start of the list.  Only the labels are
+        // prefetched: the icon cache is bounded and would evict the icons on screen.
+        AppLabelIconCache.getInstance(mContext).prefetch(mApplications, false);
 
         if (mInterestingConfigChanges.applyNewConfig(mContext.getResources())) {
             // If an interesting part of the configuration has changed, we
@@ -642,7 +879,10 @@ public class ApplicationsState {
             mAppEntries.clear();
         } else {
             for (int i=0; i<mAppEntries.size(); i++) {
-                mAppEntries.get(i).sizeStale = true;
+                final AppEntry entry = mAppEntries.get(i);
+                synchronized (entry) {
+                    entry.sizeStale = true;
+                }
             }
         }
 
@@ -661,15 +901,29 @@ public class ApplicationsState {
             }
             final AppEntry entry = mEntriesMap.get(info.packageName);
             if (entry != null) {
-                entry.info = info;
+                synchronized (entry) {
+                    entry.info = info;
+                }
             }
         }
-        mCurComputingSizePkg = null;
+        mComputingSizePkgs.clear();
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
     }
 
+    /**
+     * Set how many package size requests can be outstanding at the same time.
+     */
+    public void setMaxSizeRequests(int maxSizeRequests) {
+        synchronized (mEntriesMap) {
+            mMaxSizeRequests = Math.max(1, maxSizeRequests);
+        }
+        if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_SIZES)) {
+            mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_SIZES);
+        }
+    }
+
     public boolean haveDisabledApps() {
         return mHaveDisabledApps;
     }
@@ -691,21 +945,20 @@ public class ApplicationsState {
     }
 
     AppEntry getEntry(String packageName) {
+        AppEntry entry = mEntriesMap.get(packageName);
+        if (entry != null) {
+            return entry;
+        }
+        ApplicationInfo info = null;
         if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
         synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry == null) {
-                for (int i=0; i<mApplications.size(); i++) {
-                    ApplicationInfo info = mApplications.get(i);
-                    if (packageName.equals(info.packageName)) {
-                        entry = getEntryLocked(info);
-                        break;
-                    }
-                }
+            int idx = indexOfApplicationInfoLocked(packageName);
+            if (idx >= 0) {
+                info = mApplications.get(idx);
             }
             if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock");
-            return entry;
         }
+        return info != null ? obtainEntry(info) : null;
     }
     
     void ensureIcon(AppEntry entry) {
@@ -718,29 +971,43 @@ public class ApplicationsState {
     }
     
     void requestSize(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry != null) {
-                mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...requestSize releasing lock");
+        AppEntry entry = mEntriesMap.get(packageName);
+        if (entry != null) {
+            mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
         }
     }
 
     long sumCacheSizes() {
         long sum = 0;
-        if (DEBUG_LOCKING) Log.v(TAG, "sumCacheSizes about to acquire lock...");
-        synchronized (mEntriesMap) {
-            if (DEBUG_LOCKING) Log.v(TAG, "-> sumCacheSizes now has lock");
-            for (int i=mAppEntries.size()-1; i>=0; i--) {
-                sum += mAppEntries.get(i).cacheSize;
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...sumCacheSizes releasing lock");
+        for (AppEntry entry : mEntriesMap.values()) {
+            sum += entry.cacheSize;
         }
         return sum;
     }
     
+    /**
+     * Return the position after the last entry that is not greater than the given entry.
+     */
+    static int upperBound(List<AppEntry> list, AppEntry entry, Comparator<AppEntry> comparator) {
+        int low = 0;
+        int high = list.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (comparator.compare(list.get(mid), entry) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    void packageChangedLocked(String pkgName) {
+        for (int i=0; i<mSessions.size(); i++) {
+            mSessions.get(i).mChangedPackages.add(pkgName);
+        }
+    }
+
     int indexOfApplicationInfoLocked(String pkgName) {
         for (int i=mApplications.size()-1; i>=0; i--) {
             if (mApplications.get(i).packageName.equals(pkgName)) {
@@ -776,6 +1043,7 @@ public class ApplicationsState {
                     mHaveDisabledApps = true;
                 }
                 mApplications.add(info);
+                packageChangedLocked(pkgName);
                 if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                     mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
                 }
@@ -800,8 +1068,10 @@ public class ApplicationsState {
                     mEntriesMap.remove(pkgName);
                     mAppEntries.remove(entry);
                 }
+                mSizeCache.remove(pkgName);
                 ApplicationInfo info = mApplications.get(idx);
                 mApplications.remove(idx);
+                packageChangedLocked(pkgName);
                 if (!info.enabled) {
                     mHaveDisabledApps = false;
                     for (int i=0; i<mApplications.size(); i++) {
@@ -824,38 +1094,93 @@ public class ApplicationsState {
         addPackage(pkgName);
     }
     
-    AppEntry getEntryLocked(ApplicationInfo info) {
-        AppEntry entry = mEntriesMap.get(info.packageName);
+    /**
+     * Return the entry of an application, creating it if needed.  Must not be
+     * called with mEntriesMap held: the label of a new entry is loaded without
+     * holding the lock, and only the insertion into the map is locked.
+     */
+    AppEntry obtainEntry(ApplicationInfo info) {
+        AppEntry entry;
+        synchronized (mEntriesMap) {
+            entry = mEntriesMap.get(info.packageName);
+        }
         if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
         if (entry == null) {
             if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
-            mEntriesMap.put(info.packageName, entry);
-            mAppEntries.add(entry);
-        } else if (entry.info != info) {
-            entry.info = info;
+            AppEntry newEntry = new AppEntry(mContext, info, mCurId.getAndIncrement());
+            final long apkLastModified = newEntry.apkFile.lastModified();
+            synchronized (mEntriesMap) {
+                entry = mEntriesMap.get(info.packageName);
+                if (entry == null) {
+                    mEntriesMap.put(info.packageName, newEntry);
+                    mAppEntries.add(newEntry);
+                    applyCachedSizesLocked(newEntry, apkLastModified);
+                    return newEntry;
+                }
+            }
+        }
+        synchronized (entry) {
+            if (entry.info != info) {
+                entry.info = info;
+            }
         }
         return entry;
     }
 
     // --------------------------------------------------------------
 
-    private long getTotalInternalSize(PackageStats ps) {
-        if (ps != null) {
-            return ps.codeSize + ps.dataSize;
+    /**
+     * Show the last known sizes of a package until its sizes are computed again.  The
+     * modification time of the apk is taken by the caller, before locking mEntriesMap.
+     */
+    void applyCachedSizesLocked(AppEntry entry, long apkLastModified) {
+        if (!mSizeCache.isLoaded()) {
+            return;
+        }
+        synchronized (entry) {
+            if (entry.size != SIZE_UNKNOWN) {
+                return;
+            }
+            AppSizeCache.Entry cached = mSizeCache.get(entry.info.packageName, apkLastModified);
+            if (cached != null) {
+                setSizesLocked(entry, cached);
+            }
         }
-        return SIZE_INVALID;
     }
 
-    private long getTotalExternalSize(PackageStats ps) {
-        if (ps != null) {
-            // We also include the cache size here because for non-emulated
-            // we don't automtically clean cache files.
-            return ps.externalCodeSize + ps.externalDataSize
-                    + ps.externalCacheSize
-                    + ps.externalMediaSize + ps.externalObbSize;
+    /**
+     * Returns true if the sizes of the entry changed.
+     */
+    private boolean setSizesLocked(AppEntry entry, SizeInfo sizes) {
+        final long internalSize = sizes.codeSize + sizes.dataSize;
+        final long newSize = sizes.externalCodeSize + sizes.externalDataSize + internalSize;
+        if (entry.size == newSize &&
+                entry.cacheSize == sizes.cacheSize &&
+                entry.codeSize == sizes.codeSize &&
+                entry.dataSize == sizes.dataSize &&
+                entry.externalCodeSize == sizes.externalCodeSize &&
+                entry.externalDataSize == sizes.externalDataSize &&
+                entry.externalCacheSize == sizes.externalCacheSize) {
+            return false;
         }
-        return SIZE_INVALID;
+        entry.size = newSize;
+        entry.cacheSize = sizes.cacheSize;
+        entry.codeSize = sizes.codeSize;
+        entry.dataSize = sizes.dataSize;
+        entry.externalCodeSize = sizes.externalCodeSize;
+        entry.externalDataSize = sizes.externalDataSize;
+        entry.externalCacheSize = sizes.externalCacheSize;
+        entry.sizeStr = getSizeStr(entry.size);
+        entry.internalSize = internalSize;
+        entry.internalSizeStr = getSizeStr(entry.internalSize);
+        // We also include the cache size here because for non-emulated
+        // we don't automtically clean cache files.
+        entry.externalSize = sizes.externalCodeSize + sizes.externalDataSize
+                + sizes.externalCacheSize;
+        entry.externalSizeStr = getSizeStr(entry.externalSize);
+        if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
+                + ": " + entry.sizeStr);
+        return true;
     }
 
     private String getSizeStr(long size) {
@@ -878,52 +1203,42 @@ public class ApplicationsState {
         final IPackageStatsObserver.Stub mStatsObserver = new IPackageStatsObserver.Stub() {
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 boolean sizeChanged = false;
+                final AppEntry entry;
+                synchronized (mEntriesMap) {
+                    entry = mEntriesMap.get(stats.packageName);
+                }
+                SizeInfo sizes = null;
+                long apkLastModified = 0;
+                if (entry != null) {
+                    sizes = new SizeInfo();
+                    sizes.cacheSize = stats.cacheSize;
+                    sizes.codeSize = stats.codeSize;
+                    sizes.dataSize = stats.dataSize;
+                    sizes.externalCodeSize = stats.externalCodeSize + stats.externalObbSize;
+                    sizes.externalDataSize = stats.externalDataSize + stats.externalMediaSize;
+                    sizes.externalCacheSize = stats.externalCacheSize;
+                    synchronized (entry) {
+                        entry.sizeStale = false;
+                        entry.sizeLoadStart = 0;
+                        sizeChanged = setSizesLocked(entry, sizes);
+                    }
+                    if (succeeded) {
+                        // Not under mEntriesMap, which the UI thread may be waiting for
+                        apkLastModified = entry.apkFile.lastModified();
+                    }
+                    if (sizeChanged) {
+                        Message msg = mMainHandler.obtainMessage(
+                                MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
+                        mMainHandler.sendMessage(msg);
+                    }
+                }
                 synchronized (mEntriesMap) {
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
-                    AppEntry entry = mEntriesMap.get(stats.packageName);
-                    if (entry != null) {
-                        synchronized (entry) {
-                            entry.sizeStale = false;
-                            entry.sizeLoadStart = 0;
-                            long externalCodeSize = stats.externalCodeSize
-                                    + stats.externalObbSize;
-                            long externalDataSize = stats.externalDataSize
-                                    + stats.externalMediaSize;
-                            long newSize = externalCodeSize + externalDataSize
-                                    + getTotalInternalSize(stats);
-                            if (entry.size != newSize ||
-                                    entry.cacheSize != stats.cacheSize ||
-                                    entry.codeSize != stats.codeSize ||
-                                    entry.dataSize != stats.dataSize ||
-                                    entry.externalCodeSize != externalCodeSize ||
-                                    entry.externalDataSize != externalDataSize ||
-                                    entry.externalCacheSize != stats.externalCacheSize) {
-                                entry.size = newSize;
-                                entry.cacheSize = stats.cacheSize;
-                                entry.codeSize = stats.codeSize;
-                                entry.dataSize = stats.dataSize;
-                                entry.externalCodeSize = externalCodeSize;
-                                entry.externalDataSize = externalDataSize;
-                                entry.externalCacheSize = stats.externalCacheSize;
-                                entry.sizeStr = getSizeStr(entry.size);
-                                entry.internalSize = getTotalInternalSize(stats);
-                                entry.internalSizeStr = getSizeStr(entry.internalSize);
-                                entry.externalSize = getTotalExternalSize(stats);
-                                entry.externalSizeStr = getSizeStr(entry.externalSize);
-                                if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
-                                        + ": " + entry.sizeStr);
-                                sizeChanged = true;
-                            }
-                        }
-                        if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
-                        }
+                    if (sizes != null && succeeded) {
+                        mSizeCache.put(stats.packageName, apkLastModified, sizes);
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
+                    if (mComputingSizePkgs.remove(stats.packageName)
+                            || mComputingSizePkgs.isEmpty()) {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
@@ -937,6 +1252,26 @@ public class ApplicationsState {
 
         @Override
         public void handleMessage(Message msg) {
+            // The cached sizes are needed by the entries created below.
+            if (!mSizeCache.isLoaded()) {
+                HashMap<String, AppSizeCache.Entry> cached = mSizeCache.read();
+                final ArrayList<AppEntry> entries;
+                synchronized (mEntriesMap) {
+                    mSizeCache.setEntries(cached);
+                    entries = new ArrayList<AppEntry>(mAppEntries);
+                }
+                // Entries created from now on get their cached sizes when created
+                final long[] apkLastModified = new long[entries.size()];
+                for (int i=0; i<entries.size(); i++) {
+                    apkLastModified[i] = entries.get(i).apkFile.lastModified();
+                }
+                synchronized (mEntriesMap) {
+                    for (int i=0; i<entries.size(); i++) {
+                        applyCachedSizesLocked(entries.get(i), apkLastModified[i]);
+                    }
+                }
+            }
+
             // Always try rebuilding list first thing, if needed.
             ArrayList<Session> rebuildingSessions = null;
             synchronized (mEntriesMap) {
@@ -955,10 +1290,10 @@ public class ApplicationsState {
                 case MSG_REBUILD_LIST: {
                 } break;
                 case MSG_LOAD_ENTRIES: {
-                    int numDone = 0;
+                    ArrayList<ApplicationInfo> toLoad = new ArrayList<ApplicationInfo>();
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
-                        for (int i=0; i<mApplications.size() && numDone<6; i++) {
+                        for (int i=0; i<mApplications.size() && toLoad.size()<6; i++) {
                             if (!mRunning) {
                                 mRunning = true;
                                 Message m = mMainHandler.obtainMessage(
@@ -967,41 +1302,50 @@ public class ApplicationsState {
                             }
                             ApplicationInfo info = mApplications.get(i);
                             if (mEntriesMap.get(info.packageName) == null) {
-                                numDone++;
-                                getEntryLocked(info);
+                                toLoad.add(info);
                             }
                         }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                     }
+                    // The labels are loaded without holding the lock.
+                    for (int i=0; i<toLoad.size(); i++) {
+                        obtainEntry(toLoad.get(i));
+                    }
 
-                    if (numDone >= 6) {
+                    if (toLoad.size() >= 6) {
                         sendEmptyMessage(MSG_LOAD_ENTRIES);
                     } else {
                         sendEmptyMessage(MSG_LOAD_ICONS);
                     }
                 } break;
                 case MSG_LOAD_ICONS: {
-                    int numDone = 0;
+                    ArrayList<AppEntry> toLoad = new ArrayList<AppEntry>();
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
+                        for (int i=0; i<mAppEntries.size(); i++) {
                             AppEntry entry = mAppEntries.get(i);
                             if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
-                                    }
-                                }
+                                toLoad.add(entry);
                             }
                         }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
                     }
+                    // Only the entry whose icon is being loaded is locked.
+                    int numDone = 0;
+                    for (int i=0; i<toLoad.size() && numDone<2; i++) {
+                        AppEntry entry = toLoad.get(i);
+                        synchronized (entry) {
+                            if (entry.ensureIconLocked(mContext, mPm)) {
+                                if (!mRunning) {
+                                    mRunning = true;
+                                    Message m = mMainHandler.obtainMessage(
+                                            MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                    mMainHandler.sendMessage(m);
+                                }
+                                numDone++;
+                            }
+                        }
+                    }
                     if (numDone > 0) {
                         if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
@@ -1014,33 +1358,50 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_LOAD_SIZES: {
+                    HashMap<String, AppSizeCache.Entry> sizesToWrite = null;
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
-                        }
-
+                        // Keep up to mMaxSizeRequests requests in flight.
+                        boolean pending = false;
                         long now = SystemClock.uptimeMillis();
                         for (int i=0; i<mAppEntries.size(); i++) {
                             AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
+                            final long sizeLoadStart;
+                            synchronized (entry) {
+                                if (entry.size != SIZE_UNKNOWN && !entry.sizeStale) {
+                                    continue;
                                 }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
+                                sizeLoadStart = entry.sizeLoadStart;
+                            }
+                            pending = true;
+                            final boolean timedOut = sizeLoadStart != 0
+                                    && sizeLoadStart < (now-20*1000);
+                            if (sizeLoadStart != 0 && !timedOut) {
+                                continue;
                             }
+                            if (!timedOut
+                                    && mComputingSizePkgs.size() >= mMaxSizeRequests) {
+                                break;
+                            }
+                            if (!mRunning) {
+                                mRunning = true;
+                                Message m = mMainHandler.obtainMessage(
+                                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                mMainHandler.sendMessage(m);
+                            }
+                            final String pkgName;
+                            synchronized (entry) {
+                                entry.sizeLoadStart = now;
+                                pkgName = entry.info.packageName;
+                            }
+                            mComputingSizePkgs.add(pkgName);
+                            mPm.getPackageSizeInfo(pkgName, mStatsObserver);
                         }
+                        if (pending) {
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
+                            return;
+                        }
+                        mComputingSizePkgs.clear();
                         if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
                             mRunning = false;
@@ -1048,8 +1409,12 @@ public class ApplicationsState {
                                     MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
                             mMainHandler.sendMessage(m);
                         }
+                        sizesToWrite = mSizeCache.takeSnapshotIfDirty();
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
                     }
+                    if (sizesToWrite != null) {
+                        mSizeCache.write(sizesToWrite);
+                    }
                 } break;
             }
         }
@@ -633,6 +633,10 @@ public class InstalledAppDetails extends Fragment
     public void onRebuildComplete(ArrayList<AppEntry> apps) {
     }
 
+    @Override
+    public void onRebuildChanged(ApplicationsState.ChangeSet changes) {
+    }
+
     @Override
     public void onPackageSizeChanged(String packageName) {
         if (packageName.equals(mAppEntry.info.packageName)) {
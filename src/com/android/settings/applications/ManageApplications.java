@@ -741,9 +741,26 @@ public class ManageApplications extends Fragment implements
             mTab.updateStorageUsage();
         }
 
+        @Override
+        public void onRebuildChanged(ApplicationsState.ChangeSet changes) {
+            if (mBaseEntries == null) {
+                // Still waiting for the first list.
+                return;
+            }
+            changes.applyTo(mBaseEntries);
+            mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
+            notifyDataSetChanged();
+            mTab.updateStorageUsage();
+        }
+
         @Override
         public void onPackageListChanged() {
-            rebuild(false);
+            if (mBaseEntries == null) {
+                rebuild(false);
+            } else {
+                // Only the changed packages are updated, in the background.
+                mSession.rebuildIncremental();
+            }
         }
 
         @Override
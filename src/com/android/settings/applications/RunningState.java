@@ -37,6 +37,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.format.Formatter;
@@ -48,6 +49,7 @@ import com.android.settings.Utils;
 import com.android.settings.drawable.CircleFramedDrawable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -71,10 +73,18 @@ public class RunningState {
     static final int MSG_UPDATE_TIME = 4;
 
     static final long TIME_UPDATE_DELAY = 1000;
+    // The contents are updated every CONTENTS_UPDATE_DELAY while they are changing; the delay
+    // then doubles each time an update finds nothing changed, up to MAX_CONTENTS_UPDATE_DELAY.
     static final long CONTENTS_UPDATE_DELAY = 2000;
+    static final long MAX_CONTENTS_UPDATE_DELAY = 8000;
 
     static final int MAX_SERVICES = 100;
 
+    // The PSS of a process is sampled again when it is older than PSS_SAMPLE_TTL, but for at
+    // most MAX_STALE_PSS_SAMPLES processes per update, in a round robin.
+    static final long PSS_SAMPLE_TTL = 10000;
+    static final int MAX_STALE_PSS_SAMPLES = 8;
+
     final Context mApplicationContext;
     final ActivityManager mAm;
     final PackageManager mPm;
@@ -128,17 +138,27 @@ public class RunningState {
     final SparseArray<UserState> mUsers = new SparseArray<UserState>();
 
     static class AppProcessInfo {
-        final ActivityManager.RunningAppProcessInfo info;
+        ActivityManager.RunningAppProcessInfo info;
         boolean hasServices;
         boolean hasForegroundServices;
 
-        AppProcessInfo(ActivityManager.RunningAppProcessInfo _info) {
+        void set(ActivityManager.RunningAppProcessInfo _info) {
             info = _info;
+            hasServices = false;
+            hasForegroundServices = false;
         }
     }
 
-    // Temporary structure used when updating above information.
+    // Temporary structures used when updating above information, kept
+    // across updates so that they do not need to be allocated again.
     final SparseArray<AppProcessInfo> mTmpAppProcesses = new SparseArray<AppProcessInfo>();
+    final ArrayList<AppProcessInfo> mRecycledAppProcesses = new ArrayList<AppProcessInfo>();
+    final ArrayList<ProcessItem> mTmpSortedProcesses = new ArrayList<ProcessItem>();
+    final ArrayList<BaseItem> mTmpItems = new ArrayList<BaseItem>();
+    final ArrayList<MergedItem> mTmpMergedItems = new ArrayList<MergedItem>();
+    final ArrayList<ProcessItem> mTmpSampledProcesses = new ArrayList<ProcessItem>();
+    int[] mTmpPids;
+    int mPssSampleCursor;
 
     int mSequence = 0;
 
@@ -225,6 +245,9 @@ public class RunningState {
 
     final HandlerThread mBackgroundThread;
     final class BackgroundHandler extends Handler {
+        // Only used by the background thread.
+        long mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+
         public BackgroundHandler(Looper looper) {
             super(looper);
         }
@@ -241,12 +264,21 @@ public class RunningState {
                             return;
                         }
                     }
+                    // arg1 is set when the update has been requested, for example
+                    // after the user stopped something: come back to the fast rate.
+                    final boolean changed = update(mApplicationContext, mAm);
+                    if (changed || msg.arg1 != 0) {
+                        mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+                    } else {
+                        mContentsUpdateDelay = Math.min(mContentsUpdateDelay * 2,
+                                MAX_CONTENTS_UPDATE_DELAY);
+                    }
                     Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
+                    cmd.arg1 = changed ? 1 : 0;
                     mHandler.sendMessage(cmd);
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    sendMessageDelayed(msg, mContentsUpdateDelay);
                     break;
             }
         }
@@ -360,6 +392,11 @@ public class RunningState {
         
         int mRunningSeq;
         ActivityManager.RunningAppProcessInfo mRunningProcessInfo;
+
+        // Last PSS sampled, in KB, and the pid and time it was sampled for.
+        long mPss;
+        int mPssPid = -1;
+        long mPssTime;
         
         MergedItem mMergedItem;
 
@@ -644,6 +681,23 @@ public class RunningState {
             return false;
         }
         
+        /**
+         * Return whether this item is made of the given process and, as its other
+         * processes, of procs from first (inclusive) to last (exclusive).
+         */
+        boolean hasProcesses(ProcessItem process, ArrayList<ProcessItem> procs,
+                int first, int last) {
+            if (mProcess != process || mOtherProcesses.size() != Math.max(0, last - first)) {
+                return false;
+            }
+            for (int i=first; i<last; i++) {
+                if (mOtherProcesses.get(i - first) != procs.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         boolean updateSize(Context context) {
             if (mUser != null) {
                 mSize = 0;
@@ -765,7 +819,8 @@ public class RunningState {
                 mBackgroundHandler.sendEmptyMessage(MSG_RESET_CONTENTS);
             }
             if (!mBackgroundHandler.hasMessages(MSG_UPDATE_CONTENTS)) {
-                mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
+                mBackgroundHandler.sendMessage(
+                        mBackgroundHandler.obtainMessage(MSG_UPDATE_CONTENTS, 1, 0));
             }
             mHandler.sendEmptyMessage(MSG_UPDATE_TIME);
         }
@@ -774,7 +829,8 @@ public class RunningState {
     void updateNow() {
         synchronized (mLock) {
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
-            mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
+            mBackgroundHandler.sendMessage(
+                    mBackgroundHandler.obtainMessage(MSG_UPDATE_CONTENTS, 1, 0));
         }
     }
 
@@ -899,10 +955,19 @@ public class RunningState {
         List<ActivityManager.RunningAppProcessInfo> processes
                 = am.getRunningAppProcesses();
         final int NP = processes != null ? processes.size() : 0;
+        for (int i=0; i<mTmpAppProcesses.size(); i++) {
+            AppProcessInfo ainfo = mTmpAppProcesses.valueAt(i);
+            ainfo.info = null;
+            mRecycledAppProcesses.add(ainfo);
+        }
         mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
             ActivityManager.RunningAppProcessInfo pi = processes.get(i);
-            mTmpAppProcesses.put(pi.pid, new AppProcessInfo(pi));
+            final int N = mRecycledAppProcesses.size();
+            AppProcessInfo ainfo = N > 0
+                    ? mRecycledAppProcesses.remove(N - 1) : new AppProcessInfo();
+            ainfo.set(pi);
+            mTmpAppProcesses.put(pi.pid, ainfo);
         }
 
         // Initial iteration through running services to collect per-process
@@ -1124,7 +1189,8 @@ public class RunningState {
 
         if (changed) {
             // First determine an order for the services.
-            ArrayList<ProcessItem> sortedProcesses = new ArrayList<ProcessItem>();
+            final ArrayList<ProcessItem> sortedProcesses = mTmpSortedProcesses;
+            sortedProcesses.clear();
             for (int i=0; i<mServiceProcessesByName.size(); i++) {
                 for (ProcessItem pi : mServiceProcessesByName.valueAt(i).values()) {
                     pi.mIsSystem = false;
@@ -1150,8 +1216,13 @@ public class RunningState {
             
             Collections.sort(sortedProcesses, mServiceProcessComparator);
             
-            ArrayList<BaseItem> newItems = new ArrayList<BaseItem>();
-            ArrayList<MergedItem> newMergedItems = new ArrayList<MergedItem>();
+            // The lists are built in scratch lists, and only published if
+            // they differ from the current ones, as the UI rebuilds its
+            // views each time it is given new lists.
+            final ArrayList<BaseItem> newItems = mTmpItems;
+            final ArrayList<MergedItem> newMergedItems = mTmpMergedItems;
+            newItems.clear();
+            newMergedItems.clear();
             mProcessItems.clear();
             for (int i=0; i<sortedProcesses.size(); i++) {
                 ProcessItem pi = sortedProcesses.get(i);
@@ -1168,7 +1239,7 @@ public class RunningState {
                 
                 // Now add the services running in it.
                 MergedItem mergedItem = null;
-                boolean haveAllMerged = false;
+                boolean haveAllMerged = true;
                 boolean needDivider = false;
                 for (ServiceItem si : pi.mServices.values()) {
                     si.mNeedDivider = needDivider;
@@ -1185,7 +1256,9 @@ public class RunningState {
                 }
                 
                 if (!haveAllMerged || mergedItem == null
-                        || mergedItem.mServices.size() != pi.mServices.size()) {
+                        || mergedItem.mServices.size() != pi.mServices.size()
+                        || !mergedItem.hasProcesses(pi, mProcessItems, firstProc,
+                                mProcessItems.size() - 1)) {
                     // Whoops, we need to build a new MergedItem!
                     mergedItem = new MergedItem(pi.mUserId);
                     for (ServiceItem si : pi.mServices.values()) {
@@ -1238,10 +1311,15 @@ public class RunningState {
                 }
             }
 
-            synchronized (mLock) {
-                mItems = newItems;
-                mMergedItems = newMergedItems;
+            sortedProcesses.clear();
+            if (!newItems.equals(mItems) || !newMergedItems.equals(mMergedItems)) {
+                synchronized (mLock) {
+                    mItems = new ArrayList<BaseItem>(newItems);
+                    mMergedItems = new ArrayList<MergedItem>(newMergedItems);
+                }
             }
+            newItems.clear();
+            newMergedItems.clear();
         }
         
         // Count number of interesting other (non-active) processes, and
@@ -1281,17 +1359,12 @@ public class RunningState {
         ArrayList<MergedItem> newUserBackgroundItems = null;
         boolean diffUsers = false;
         try {
+            sampleProcessMemory();
             final int numProc = mAllProcessItems.size();
-            int[] pids = new int[numProc];
-            for (int i=0; i<numProc; i++) {
-                pids[i] = mAllProcessItems.get(i).mPid;
-            }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
             int bgIndex = 0;
-            for (int i=0; i<pids.length; i++) {
+            for (int i=0; i<numProc; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
-                changed |= proc.updateSize(context, pss[i], mSequence);
+                changed |= proc.updateSize(context, proc.mPss, mSequence);
                 if (proc.mCurSeq == mSequence) {
                     serviceProcessMemory += proc.mSize;
                 } else if (proc.mRunningProcessInfo.importance >=
@@ -1403,6 +1476,61 @@ public class RunningState {
         return changed;
     }
     
+    /**
+     * Update the PSS of the processes of mAllProcessItems with a single call to the activity
+     * manager.  The processes never sampled, or whose pid changed, are always sampled; the ones
+     * sampled more than PSS_SAMPLE_TTL ago are sampled in a round robin, a few per update, so
+     * that the cost of an update does not grow with the number of processes.
+     */
+    private void sampleProcessMemory() throws RemoteException {
+        final long now = SystemClock.uptimeMillis();
+        final int numProc = mAllProcessItems.size();
+        final ArrayList<ProcessItem> sampled = mTmpSampledProcesses;
+        sampled.clear();
+        int staleSamples = 0;
+        int nextCursor = mPssSampleCursor;
+        for (int n=0; n<numProc; n++) {
+            final int i = (mPssSampleCursor + n) % numProc;
+            ProcessItem proc = mAllProcessItems.get(i);
+            if (proc.mPid <= 0) {
+                // Nothing running (a service being restarted).
+                proc.mPss = 0;
+                proc.mPssPid = proc.mPid;
+            } else if (proc.mPssPid != proc.mPid) {
+                sampled.add(proc);
+            } else if (staleSamples < MAX_STALE_PSS_SAMPLES
+                    && now - proc.mPssTime >= PSS_SAMPLE_TTL) {
+                sampled.add(proc);
+                staleSamples++;
+                nextCursor = i + 1;
+            }
+        }
+        mPssSampleCursor = nextCursor;
+
+        final int numSampled = sampled.size();
+        if (numSampled == 0) {
+            return;
+        }
+        // Only grows with the number of processes; the activity manager takes exactly the pids
+        // to sample, so it gets a copy unless they fill the buffer.
+        if (mTmpPids == null || mTmpPids.length < numSampled) {
+            mTmpPids = new int[numProc];
+        }
+        for (int i=0; i<numSampled; i++) {
+            mTmpPids[i] = sampled.get(i).mPid;
+        }
+        final int[] pids = numSampled == mTmpPids.length
+                ? mTmpPids : Arrays.copyOf(mTmpPids, numSampled);
+        long[] pss = ActivityManagerNative.getDefault().getProcessPss(pids);
+        for (int i=0; i<numSampled; i++) {
+            ProcessItem proc = sampled.get(i);
+            proc.mPss = pss[i];
+            proc.mPssPid = pids[i];
+            proc.mPssTime = now;
+        }
+        sampled.clear();
+    }
+
     ArrayList<BaseItem> getCurrentItems() {
         synchronized (mLock) {
             return mItems;
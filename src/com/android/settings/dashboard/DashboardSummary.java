@@ -35,6 +35,10 @@ import android.widget.TextView;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 public class DashboardSummary extends Fragment {
@@ -43,6 +47,59 @@ public class DashboardSummary extends Fragment {
     private LayoutInflater mLayoutInflater;
     private ViewGroup mDashboard;
 
+    private static class CategoryHolder {
+        final View view;
+        final TextView title;
+        final ViewGroup content;
+
+        CategoryHolder(View view) {
+            this.view = view;
+            title = (TextView) view.findViewById(R.id.category_title);
+            content = (ViewGroup) view.findViewById(R.id.category_content);
+        }
+    }
+
+    // The categories shown, in order, and the tile views not shown anymore
+    private final ArrayList<CategoryHolder> mCategoryHolders = new ArrayList<CategoryHolder>();
+    private final ArrayList<DashboardTileView> mRecycledTileViews =
+            new ArrayList<DashboardTileView>();
+
+    /**
+     * Timings of {@link #rebuildUI(Context)}, kept for the whole process and dumped with the
+     * activity.  Only used from the main thread.
+     */
+    private static class RebuildStats {
+        int count;
+        long totalMillis;
+        long maxMillis;
+        long lastMillis;
+        int reboundTiles;
+        int createdTiles;
+
+        void add(long millis, int rebound, int created) {
+            count++;
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+            lastMillis = millis;
+            reboundTiles += rebound;
+            createdTiles += created;
+        }
+
+        void dump(String prefix, PrintWriter pw) {
+            pw.print(prefix); pw.print("rebuildUI: count="); pw.print(count);
+            if (count > 0) {
+                pw.print(" avg="); pw.print(totalMillis / count);
+                pw.print("ms max="); pw.print(maxMillis);
+                pw.print("ms last="); pw.print(lastMillis);
+                pw.print("ms");
+            }
+            pw.print(" reboundTiles="); pw.print(reboundTiles);
+            pw.print(" createdTiles="); pw.println(createdTiles);
+        }
+    }
+
+    private static final RebuildStats sRebuildStats = new RebuildStats();
+
     private static final int MSG_REBUILD_UI = 1;
     private Handler mHandler = new Handler() {
         @Override
@@ -59,6 +116,8 @@ public class DashboardSummary extends Fragment {
     private class HomePackageReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
+            // The activities the tiles are pointing to may have changed
+            DashboardTileCache.getInstance(context).invalidate();
             rebuildUI(context);
         }
     }
@@ -93,6 +152,8 @@ public class DashboardSummary extends Fragment {
 
         final View rootView = inflater.inflate(R.layout.dashboard, container, false);
         mDashboard = (ViewGroup) rootView.findViewById(R.id.dashboard_container);
+        mCategoryHolders.clear();
+        mRecycledTileViews.clear();
 
         return rootView;
     }
@@ -106,45 +167,118 @@ public class DashboardSummary extends Fragment {
         long start = System.currentTimeMillis();
         final Resources res = getResources();
 
-        mDashboard.removeAllViews();
-
         List<DashboardCategory> categories =
                 ((SettingsActivity) context).getDashboardCategories(true);
 
+        // The tile views currently shown, by tile id, for reusing them wherever their tile is
+        // now.  The other views are detached and kept for the new tiles.
+        final HashMap<Long, DashboardTileView> tileViews = new HashMap<Long, DashboardTileView>();
+        for (int n = 0; n < mCategoryHolders.size(); n++) {
+            final ViewGroup content = mCategoryHolders.get(n).content;
+            for (int i = 0; i < content.getChildCount(); i++) {
+                final DashboardTileView tileView = (DashboardTileView) content.getChildAt(i);
+                final DashboardTile tile = tileView.getTile();
+                if (tile.id == DashboardTile.TILE_ID_UNDEFINED
+                        || tileViews.containsKey(tile.id)) {
+                    continue;
+                }
+                tileViews.put(tile.id, tileView);
+            }
+        }
+
+        int rebound = 0;
+        int created = 0;
         final int count = categories.size();
 
         for (int n = 0; n < count; n++) {
             DashboardCategory category = categories.get(n);
 
-            View categoryView = mLayoutInflater.inflate(R.layout.dashboard_category, mDashboard,
-                    false);
+            final CategoryHolder holder;
+            if (n < mCategoryHolders.size()) {
+                holder = mCategoryHolders.get(n);
+            } else {
+                holder = new CategoryHolder(mLayoutInflater.inflate(R.layout.dashboard_category,
+                        mDashboard, false));
+                mCategoryHolders.add(holder);
+                // Add the category
+                mDashboard.addView(holder.view);
+            }
 
-            TextView categoryLabel = (TextView) categoryView.findViewById(R.id.category_title);
-            categoryLabel.setText(category.getTitle(res));
+            final CharSequence title = category.getTitle(res);
+            if (!TextUtils.equals(title, holder.title.getText())) {
+                holder.title.setText(title);
+            }
 
-            ViewGroup categoryContent =
-                    (ViewGroup) categoryView.findViewById(R.id.category_content);
+            ViewGroup categoryContent = holder.content;
 
             final int tilesCount = category.getTilesCount();
             for (int i = 0; i < tilesCount; i++) {
                 DashboardTile tile = category.getTile(i);
 
-                DashboardTileView tileView = new DashboardTileView(context);
-                updateTileView(context, res, tile, tileView.getImageView(),
-                        tileView.getTitleTextView(), tileView.getStatusTextView());
-
+                DashboardTileView tileView = tileViews.remove(tile.id);
+                if (tileView == null || !isSameDisplay(tileView.getTile(), tile)) {
+                    if (tileView == null && !mRecycledTileViews.isEmpty()) {
+                        tileView = mRecycledTileViews.remove(mRecycledTileViews.size() - 1);
+                    } else if (tileView == null) {
+                        tileView = new DashboardTileView(context);
+                        created++;
+                    }
+                    updateTileView(context, res, tile, tileView.getImageView(),
+                            tileView.getTitleTextView(), tileView.getStatusTextView());
+                    rebound++;
+                }
                 tileView.setTile(tile);
 
-                categoryContent.addView(tileView);
+                if (tileView.getParent() != categoryContent
+                        || categoryContent.indexOfChild(tileView) != i) {
+                    if (tileView.getParent() != null) {
+                        ((ViewGroup) tileView.getParent()).removeView(tileView);
+                    }
+                    categoryContent.addView(tileView, i);
+                }
             }
 
-            // Add the category
-            mDashboard.addView(categoryView);
+            // Keep the views of the removed tiles for later
+            while (categoryContent.getChildCount() > tilesCount) {
+                final int last = categoryContent.getChildCount() - 1;
+                final DashboardTileView tileView =
+                        (DashboardTileView) categoryContent.getChildAt(last);
+                categoryContent.removeViewAt(last);
+                tileViews.values().remove(tileView);
+                mRecycledTileViews.add(tileView);
+            }
+        }
+
+        // Remove the categories that are gone
+        while (mCategoryHolders.size() > count) {
+            final CategoryHolder holder = mCategoryHolders.remove(mCategoryHolders.size() - 1);
+            final ViewGroup content = holder.content;
+            for (int i = content.getChildCount() - 1; i >= 0; i--) {
+                final DashboardTileView tileView = (DashboardTileView) content.getChildAt(i);
+                content.removeViewAt(i);
+                tileViews.values().remove(tileView);
+                mRecycledTileViews.add(tileView);
+            }
+            mDashboard.removeView(holder.view);
         }
+
         long delta = System.currentTimeMillis() - start;
+        sRebuildStats.add(delta, rebound, created);
         Log.d(LOG_TAG, "rebuildUI took: " + delta + " ms");
     }
 
+    /**
+     * @return true if a view showing the old tile would not change for the new one.
+     */
+    private static boolean isSameDisplay(DashboardTile oldTile, DashboardTile tile) {
+        return oldTile != null
+                && oldTile.iconRes == tile.iconRes
+                && oldTile.titleRes == tile.titleRes
+                && TextUtils.equals(oldTile.title, tile.title)
+                && oldTile.summaryRes == tile.summaryRes
+                && TextUtils.equals(oldTile.summary, tile.summary);
+    }
+
     private void updateTileView(Context context, Resources res, DashboardTile tile,
             ImageView tileIcon, TextView tileTextView, TextView statusTextView) {
 
@@ -166,6 +300,12 @@ public class DashboardSummary extends Fragment {
         }
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        sRebuildStats.dump(prefix, writer);
+    }
+
     private void sendRebuildUI() {
         if (!mHandler.hasMessages(MSG_REBUILD_UI)) {
             mHandler.sendEmptyMessage(MSG_REBUILD_UI);
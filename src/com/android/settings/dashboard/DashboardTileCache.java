@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Parcel;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the last list of dashboard categories built by the SettingsActivity together with a key
+ * describing everything that decided which tiles are visible (features, user restrictions, tile
+ * target packages, locale...).
+ *
+ * The list is kept in memory and in a file, so that the categories are not parsed and the tiles
+ * not checked again with the PackageManager, even in a new process, as long as the key does not
+ * change.
+ */
+public class DashboardTileCache {
+    private static final String LOG_TAG = "DashboardTileCache";
+
+    private static final String FILE_NAME = "dashboard_tiles";
+    private static final int VERSION = 1;
+
+    private static DashboardTileCache sInstance;
+
+    private final AtomicFile mFile;
+
+    private boolean mLoaded;
+    private String mKey;
+    private ArrayList<String> mTargetPackages = new ArrayList<String>();
+    // The categories, marshalled so that each caller gets its own copy
+    private byte[] mData;
+
+    public static synchronized DashboardTileCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DashboardTileCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DashboardTileCache(Context context) {
+        mFile = new AtomicFile(new File(context.getCacheDir(), FILE_NAME));
+    }
+
+    /**
+     * @return the packages of the activities the cached tiles are pointing to, which are part
+     *         of the key.
+     */
+    public synchronized List<String> getTargetPackages() {
+        loadIfNeeded();
+        return Collections.unmodifiableList(mTargetPackages);
+    }
+
+    /**
+     * @return a copy of the cached categories if they were built for the given key, or null.
+     */
+    public synchronized List<DashboardCategory> get(String key) {
+        loadIfNeeded();
+        if (mData == null || !key.equals(mKey)) {
+            return null;
+        }
+        return unmarshall(mData);
+    }
+
+    public synchronized void put(final String key, List<String> targetPackages,
+            List<DashboardCategory> categories) {
+        mLoaded = true;
+        mKey = key;
+        mTargetPackages = new ArrayList<String>(targetPackages);
+        mData = marshall(categories);
+
+        final ArrayList<String> packages = mTargetPackages;
+        final byte[] data = mData;
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(key, packages, data);
+            }
+        });
+    }
+
+    /**
+     * Forget the cached categories, for example when packages have been installed or updated.
+     */
+    public synchronized void invalidate() {
+        loadIfNeeded();
+        mKey = null;
+        mData = null;
+    }
+
+    private void loadIfNeeded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(mFile.openRead());
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            final String key = in.readUTF();
+            final int count = in.readInt();
+            final ArrayList<String> packages = new ArrayList<String>(count);
+            for (int n = 0; n < count; n++) {
+                packages.add(in.readUTF());
+            }
+            final byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+
+            mKey = key;
+            mTargetPackages = packages;
+            mData = data;
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot read " + mFile.getBaseFile(), e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    // Called from the serial AsyncTask executor, so the writes are never concurrent
+    private void write(String key, List<String> packages, byte[] data) {
+        synchronized (this) {
+            if (!key.equals(mKey)) {
+                // Superseded or invalidated
+                return;
+            }
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+            out.writeInt(packages.size());
+            for (String pkg : packages) {
+                out.writeUTF(pkg);
+            }
+            out.writeInt(data.length);
+            out.write(data);
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot write " + mFile.getBaseFile(), e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+
+    private static byte[] marshall(List<DashboardCategory> categories) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            final int count = categories.size();
+            parcel.writeInt(count);
+            for (int n = 0; n < count; n++) {
+                categories.get(n).writeToParcel(parcel, 0);
+            }
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static List<DashboardCategory> unmarshall(byte[] data) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            final int count = parcel.readInt();
+            final List<DashboardCategory> categories = new ArrayList<DashboardCategory>(count);
+            for (int n = 0; n < count; n++) {
+                categories.add(DashboardCategory.CREATOR.createFromParcel(parcel));
+            }
+            return categories;
+        } catch (RuntimeException e) {
+            // A corrupted file
+            Log.w(LOG_TAG, "Cannot read the cached categories", e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -26,6 +26,9 @@ import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -53,6 +56,9 @@ public class SearchResultsSummary extends Fragment {
 
     private static final String SAVE_KEY_SHOW_RESULTS = ":settings:show_results";
 
+    // Delay before querying the Index while the query is being typed
+    private static final long UPDATE_DELAY_MILLIS = 150;
+
     private SearchView mSearchView;
 
     private ListView mResultsListView;
@@ -70,6 +76,19 @@ public class SearchResultsSummary extends Fragment {
 
     private boolean mShowResults;
 
+    private final Handler mHandler = new Handler();
+
+    private final Runnable mDelayedUpdate = new Runnable() {
+        @Override
+        public void run() {
+            if (mShowResults) {
+                updateSearchResults();
+            } else {
+                updateSuggestions();
+            }
+        }
+    };
+
     /**
      * A basic AsyncTask for updating the query results cursor
      */
@@ -88,15 +107,41 @@ public class SearchResultsSummary extends Fragment {
                 cursor.close();
             }
         }
+
+        @Override
+        protected void onCancelled(Cursor cursor) {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
     }
 
     /**
      * A basic AsyncTask for updating the suggestions cursor
      */
     private class UpdateSuggestionsTask extends AsyncTask<String, Void, Cursor> {
+        private final Context mContext = getActivity().getApplicationContext();
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+        /**
+         * Cancel the task and abort its query if it is running.
+         */
+        public void abort() {
+            cancel(false);
+            mCancellationSignal.cancel();
+        }
+
         @Override
         protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).getSuggestions(params[0]);
+            if (isCancelled()) {
+                return null;
+            }
+            try {
+                return Index.getInstance(mContext).getSuggestions(params[0],
+                        mCancellationSignal);
+            } catch (OperationCanceledException e) {
+                return null;
+            }
         }
 
         @Override
@@ -108,6 +153,13 @@ public class SearchResultsSummary extends Fragment {
                 cursor.close();
             }
         }
+
+        @Override
+        protected void onCancelled(Cursor cursor) {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
     }
 
     @Override
@@ -133,6 +185,7 @@ public class SearchResultsSummary extends Fragment {
     public void onStop() {
         super.onStop();
 
+        mHandler.removeCallbacks(mDelayedUpdate);
         clearSuggestions();
         clearResults();
     }
@@ -291,13 +344,15 @@ public class SearchResultsSummary extends Fragment {
         if (TextUtils.isEmpty(mQuery)) {
             mShowResults = false;
             setResultsVisibility(false);
-            updateSuggestions();
         } else {
             mShowResults = true;
             setSuggestionsVisibility(false);
-            updateSearchResults();
         }
 
+        // Only query the Index once the user stopped typing
+        clearAllTasks();
+        mHandler.postDelayed(mDelayedUpdate, UPDATE_DELAY_MILLIS);
+
         return true;
     }
 
@@ -309,7 +364,7 @@ public class SearchResultsSummary extends Fragment {
 
     private void clearSuggestions() {
         if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
+            mUpdateSuggestionsTask.abort();
             mUpdateSuggestionsTask = null;
         }
         setSuggestionsCursor(null);
@@ -359,12 +414,13 @@ public class SearchResultsSummary extends Fragment {
     }
 
     private void clearAllTasks() {
+        mHandler.removeCallbacks(mDelayedUpdate);
         if (mUpdateSearchResultsTask != null) {
             mUpdateSearchResultsTask.cancel(false);
             mUpdateSearchResultsTask = null;
         }
         if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
+            mUpdateSuggestionsTask.abort();
             mUpdateSuggestionsTask = null;
         }
     }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import com.android.settings.deviceinfo.StorageMeasurement.FileInfo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The top level files and directories of a volume that are not counted as media, kept in
+ * descending order of their sizes as they are measured, so that the largest ones can be shown
+ * before the measurement completes.
+ *
+ * Thread safe; the listener is called on the thread that changed the list, without the list
+ * locked.
+ */
+class MiscFileList {
+    interface Listener {
+        void onMiscFilesChanged(MiscFileList files);
+    }
+
+    private final ArrayList<FileInfo> mFiles = new ArrayList<FileInfo>();
+    private long mTotalSize;
+    private boolean mComplete;
+    private Listener mListener;
+
+    void add(FileInfo info) {
+        final Listener listener;
+        synchronized (this) {
+            int index = Collections.binarySearch(mFiles, info);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            mFiles.add(index, info);
+            mTotalSize += info.mSize;
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onMiscFilesChanged(this);
+        }
+    }
+
+    void removeAll(Collection<FileInfo> infos) {
+        final Listener listener;
+        synchronized (this) {
+            for (FileInfo info : infos) {
+                if (mFiles.remove(info)) {
+                    mTotalSize -= info.mSize;
+                }
+            }
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onMiscFilesChanged(this);
+        }
+    }
+
+    /**
+     * Replace a file by another, for instance once it has been measured again.
+     */
+    void replace(FileInfo oldInfo, FileInfo info) {
+        final Listener listener;
+        synchronized (this) {
+            if (mFiles.remove(oldInfo)) {
+                mTotalSize -= oldInfo.mSize;
+            }
+            int index = Collections.binarySearch(mFiles, info);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            mFiles.add(index, info);
+            mTotalSize += info.mSize;
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onMiscFilesChanged(this);
+        }
+    }
+
+    /**
+     * Called once every file has been measured.
+     */
+    void setComplete() {
+        final Listener listener;
+        synchronized (this) {
+            mComplete = true;
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onMiscFilesChanged(this);
+        }
+    }
+
+    synchronized boolean isComplete() {
+        return mComplete;
+    }
+
+    synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    synchronized int getCount() {
+        return mFiles.size();
+    }
+
+    synchronized long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * @return the files with the given ids that are still in the list, largest first.
+     */
+    synchronized List<FileInfo> getByIds(long[] ids) {
+        final HashSet<Long> idSet = new HashSet<Long>(ids.length);
+        for (long id : ids) {
+            idSet.add(id);
+        }
+        final ArrayList<FileInfo> files = new ArrayList<FileInfo>(ids.length);
+        for (int i = 0; i < mFiles.size() && files.size() < ids.length; i++) {
+            final FileInfo info = mFiles.get(i);
+            if (idSet.contains(info.mId)) {
+                files.add(info);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return a copy of the largest files measured so far, at most {@code max} of them.
+     */
+    synchronized List<FileInfo> getLargest(int max) {
+        return new ArrayList<FileInfo>(mFiles.subList(0, Math.min(max, mFiles.size())));
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.settings.deviceinfo.StorageMeasurement.FileInfo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes misc files and directories in the background.
+ *
+ * Directory trees are walked on a small {@link ForkJoinPool}: each directory is a task that
+ * forks one per subdirectory, so that the threads done with their own part of a deep tree steal
+ * the subtrees left by the others.  The files of a directory are deleted in batches, between
+ * which the cancellation is checked and the progress is published; the listener gets it on the
+ * main thread, at most every {@link #PROGRESS_INTERVAL}.
+ *
+ * Once done, the deleted files are removed from the {@link MiscFileList} and the freed bytes are
+ * handed to the {@link StorageMeasurement}, so that the storage summary is updated without
+ * waiting for the volume to be measured again.
+ */
+class MiscFilesDeleter {
+    private static final String TAG = "MiscFilesDeleter";
+
+    private static final int PARALLELISM = 2;
+    private static final int BATCH_SIZE = 64;
+    private static final long PROGRESS_INTERVAL = 200;
+
+    interface Listener {
+        void onDeleteProgress(long deletedFiles, long freedBytes);
+        void onDeleteFinished(long freedBytes, boolean cancelled);
+    }
+
+    private static ForkJoinPool sPool;
+
+    private final Context mContext;
+    private final StorageMeasurement mMeasurement;
+    private final MiscFileList mFiles;
+    private final List<FileInfo> mTargets;
+    // Bytes freed under each target
+    private final AtomicLong[] mTargetFreedBytes;
+
+    private final AtomicLong mDeletedFiles = new AtomicLong();
+    private final AtomicLong mFreedBytes = new AtomicLong();
+    private final AtomicBoolean mProgressPending = new AtomicBoolean();
+    private volatile boolean mCancelled;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Only used on the main thread
+    private Listener mListener;
+
+    private final Runnable mPublishProgress = new Runnable() {
+        @Override
+        public void run() {
+            mProgressPending.set(false);
+            if (mListener != null) {
+                mListener.onDeleteProgress(mDeletedFiles.get(), mFreedBytes.get());
+            }
+        }
+    };
+
+    MiscFilesDeleter(Context context, StorageMeasurement measurement, MiscFileList files,
+            List<FileInfo> targets) {
+        mContext = context.getApplicationContext();
+        mMeasurement = measurement;
+        mFiles = files;
+        mTargets = new ArrayList<FileInfo>(targets);
+        mTargetFreedBytes = new AtomicLong[mTargets.size()];
+        for (int i = 0; i < mTargetFreedBytes.length; i++) {
+            mTargetFreedBytes[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Set the listener, or null to keep deleting without reporting, for instance once the
+     * screen is gone.  Must be called on the main thread.
+     */
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    void start() {
+        getPool().execute(new DeleteTargetsTask());
+    }
+
+    /**
+     * Stop deleting, between two batches.  What was deleted so far is still reported.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool(PARALLELISM, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    final ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                        @Override
+                        protected void onStart() {
+                            super.onStart();
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        }
+                    };
+                    thread.setName(TAG + " #" + thread.getPoolIndex());
+                    return thread;
+                }
+            }, null, false);
+        }
+        return sPool;
+    }
+
+    private void publish(int target, int files, long bytes) {
+        if (files == 0) {
+            return;
+        }
+        mTargetFreedBytes[target].addAndGet(bytes);
+        mFreedBytes.addAndGet(bytes);
+        mDeletedFiles.addAndGet(files);
+        if (mProgressPending.compareAndSet(false, true)) {
+            mHandler.postDelayed(mPublishProgress, PROGRESS_INTERVAL);
+        }
+    }
+
+    /**
+     * Delete all the targets, then update the list, the size index and the measurement.
+     */
+    private class DeleteTargetsTask extends RecursiveAction {
+        @Override
+        protected void compute() {
+            final ArrayList<DeleteDirectoryTask> tasks = new ArrayList<DeleteDirectoryTask>();
+            for (int i = 0; i < mTargets.size(); i++) {
+                final File file = new File(mTargets.get(i).mFileName);
+                if (file.isDirectory()) {
+                    tasks.add(new DeleteDirectoryTask(i, file));
+                } else if (!mCancelled) {
+                    final long length = file.length();
+                    if (file.delete()) {
+                        publish(i, 1, length);
+                    }
+                }
+            }
+            invokeAll(tasks);
+            finish();
+        }
+
+        private void finish() {
+            final MiscSizeIndex index = MiscSizeIndex.getInstance(mContext);
+            index.load();
+            for (int i = 0; i < mTargets.size(); i++) {
+                final FileInfo target = mTargets.get(i);
+                // Whatever was deleted in it, its size is no longer known
+                index.remove(target.mFileName);
+
+                final long freedBytes = mTargetFreedBytes[i].get();
+                if (!new File(target.mFileName).exists()) {
+                    mFiles.removeAll(Collections.singletonList(target));
+                } else if (freedBytes > 0) {
+                    mFiles.replace(target, new FileInfo(target.mFileName,
+                            Math.max(0, target.mSize - freedBytes), target.mId));
+                }
+            }
+            index.write();
+
+            final long freedBytes = mFreedBytes.get();
+            if (StorageMeasurement.LOGV) {
+                Log.i(TAG, "Deleted " + mDeletedFiles.get() + " files, " + freedBytes
+                        + " bytes" + (mCancelled ? ", cancelled" : ""));
+            }
+            mMeasurement.onMiscFilesDeleted(freedBytes);
+
+            final boolean cancelled = mCancelled;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mHandler.removeCallbacks(mPublishProgress);
+                    if (mListener != null) {
+                        mListener.onDeleteFinished(freedBytes, cancelled);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Delete the files of a directory in batches and its subdirectories in forked tasks, then
+     * the directory itself.
+     */
+    private class DeleteDirectoryTask extends RecursiveAction {
+        private final int mTarget;
+        private final File mDir;
+
+        DeleteDirectoryTask(int target, File dir) {
+            mTarget = target;
+            mDir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            if (mCancelled) {
+                return;
+            }
+            final File[] children = mDir.listFiles();
+            if (children != null) {
+                final ArrayList<DeleteDirectoryTask> subdirs =
+                        new ArrayList<DeleteDirectoryTask>();
+                int files = 0;
+                long bytes = 0;
+                for (File child : children) {
+                    if (child.isDirectory()) {
+                        subdirs.add(new DeleteDirectoryTask(mTarget, child));
+                        continue;
+                    }
+                    final long length = child.length();
+                    if (child.delete()) {
+                        files++;
+                        bytes += length;
+                    }
+                    if (files == BATCH_SIZE) {
+                        publish(mTarget, files, bytes);
+                        files = 0;
+                        bytes = 0;
+                        if (mCancelled) {
+                            return;
+                        }
+                    }
+                }
+                publish(mTarget, files, bytes);
+                invokeAll(subdirs);
+            }
+            if (!mCancelled) {
+                // Fails if something in it could not be deleted
+                mDir.delete();
+            }
+        }
+    }
+}
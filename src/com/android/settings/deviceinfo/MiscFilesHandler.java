@@ -18,12 +18,14 @@ package com.android.settings.deviceinfo;
 
 import android.app.Activity;
 import android.app.ListActivity;
+import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.storage.StorageVolume;
 import android.text.format.Formatter;
 import android.util.Log;
-import android.util.SparseBooleanArray;
 import android.view.ActionMode;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -41,8 +43,8 @@ import android.widget.ListView;
 import com.android.settings.R;
 import com.android.settings.deviceinfo.StorageMeasurement.FileInfo;
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 /**
@@ -55,6 +57,28 @@ public class MiscFilesHandler extends ListActivity {
     private MemoryMearurementAdapter mAdapter;
     private LayoutInflater mInflater;
 
+    // Deletion running, or null
+    private MiscFilesDeleter mDeleter;
+    private ProgressDialog mDeleteDialog;
+
+    private final MiscFilesDeleter.Listener mDeleteListener = new MiscFilesDeleter.Listener() {
+        @Override
+        public void onDeleteProgress(long deletedFiles, long freedBytes) {
+            if (mDeleteDialog != null) {
+                mDeleteDialog.setMessage(getDeletingMessage(freedBytes));
+            }
+        }
+
+        @Override
+        public void onDeleteFinished(long freedBytes, boolean cancelled) {
+            mDeleter = null;
+            if (mDeleteDialog != null) {
+                mDeleteDialog.dismiss();
+                mDeleteDialog = null;
+            }
+        }
+    };
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -72,18 +96,63 @@ public class MiscFilesHandler extends ListActivity {
         setListAdapter(mAdapter);
     } 
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mAdapter.release();
+        if (mDeleter != null) {
+            // Let the deletion complete, it still updates the measurement
+            mDeleter.setListener(null);
+            mDeleter = null;
+        }
+        if (mDeleteDialog != null) {
+            mDeleteDialog.dismiss();
+            mDeleteDialog = null;
+        }
+    }
+
+    private String getDeletingMessage(long freedBytes) {
+        return getString(R.string.misc_files_deleting, Formatter.formatFileSize(this, freedBytes));
+    }
+
+    /**
+     * Delete the given files in the background, showing the space freed until done.
+     */
+    private void startDelete(List<FileInfo> infos) {
+        mDeleter = new MiscFilesDeleter(this, mAdapter.getMeasurement(), mAdapter.getFiles(),
+                infos);
+        mDeleter.setListener(mDeleteListener);
+
+        mDeleteDialog = new ProgressDialog(this);
+        mDeleteDialog.setMessage(getDeletingMessage(0));
+        mDeleteDialog.setIndeterminate(true);
+        mDeleteDialog.setCancelable(false);
+        mDeleteDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(R.string.cancel),
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (mDeleter != null) {
+                            // The dialog is dismissed once the current batch is done
+                            mDeleter.cancel();
+                        }
+                    }
+                });
+        mDeleteDialog.show();
+
+        mDeleter.start();
+    }
+
     private class ModeCallback implements ListView.MultiChoiceModeListener {
-        private int mDataCount;
         private final Context mContext;
 
         public ModeCallback(Context context) {
             mContext = context;
-            mDataCount = mAdapter.getCount();
         }
 
         public boolean onCreateActionMode(ActionMode mode, Menu menu) {
             final MenuInflater inflater = getMenuInflater();
             inflater.inflate(R.menu.misc_files_menu, menu);
+            mAdapter.setKeepPositions(true);
             return true;
         }
 
@@ -95,42 +164,25 @@ public class MiscFilesHandler extends ListActivity {
             ListView lv = getListView();
             switch (item.getItemId()) {
             case R.id.action_delete:
-                // delete the files selected
-                SparseBooleanArray checkedItems = lv.getCheckedItemPositions();
-                int checkedCount = getListView().getCheckedItemCount();
-                if (checkedCount > mDataCount) {
-                    throw new IllegalStateException("checked item counts do not match. " +
-                            "checkedCount: " + checkedCount + ", dataSize: " + mDataCount);
-                }
-                if (mDataCount > 0) {
-                    ArrayList<Object> toRemove = new ArrayList<Object>();
-                    for (int i = 0; i < mDataCount; i++) {
-                        if (!checkedItems.get(i)) {
-                            //item not selected
-                            continue;
-                        }
-                        if (StorageMeasurement.LOGV) {
-                            Log.i(TAG, "deleting: " + mAdapter.getItem(i));
+                // delete the files selected, found by id as the rows may have moved since
+                final List<FileInfo> toRemove = mAdapter.getFilesForIds(lv.getCheckedItemIds());
+                if (!toRemove.isEmpty() && mDeleter == null) {
+                    if (StorageMeasurement.LOGV) {
+                        for (FileInfo info : toRemove) {
+                            Log.i(TAG, "deleting: " + info);
                         }
-                        // delete the file
-                        File file = new File(mAdapter.getItem(i).mFileName);
-                        if (file.isDirectory()) {
-                            deleteDir(file);
-                        } else {
-                            file.delete();                            
-                        }
-                        toRemove.add(mAdapter.getItem(i));
                     }
-                    mAdapter.removeAll(toRemove);
-                    mAdapter.notifyDataSetChanged();
-                    mDataCount = mAdapter.getCount();
+                    // The list follows the files as they are removed from the measurement
+                    startDelete(toRemove);
                 }
                 mode.finish();
                 break;
 
             case R.id.action_select_all:
-                // check ALL items
-                for (int i = 0; i < mDataCount; i++) {
+                // check ALL items, including the pages not listed yet
+                mAdapter.loadAll();
+                final int allCount = mAdapter.getCount();
+                for (int i = 0; i < allCount; i++) {
                     lv.setItemChecked(i, true);
                 }
                 // update the title and subtitle with number selected and numberBytes selected
@@ -140,42 +192,22 @@ public class MiscFilesHandler extends ListActivity {
             return true;
         }
 
-        // Deletes all files and subdirectories under given dir.
-        // Returns true if all deletions were successful.
-        // If a deletion fails, the method stops attempting to delete and returns false.
-        private boolean deleteDir(File dir) {
-            String[] children = dir.list();
-            if (children != null) {
-                for (int i=0; i < children.length; i++) {
-                    boolean success = deleteDir(new File(dir, children[i]));
-                    if (!success) {
-                        return false;
-                    }
-                }
-            }
-            // The directory is now empty so delete it
-            return dir.delete();
-        }
-
         public void onDestroyActionMode(ActionMode mode) {
-            // This block intentionally left blank
+            mAdapter.setKeepPositions(false);
         }
 
         public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
                 boolean checked) {
             ListView lv = getListView();
             int numChecked = lv.getCheckedItemCount();
-            mode.setTitle(String.format(mNumSelectedFormat, numChecked, mAdapter.getCount()));
+            mode.setTitle(String.format(mNumSelectedFormat, numChecked,
+                    mAdapter.getTotalCount()));
 
             // total the sizes of all items selected so far
-            SparseBooleanArray checkedItems = lv.getCheckedItemPositions();
             long selectedDataSize = 0;
             if (numChecked > 0) {
-                for (int i = 0; i < mDataCount; i++) {
-                    if (checkedItems.get(i)) {
-                        // item is checked
-                        selectedDataSize += mAdapter.getItem(i).mSize;
-                    }
+                for (FileInfo info : mAdapter.getFilesForIds(lv.getCheckedItemIds())) {
+                    selectedDataSize += info.mSize;
                 }
             }
             mode.setSubtitle(String.format(mNumBytesSelectedFormat,
@@ -184,24 +216,111 @@ public class MiscFilesHandler extends ListActivity {
         }
     }
 
-    class MemoryMearurementAdapter extends BaseAdapter {
-        private ArrayList<StorageMeasurement.FileInfo> mData = null;
-        private long mDataSize = 0;
+    /**
+     * Lists the largest misc files measured so far, a page at a time, and follows the list of
+     * the measurement as the other files are measured.
+     */
+    class MemoryMearurementAdapter extends BaseAdapter implements MiscFileList.Listener {
+        private static final int PAGE_SIZE = 50;
+
+        private final StorageMeasurement mMeasurement;
+        private final MiscFileList mFiles;
+        private List<FileInfo> mData = null;
+        private int mLimit = PAGE_SIZE;
+        private boolean mKeepPositions;
         private Context mContext;
 
+        private final Handler mHandler = new Handler();
+        private final Runnable mRefresh = new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        };
+
         public MemoryMearurementAdapter(Activity activity) {
             mContext = activity;
             final StorageVolume storageVolume = activity.getIntent().getParcelableExtra(
                     StorageVolume.EXTRA_STORAGE_VOLUME);
-            StorageMeasurement mMeasurement = StorageMeasurement.getInstance(
-                    activity, storageVolume);
-            if (mMeasurement == null) return;
-            mData = (ArrayList<StorageMeasurement.FileInfo>) mMeasurement.mFileInfoForMisc;
-            if (mData != null) {
-                for (StorageMeasurement.FileInfo info : mData) {
-                    mDataSize += info.mSize;
+            mMeasurement = StorageMeasurement.getInstance(activity, storageVolume);
+            mFiles = mMeasurement.mMiscFiles;
+            if (mFiles != null) {
+                mFiles.setListener(this);
+                mData = mFiles.getLargest(mLimit);
+            }
+        }
+
+        @Override
+        public void onMiscFilesChanged(MiscFileList files) {
+            // Called on the measuring threads
+            mHandler.removeCallbacks(mRefresh);
+            mHandler.post(mRefresh);
+        }
+
+        /**
+         * While files are being selected, keep the rows where they are so that the checked
+         * positions stay valid: the files measured meanwhile are added after them, and the
+         * list is sorted again once done.
+         */
+        void setKeepPositions(boolean keepPositions) {
+            mKeepPositions = keepPositions;
+            if (!keepPositions) {
+                mHandler.removeCallbacks(mRefresh);
+                refresh();
+            }
+        }
+
+        private void refresh() {
+            if (mFiles == null) {
+                return;
+            }
+            final List<FileInfo> largest = mFiles.getLargest(mLimit);
+            if (mKeepPositions && mData != null) {
+                final HashSet<Long> listedIds = new HashSet<Long>();
+                for (FileInfo info : mData) {
+                    listedIds.add(info.mId);
+                }
+                final ArrayList<FileInfo> data = new ArrayList<FileInfo>(mData);
+                for (FileInfo info : largest) {
+                    if (!listedIds.contains(info.mId)) {
+                        data.add(info);
+                    }
                 }
+                mData = data;
+            } else {
+                mData = largest;
+            }
+            notifyDataSetChanged();
+        }
+
+        /**
+         * @return the files with the given ids still in the measurement.
+         */
+        List<FileInfo> getFilesForIds(long[] ids) {
+            return mFiles != null ? mFiles.getByIds(ids) : new ArrayList<FileInfo>();
+        }
+
+        /**
+         * List all the files measured so far rather than a page at a time.
+         */
+        void loadAll() {
+            mLimit = Integer.MAX_VALUE;
+            mHandler.removeCallbacks(mRefresh);
+            refresh();
+        }
+
+        /**
+         * @return the number of files measured so far, listed or not.
+         */
+        int getTotalCount() {
+            return mFiles != null ? mFiles.getCount() : 0;
+        }
+
+        void release() {
+            if (mFiles != null) {
+                mFiles.setListener(null);
             }
+            mHandler.removeCallbacks(mRefresh);
         }
 
         @Override
@@ -225,18 +344,22 @@ public class MiscFilesHandler extends ListActivity {
             return mData.get(position).mId;
         }
 
-        public void removeAll(List<Object> objs) {
-            if (mData == null) {
-                return;
-            }
-            for (Object o : objs) {
-                mData.remove(o);
-                mDataSize -= ((StorageMeasurement.FileInfo) o).mSize;
-            }
+        @Override
+        public boolean hasStableIds() {
+            // Lets the list keep the checked files while larger ones are inserted before them
+            return true;
+        }
+
+        StorageMeasurement getMeasurement() {
+            return mMeasurement;
+        }
+
+        MiscFileList getFiles() {
+            return mFiles;
         }
 
         public long getDataSize() {
-            return mDataSize;
+            return mFiles != null ? mFiles.getTotalSize() : 0;
         }
 
         @Override
@@ -250,22 +373,34 @@ public class MiscFilesHandler extends ListActivity {
                     (FileItemInfoLayout) mInflater.inflate(R.layout.settings_storage_miscfiles,
                             parent, false) : (FileItemInfoLayout) convertView;
             FileInfo item = getItem(position);
+            if (position == mData.size() - 1 && mFiles.getCount() > mData.size()) {
+                // Showing the last file of the page: list the next one
+                mLimit = mData.size() + PAGE_SIZE;
+                mHandler.removeCallbacks(mRefresh);
+                mHandler.post(mRefresh);
+            }
             view.setFileName(item.mFileName);
             view.setFileSize(Formatter.formatFileSize(mContext, item.mSize));
+            // The position of a row is read when it is clicked, as the rows move when the
+            // list is refreshed
             final ListView listView = (ListView) parent;
-            final int listPosition = position;
             view.getCheckBox().setOnCheckedChangeListener(new OnCheckedChangeListener() {
                 
                 @Override
                 public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-                    listView.setItemChecked(listPosition, isChecked);
+                    final int listPosition = listView.getPositionForView(view);
+                    if (listPosition != ListView.INVALID_POSITION) {
+                        listView.setItemChecked(listPosition, isChecked);
+                    }
                 }
                 
             });
             view.setOnLongClickListener(new OnLongClickListener() {
                 @Override
                 public boolean onLongClick(View v) {
-                    if (listView.getCheckedItemCount() > 0) {
+                    final int listPosition = listView.getPositionForView(view);
+                    if (listView.getCheckedItemCount() > 0
+                            || listPosition == ListView.INVALID_POSITION) {
                         return false;
                     }
                     listView.setItemChecked(listPosition, !view.isChecked());
@@ -275,7 +410,9 @@ public class MiscFilesHandler extends ListActivity {
             view.setOnClickListener(new OnClickListener() {
                 @Override
                 public void onClick(View v) {
-                    if (listView.getCheckedItemCount() > 0) {
+                    final int listPosition = listView.getPositionForView(view);
+                    if (listView.getCheckedItemCount() > 0
+                            && listPosition != ListView.INVALID_POSITION) {
                         listView.setItemChecked(listPosition, !view.isChecked());
                     }
                 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Sizes of the top level directories measured for the misc files, kept in a file with the last
+ * modification time of each directory, so that the next scan can show a directory that did not
+ * change with its previous size while it is measured again, even in a new process.
+ *
+ * The modification time of a directory only changes when its own entries do, not when files
+ * deeper in it change, so a size is only shown for {@link #MAX_SIZE_AGE}, and never in the
+ * completed measurement.  Thread safe.
+ */
+class MiscSizeIndex {
+    private static final String TAG = "MiscSizeIndex";
+
+    private static final String FILE_NAME = "misc_sizes";
+    private static final int FILE_VERSION = 1;
+
+    private static final long MAX_SIZE_AGE = 15 * DateUtils.MINUTE_IN_MILLIS;
+    // Bound on the number of sizes written
+    private static final int MAX_SIZES = 500;
+
+    private static class Entry {
+        final long lastModified;
+        final long size;
+        final long measuredTime;
+
+        Entry(long lastModified, long size, long measuredTime) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.measuredTime = measuredTime;
+        }
+    }
+
+    private static MiscSizeIndex sInstance;
+
+    private final AtomicFile mFile;
+    // Held while the entries are copied and written to the file
+    private final Object mWriteLock = new Object();
+
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<String, Entry>();
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    static synchronized MiscSizeIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MiscSizeIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private MiscSizeIndex(Context context) {
+        mFile = new AtomicFile(new File(context.getCacheDir(), FILE_NAME));
+    }
+
+    /**
+     * @return the size stored for the directory if it was measured recently and was not
+     *         modified since, or -1.
+     */
+    synchronized long get(String path, long lastModified) {
+        final Entry entry = mEntries.get(path);
+        if (entry == null || entry.lastModified != lastModified) {
+            return -1;
+        }
+        final long age = System.currentTimeMillis() - entry.measuredTime;
+        return age >= 0 && age < MAX_SIZE_AGE ? entry.size : -1;
+    }
+
+    synchronized void put(String path, long lastModified, long size) {
+        mEntries.put(path, new Entry(lastModified, size, System.currentTimeMillis()));
+        mDirty = true;
+    }
+
+    /**
+     * Forget the size of the given directory, for instance because it was deleted.
+     */
+    synchronized void remove(String path) {
+        if (mEntries.remove(path) != null) {
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Read the file if it has not been read yet.
+     */
+    void load() {
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+        }
+        final ArrayMap<String, Entry> entries = new ArrayMap<String, Entry>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() == FILE_VERSION) {
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final String path = in.readUTF();
+                    entries.put(path, new Entry(in.readLong(), in.readLong(), in.readLong()));
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing stored yet
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + mFile.getBaseFile(), e);
+            entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+            mLoaded = true;
+            // Keep the sizes stored while the file was being read
+            for (int i = 0; i < entries.size(); i++) {
+                if (!mEntries.containsKey(entries.keyAt(i))) {
+                    mEntries.put(entries.keyAt(i), entries.valueAt(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the file if sizes were stored or removed since the last write.
+     */
+    void write() {
+        // The copy is taken with the file locked, so that an older copy is never written
+        // after a newer one
+        synchronized (mWriteLock) {
+            final ArrayMap<String, Entry> entries;
+            synchronized (this) {
+                if (!mDirty || !mLoaded) {
+                    return;
+                }
+                mDirty = false;
+                entries = new ArrayMap<String, Entry>(mEntries);
+            }
+
+            // Keep the most recently measured
+            final ArrayList<String> paths = new ArrayList<String>(entries.keySet());
+            Collections.sort(paths, new Comparator<String>() {
+                @Override
+                public int compare(String lhs, String rhs) {
+                    final long lhsTime = entries.get(lhs).measuredTime;
+                    final long rhsTime = entries.get(rhs).measuredTime;
+                    return lhsTime > rhsTime ? -1 : (lhsTime < rhsTime ? 1 : 0);
+                }
+            });
+
+            FileOutputStream fos = null;
+            try {
+                fos = mFile.startWrite();
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                final int count = Math.min(paths.size(), MAX_SIZES);
+                out.writeInt(FILE_VERSION);
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    final String path = paths.get(i);
+                    final Entry entry = entries.get(path);
+                    out.writeUTF(path);
+                    out.writeLong(entry.lastModified);
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.measuredTime);
+                }
+                out.flush();
+                mFile.finishWrite(fos);
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot write " + mFile.getBaseFile(), e);
+                if (fos != null) {
+                    mFile.failWrite(fos);
+                }
+            }
+        }
+    }
+}
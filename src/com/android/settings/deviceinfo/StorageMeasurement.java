@@ -33,6 +33,8 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageVolume;
@@ -45,11 +47,15 @@ import com.google.android.collect.Sets;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -77,6 +83,16 @@ public class StorageMeasurement {
             Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS,
             Environment.DIRECTORY_DOWNLOADS, Environment.DIRECTORY_ANDROID);
 
+    // Directories are measured by the container service on its binder threads, so a few
+    // of them can be measured at once.
+    private static final int MEASURE_THREAD_COUNT = 3;
+    private static final int MEASURE_THREAD_KEEP_ALIVE_SECONDS = 5;
+
+    // While nothing was measured yet, partial details are sent at most this often.
+    private static final long PARTIAL_UPDATE_DELAY = 200;
+
+    private static ExecutorService sMeasureExecutor;
+
     @GuardedBy("sInstances")
     private static HashMap<StorageVolume, StorageMeasurement> sInstances = Maps.newHashMap();
 
@@ -141,6 +157,25 @@ public class StorageMeasurement {
          * internal storage. Key is {@link UserHandle}.
          */
         public SparseLongArray usersSize = new SparseLongArray();
+
+        /**
+         * False while the measurement is still running, in which case the sizes above only
+         * include what has been measured so far.
+         */
+        public boolean complete = true;
+
+        MeasurementDetails copy() {
+            final MeasurementDetails copy = new MeasurementDetails();
+            copy.totalSize = totalSize;
+            copy.availSize = availSize;
+            copy.appsSize = appsSize;
+            copy.cacheSize = cacheSize;
+            copy.mediaSize = new HashMap<String, Long>(mediaSize);
+            copy.miscSize = miscSize;
+            copy.usersSize = usersSize.clone();
+            copy.complete = complete;
+            return copy;
+        }
     }
 
     public interface MeasurementReceiver {
@@ -161,7 +196,8 @@ public class StorageMeasurement {
     private long mTotalSize;
     private long mAvailSize;
 
-    List<FileInfo> mFileInfoForMisc;
+    // Misc files of the last complete measurement, or of the one running if none completed
+    volatile MiscFileList mMiscFiles;
 
     private StorageMeasurement(Context context, StorageVolume volume) {
         mVolume = volume;
@@ -196,6 +232,16 @@ public class StorageMeasurement {
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_INVALIDATE);
     }
 
+    /**
+     * Account for misc files deleted from the volume, so that the last details can be updated
+     * without measuring again.  Can be called on any thread.
+     */
+    void onMiscFilesDeleted(long freedBytes) {
+        if (freedBytes > 0) {
+            mHandler.obtainMessage(MeasurementHandler.MSG_FILES_DELETED, freedBytes).sendToTarget();
+        }
+    }
+
     private void sendInternalApproximateUpdate() {
         MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
         if (receiver == null) {
@@ -217,30 +263,32 @@ public class StorageMeasurement {
 
     private static class StatsObserver extends IPackageStatsObserver.Stub {
         private final boolean mIsInternal;
+        private final Measurement mMeasurement;
         private final MeasurementDetails mDetails;
         private final int mCurrentUser;
-        private final Message mFinished;
 
         private int mRemaining;
 
-        public StatsObserver(boolean isInternal, MeasurementDetails details, int currentUser,
-                Message finished, int remaining) {
+        public StatsObserver(boolean isInternal, Measurement measurement, int currentUser,
+                int remaining) {
             mIsInternal = isInternal;
-            mDetails = details;
+            mMeasurement = measurement;
+            mDetails = measurement.details;
             mCurrentUser = currentUser;
-            mFinished = finished;
             mRemaining = remaining;
         }
 
         @Override
         public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
+            final boolean finished;
             synchronized (mDetails) {
                 if (succeeded) {
                     addStatsLocked(stats);
                 }
-                if (--mRemaining == 0) {
-                    mFinished.sendToTarget();
-                }
+                finished = --mRemaining == 0;
+            }
+            if (finished) {
+                mMeasurement.taskDone();
             }
         }
 
@@ -279,12 +327,88 @@ public class StorageMeasurement {
         }
     }
 
+    /**
+     * A run of measureExactStorage().  The directories are measured on the measuring pool and
+     * the package sizes come from the package manager; the last of them to finish sends
+     * MSG_COMPLETED, and the others a MSG_PARTIAL_UPDATE.
+     */
+    private class Measurement {
+        // Guards itself
+        final MeasurementDetails details = new MeasurementDetails();
+        final MiscFileList miscFiles = new MiscFileList();
+
+        // Starts at one for measureExactStorage() itself, so that the tasks finishing while it
+        // still submits others do not complete the measurement.
+        private final AtomicInteger mRemaining = new AtomicInteger(1);
+        private volatile boolean mCancelled;
+
+        void cancel() {
+            mCancelled = true;
+        }
+
+        boolean isCancelled() {
+            return mCancelled;
+        }
+
+        void measureDirectory(final IMediaContainerService imcs, final File path,
+                final DirectorySizeCallback callback) {
+            mRemaining.incrementAndGet();
+            getMeasureExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        final long size = getDirectorySize(imcs, path);
+                        synchronized (details) {
+                            callback.onMeasured(size);
+                        }
+                    }
+                    taskDone();
+                }
+            });
+        }
+
+        void addMiscFileLocked(FileInfo info) {
+            miscFiles.add(info);
+            details.miscSize += info.mSize;
+        }
+
+        void replaceMiscFileLocked(FileInfo oldInfo, FileInfo info) {
+            miscFiles.replace(oldInfo, info);
+            details.miscSize += info.mSize - oldInfo.mSize;
+        }
+
+        MeasurementDetails getPartialDetails() {
+            synchronized (details) {
+                final MeasurementDetails partial = details.copy();
+                partial.complete = false;
+                return partial;
+            }
+        }
+
+        void taskDone() {
+            if (mRemaining.decrementAndGet() == 0) {
+                mHandler.obtainMessage(MeasurementHandler.MSG_COMPLETED, this).sendToTarget();
+            } else if (!mCancelled
+                    && !mHandler.hasMessages(MeasurementHandler.MSG_PARTIAL_UPDATE)) {
+                mHandler.sendMessageDelayed(mHandler.obtainMessage(
+                        MeasurementHandler.MSG_PARTIAL_UPDATE, this), PARTIAL_UPDATE_DELAY);
+            }
+        }
+    }
+
+    private interface DirectorySizeCallback {
+        /** Called with the details of the measurement locked. */
+        void onMeasured(long size);
+    }
+
     private class MeasurementHandler extends Handler {
         public static final int MSG_MEASURE = 1;
         public static final int MSG_CONNECTED = 2;
         public static final int MSG_DISCONNECT = 3;
         public static final int MSG_COMPLETED = 4;
         public static final int MSG_INVALIDATE = 5;
+        public static final int MSG_PARTIAL_UPDATE = 6;
+        public static final int MSG_FILES_DELETED = 7;
 
         private Object mLock = new Object();
 
@@ -292,7 +416,16 @@ public class StorageMeasurement {
 
         private volatile boolean mBound = false;
 
+        // Details of the last completed measurement, kept when invalidated so that they can be
+        // shown while they are measured again.
         private MeasurementDetails mCached;
+        private long mCachedTime;
+        private boolean mCachedValid;
+
+        // Measurement running, or null
+        private Measurement mMeasurement;
+        // Set when asked to disconnect while measuring, which still needs the service
+        private boolean mDisconnectPending;
 
         private final WeakReference<Context> mContext;
 
@@ -323,7 +456,20 @@ public class StorageMeasurement {
             switch (msg.what) {
                 case MSG_MEASURE: {
                     if (mCached != null) {
+                        // Show the last numbers right away, even if they are out of date
+                        if (LOGV) {
+                            Log.v(TAG, "Showing details measured "
+                                    + (SystemClock.elapsedRealtime() - mCachedTime)
+                                    + "ms ago" + (mCachedValid ? "" : ", measuring again"));
+                        }
+                        sendInternalApproximateUpdate();
                         sendExactUpdate(mCached);
+                        if (mCachedValid) {
+                            break;
+                        }
+                    }
+                    if (mMeasurement != null) {
+                        // Its results will be sent
                         break;
                     }
 
@@ -332,6 +478,7 @@ public class StorageMeasurement {
                         return;
                     }
 
+                    mDisconnectPending = false;
                     synchronized (mLock) {
                         if (mBound) {
                             removeMessages(MSG_DISCONNECT);
@@ -345,37 +492,102 @@ public class StorageMeasurement {
                     break;
                 }
                 case MSG_CONNECTED: {
+                    if (mMeasurement != null) {
+                        break;
+                    }
                     IMediaContainerService imcs = (IMediaContainerService) msg.obj;
                     measureApproximateStorage(imcs);
                     measureExactStorage(imcs);
                     break;
                 }
                 case MSG_DISCONNECT: {
-                    synchronized (mLock) {
-                        if (mBound) {
-                            final Context context = (mContext != null) ? mContext.get() : null;
-                            if (context == null) {
-                                return;
-                            }
-
-                            mBound = false;
-                            context.unbindService(mDefContainerConn);
-                        }
+                    if (mMeasurement != null) {
+                        mDisconnectPending = true;
+                    } else {
+                        disconnect();
+                    }
+                    break;
+                }
+                case MSG_PARTIAL_UPDATE: {
+                    // Only stream the details when there are no previous ones to show
+                    if (msg.obj == mMeasurement && mCached == null) {
+                        sendExactUpdate(mMeasurement.getPartialDetails());
                     }
                     break;
                 }
                 case MSG_COMPLETED: {
-                    mCached = (MeasurementDetails) msg.obj;
+                    final Measurement measurement = (Measurement) msg.obj;
+                    if (measurement != mMeasurement) {
+                        // Cancelled
+                        break;
+                    }
+                    mMeasurement = null;
+                    removeMessages(MSG_PARTIAL_UPDATE);
+                    measurement.miscFiles.setComplete();
+                    mMiscFiles = measurement.miscFiles;
+                    final Context context = (mContext != null) ? mContext.get() : null;
+                    if (context != null) {
+                        MiscSizeIndex.getInstance(context).write();
+                    }
+                    mCached = measurement.details;
+                    mCachedTime = SystemClock.elapsedRealtime();
+                    mCachedValid = true;
                     sendExactUpdate(mCached);
+                    if (mDisconnectPending) {
+                        mDisconnectPending = false;
+                        disconnect();
+                    }
+                    break;
+                }
+                case MSG_FILES_DELETED: {
+                    final long freedBytes = (Long) msg.obj;
+                    mAvailSize = Math.min(mAvailSize + freedBytes, mTotalSize);
+                    sendInternalApproximateUpdate();
+                    if (mCached != null) {
+                        // The misc files belong to the current user on internal storage
+                        final MeasurementDetails details = mCached.copy();
+                        details.availSize = Math.min(details.availSize + freedBytes,
+                                details.totalSize);
+                        details.miscSize = Math.max(details.miscSize - freedBytes, 0);
+                        if (mIsInternal) {
+                            addValue(details.usersSize, ActivityManager.getCurrentUser(),
+                                    -freedBytes);
+                        }
+                        mCached = details;
+                        sendExactUpdate(details);
+                    }
                     break;
                 }
                 case MSG_INVALIDATE: {
-                    mCached = null;
+                    mCachedValid = false;
+                    if (mMeasurement != null) {
+                        mMeasurement.cancel();
+                        mMeasurement = null;
+                        removeMessages(MSG_PARTIAL_UPDATE);
+                        if (mDisconnectPending) {
+                            mDisconnectPending = false;
+                            disconnect();
+                        }
+                    }
                     break;
                 }
             }
         }
 
+        private void disconnect() {
+            synchronized (mLock) {
+                if (mBound) {
+                    final Context context = (mContext != null) ? mContext.get() : null;
+                    if (context == null) {
+                        return;
+                    }
+
+                    mBound = false;
+                    context.unbindService(mDefContainerConn);
+                }
+            }
+        }
+
         private void measureApproximateStorage(IMediaContainerService imcs) {
             final String path = mVolume != null ? mVolume.getPath()
                     : Environment.getDataDirectory().getPath();
@@ -390,14 +602,19 @@ public class StorageMeasurement {
             sendInternalApproximateUpdate();
         }
 
-        private void measureExactStorage(IMediaContainerService imcs) {
+        private void measureExactStorage(final IMediaContainerService imcs) {
             final Context context = mContext != null ? mContext.get() : null;
             if (context == null) {
                 return;
             }
 
-            final MeasurementDetails details = new MeasurementDetails();
-            final Message finished = obtainMessage(MSG_COMPLETED, details);
+            final Measurement measurement = new Measurement();
+            final MeasurementDetails details = measurement.details;
+            mMeasurement = measurement;
+            if (mMiscFiles == null || !mMiscFiles.isComplete()) {
+                // Let the misc files be shown as they are measured
+                mMiscFiles = measurement.miscFiles;
+            }
 
             details.totalSize = mTotalSize;
             details.availSize = mAvailSize;
@@ -414,10 +631,14 @@ public class StorageMeasurement {
             final boolean measureMedia = (mIsInternal && Environment.isExternalStorageEmulated())
                     || mIsPrimary;
             if (measureMedia) {
-                for (String type : sMeasureMediaTypes) {
+                for (final String type : sMeasureMediaTypes) {
                     final File path = currentEnv.getExternalStoragePublicDirectory(type);
-                    final long size = getDirectorySize(imcs, path);
-                    details.mediaSize.put(type, size);
+                    measurement.measureDirectory(imcs, path, new DirectorySizeCallback() {
+                        @Override
+                        public void onMeasured(long size) {
+                            details.mediaSize.put(type, size);
+                        }
+                    });
                 }
             }
 
@@ -425,15 +646,20 @@ public class StorageMeasurement {
             if (measureMedia) {
                 final File path = mIsInternal ? currentEnv.getExternalStorageDirectory()
                         : mVolume.getPathFile();
-                details.miscSize = measureMisc(imcs, path);
+                measureMisc(imcs, measurement, MiscSizeIndex.getInstance(context), path);
             }
 
             // Measure total emulated storage of all users; internal apps data
             // will be spliced in later
-            for (UserInfo user : users) {
+            for (final UserInfo user : users) {
                 final UserEnvironment userEnv = new UserEnvironment(user.id);
-                final long size = getDirectorySize(imcs, userEnv.getExternalStorageDirectory());
-                addValue(details.usersSize, user.id, size);
+                measurement.measureDirectory(imcs, userEnv.getExternalStorageDirectory(),
+                        new DirectorySizeCallback() {
+                            @Override
+                            public void onMeasured(long size) {
+                                addValue(details.usersSize, user.id, size);
+                            }
+                        });
             }
 
             // Measure all apps for all users
@@ -444,18 +670,21 @@ public class StorageMeasurement {
                         | PackageManager.GET_DISABLED_COMPONENTS);
 
                 final int count = users.size() * apps.size();
-                final StatsObserver observer = new StatsObserver(
-                        mIsInternal, details, currentUser, finished, count);
-
-                for (UserInfo user : users) {
-                    for (ApplicationInfo app : apps) {
-                        pm.getPackageSizeInfo(app.packageName, user.id, observer);
+                if (count > 0) {
+                    final StatsObserver observer = new StatsObserver(
+                            mIsInternal, measurement, currentUser, count);
+
+                    // Completed by the observer
+                    measurement.mRemaining.incrementAndGet();
+                    for (UserInfo user : users) {
+                        for (ApplicationInfo app : apps) {
+                            pm.getPackageSizeInfo(app.packageName, user.id, observer);
+                        }
                     }
                 }
-
-            } else {
-                finished.sendToTarget();
             }
+
+            measurement.taskDone();
         }
     }
 
@@ -470,15 +699,20 @@ public class StorageMeasurement {
         }
     }
 
-    private long measureMisc(IMediaContainerService imcs, File dir) {
-        mFileInfoForMisc = new ArrayList<FileInfo>();
-
+    /**
+     * Measure the top level files and directories of the given one, except the media ones.
+     * The directories that did not change since they were last measured are listed with their
+     * previous size in the partial updates until they have been measured again.
+     */
+    private static void measureMisc(IMediaContainerService imcs, final Measurement measurement,
+            final MiscSizeIndex index, File dir) {
         final File[] files = dir.listFiles();
-        if (files == null) return 0;
+        if (files == null) return;
+
+        index.load();
 
         // Get sizes of all top level nodes except the ones already computed
         long counter = 0;
-        long miscSize = 0;
 
         for (File file : files) {
             final String path = file.getAbsolutePath();
@@ -487,23 +721,39 @@ public class StorageMeasurement {
                 continue;
             }
 
+            final long id = counter++;
             if (file.isFile()) {
-                final long fileSize = file.length();
-                mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
-                miscSize += fileSize;
+                synchronized (measurement.details) {
+                    measurement.addMiscFileLocked(new FileInfo(path, file.length(), id));
+                }
             } else if (file.isDirectory()) {
-                final long dirSize = getDirectorySize(imcs, file);
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
-                miscSize += dirSize;
+                final long lastModified = file.lastModified();
+                final long indexedSize = index.get(path, lastModified);
+                final FileInfo preview;
+                if (indexedSize >= 0) {
+                    preview = new FileInfo(path, indexedSize, id);
+                    synchronized (measurement.details) {
+                        measurement.addMiscFileLocked(preview);
+                    }
+                } else {
+                    preview = null;
+                }
+                measurement.measureDirectory(imcs, file, new DirectorySizeCallback() {
+                    @Override
+                    public void onMeasured(long size) {
+                        index.put(path, lastModified, size);
+                        final FileInfo info = new FileInfo(path, size, id);
+                        if (preview != null) {
+                            measurement.replaceMiscFileLocked(preview, info);
+                        } else {
+                            measurement.addMiscFileLocked(info);
+                        }
+                    }
+                });
             } else {
                 // Non directory, non file: not listed
             }
         }
-
-        // sort the list of FileInfo objects collected above in descending order of their sizes
-        Collections.sort(mFileInfoForMisc);
-
-        return miscSize;
     }
 
     static class FileInfo implements Comparable<FileInfo> {
@@ -529,6 +779,36 @@ public class StorageMeasurement {
         }
     }
 
+    /**
+     * Return the bounded pool the directories of all the volumes are measured on.  Its threads
+     * are only kept alive while measuring.
+     */
+    private static synchronized ExecutorService getMeasureExecutor() {
+        if (sMeasureExecutor == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    MEASURE_THREAD_COUNT, MEASURE_THREAD_COUNT,
+                    MEASURE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "StorageMeasurement #" + mCount.getAndIncrement());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sMeasureExecutor = executor;
+        }
+        return sMeasureExecutor;
+    }
+
     private static void addValue(SparseLongArray array, int key, long value) {
         array.put(key, array.get(key) + value);
     }
@@ -427,37 +427,41 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory {
 
         mUsageBarPreference.clear();
 
-        updatePreference(mItemApps, details.appsSize);
+        updatePreference(mItemApps, details.appsSize, details.complete);
 
         final long dcimSize = totalValues(details.mediaSize, Environment.DIRECTORY_DCIM,
                 Environment.DIRECTORY_MOVIES, Environment.DIRECTORY_PICTURES);
-        updatePreference(mItemDcim, dcimSize);
+        updatePreference(mItemDcim, dcimSize, details.complete);
 
         final long musicSize = totalValues(details.mediaSize, Environment.DIRECTORY_MUSIC,
                 Environment.DIRECTORY_ALARMS, Environment.DIRECTORY_NOTIFICATIONS,
                 Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS);
-        updatePreference(mItemMusic, musicSize);
+        updatePreference(mItemMusic, musicSize, details.complete);
 
         final long downloadsSize = totalValues(details.mediaSize, Environment.DIRECTORY_DOWNLOADS);
-        updatePreference(mItemDownloads, downloadsSize);
+        updatePreference(mItemDownloads, downloadsSize, details.complete);
 
-        updatePreference(mItemCache, details.cacheSize);
-        updatePreference(mItemMisc, details.miscSize);
+        updatePreference(mItemCache, details.cacheSize, details.complete);
+        updatePreference(mItemMisc, details.miscSize, details.complete);
 
         for (StorageItemPreference userPref : mItemUsers) {
             final long userSize = details.usersSize.get(userPref.userHandle);
-            updatePreference(userPref, userSize);
+            updatePreference(userPref, userSize, details.complete);
         }
 
         mUsageBarPreference.commit();
     }
 
-    private void updatePreference(StorageItemPreference pref, long size) {
+    /**
+     * @param complete false if the size may still grow, in which case the preference is kept
+     *            even if it is empty.
+     */
+    private void updatePreference(StorageItemPreference pref, long size, boolean complete) {
         if (size > 0) {
             pref.setSummary(formatSize(size));
             final int order = pref.getOrder();
             mUsageBarPreference.addEntry(order, size / (float) mTotalSize, pref.color);
-        } else {
+        } else if (complete) {
             removePreference(pref);
         }
     }
@@ -26,17 +26,22 @@ import android.content.pm.UserInfo;
 import android.graphics.drawable.Drawable;
 import android.os.BatteryStats;
 import android.os.Handler;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.android.internal.os.BatterySipper;
 import com.android.settings.R;
 import com.android.settings.Utils;
+import com.android.settings.applications.AppLabelIconCache;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
 
 /**
  * Wraps the power usage data of a BatterySipper with information about package name
@@ -46,13 +51,40 @@ public class BatteryEntry {
     public static final int MSG_UPDATE_NAME_ICON = 1;
     public static final int MSG_REPORT_FULLY_DRAWN = 2;
 
-    static final HashMap<String,UidToDetail> sUidCache = new HashMap<String,UidToDetail>();
+    // Number of threads loading the names and icons
+    private static final int LOADER_THREADS = 2;
+    // Loaded names and icons are reported to the handler in batches this far apart
+    private static final long UPDATE_NAME_ICON_DELAY = 100;
+    private static final int MAX_CACHED_UIDS = 200;
 
-    static final ArrayList<BatteryEntry> mRequestQueue = new ArrayList<BatteryEntry>();
+    // Kept for the process, across the fragments and the configuration changes: the details
+    // are dropped when the AppLabelIconCache they come from drops labels or icons
+    static final LruCache<Integer, UidToDetail> sUidCache =
+            new LruCache<Integer, UidToDetail>(MAX_CACHED_UIDS);
+    // Generation of the AppLabelIconCache the cached details were loaded with
+    private static int sCacheGeneration;
+
+    // Entries whose preference is shown come first, then the others in the order they were added
+    private static final Comparator<BatteryEntry> REQUEST_ORDER = new Comparator<BatteryEntry>() {
+        @Override
+        public int compare(BatteryEntry lhs, BatteryEntry rhs) {
+            if (lhs.mVisible != rhs.mVisible) {
+                return lhs.mVisible ? -1 : 1;
+            }
+            return lhs.mRequestSequence < rhs.mRequestSequence ? -1
+                    : (lhs.mRequestSequence > rhs.mRequestSequence ? 1 : 0);
+        }
+    };
+
+    static final PriorityQueue<BatteryEntry> mRequestQueue =
+            new PriorityQueue<BatteryEntry>(16, REQUEST_ORDER);
+    private static int sRequestSequence;
+    // Entries loaded since the last MSG_UPDATE_NAME_ICON, guarded by mRequestQueue
+    private static final ArrayList<BatteryEntry> sLoadedEntries = new ArrayList<BatteryEntry>();
     static Handler sHandler;
 
     static private class NameAndIconLoader extends Thread {
-        private boolean mAbort = false;
+        private volatile boolean mAbort = false;
 
         public NameAndIconLoader() {
             super("BatteryUsage Icon Loader");
@@ -64,36 +96,42 @@ public class BatteryEntry {
 
         @Override
         public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
             while (true) {
                 BatteryEntry be;
                 synchronized (mRequestQueue) {
                     if (mRequestQueue.isEmpty() || mAbort) {
-                        if (sHandler != null) {
+                        // Only the last of the current loaders reports
+                        if (mRequestThreads.remove(this) && mRequestThreads.isEmpty()
+                                && sHandler != null) {
                             sHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
                         }
-                        mRequestQueue.clear();
                         return;
                     }
-                    be = mRequestQueue.remove(0);
+                    be = mRequestQueue.poll();
+                }
+                // The uid may have been loaded for another entry since this one was queued
+                if (!be.getCachedNameIcon()) {
+                    be.loadNameAndIcon();
+                }
+                if (!mAbort) {
+                    postLoaded(be);
                 }
-                be.loadNameAndIcon();
             }
         }
     }
 
-    private static NameAndIconLoader mRequestThread;
+    private static final ArrayList<NameAndIconLoader> mRequestThreads =
+            new ArrayList<NameAndIconLoader>();
 
     public static void startRequestQueue() {
         if (sHandler != null) {
             synchronized (mRequestQueue) {
-                if (!mRequestQueue.isEmpty()) {
-                    if (mRequestThread != null) {
-                        mRequestThread.abort();
-                    }
-                    mRequestThread = new NameAndIconLoader();
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
-                    mRequestQueue.notify();
+                final int count = Math.min(LOADER_THREADS, mRequestQueue.size());
+                while (mRequestThreads.size() < count) {
+                    final NameAndIconLoader thread = new NameAndIconLoader();
+                    mRequestThreads.add(thread);
+                    thread.start();
                 }
             }
         }
@@ -101,16 +139,55 @@ public class BatteryEntry {
 
     public static void stopRequestQueue() {
         synchronized (mRequestQueue) {
-            if (mRequestThread != null) {
-                mRequestThread.abort();
-                mRequestThread = null;
+            if (!mRequestThreads.isEmpty()) {
+                for (int i = 0; i < mRequestThreads.size(); i++) {
+                    mRequestThreads.get(i).abort();
+                }
+                mRequestThreads.clear();
                 sHandler = null;
             }
+            mRequestQueue.clear();
+            sLoadedEntries.clear();
+        }
+    }
+
+    /**
+     * Load the name and icon of the entry before the others still queued, because its
+     * preference is being shown.
+     */
+    public static void requestVisible(BatteryEntry entry) {
+        synchronized (mRequestQueue) {
+            if (!entry.mVisible) {
+                entry.mVisible = true;
+                // Reorder it
+                if (mRequestQueue.remove(entry)) {
+                    mRequestQueue.add(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the entries loaded since the last call, for the MSG_UPDATE_NAME_ICON message.
+     */
+    public static List<BatteryEntry> takeLoadedEntries() {
+        synchronized (mRequestQueue) {
+            final ArrayList<BatteryEntry> entries = new ArrayList<BatteryEntry>(sLoadedEntries);
+            sLoadedEntries.clear();
+            return entries;
         }
     }
 
-    public static void clearUidCache() {
-        sUidCache.clear();
+    private static void postLoaded(BatteryEntry entry) {
+        synchronized (mRequestQueue) {
+            if (sHandler == null) {
+                return;
+            }
+            sLoadedEntries.add(entry);
+            if (sLoadedEntries.size() == 1) {
+                sHandler.sendEmptyMessageDelayed(MSG_UPDATE_NAME_ICON, UPDATE_NAME_ICON_DELAY);
+            }
+        }
     }
 
     public final Context context;
@@ -121,6 +198,9 @@ public class BatteryEntry {
     public int iconId; // For passing to the detail screen.
     public String defaultPackageName;
 
+    private boolean mVisible;
+    private int mRequestSequence;
+
     static class UidToDetail {
         String name;
         String packageName;
@@ -202,14 +282,33 @@ public class BatteryEntry {
         return name;
     }
 
+    /**
+     * Use the cached name and icon of the uid, if there are any.
+     *
+     * @return true if they were cached.
+     */
+    boolean getCachedNameIcon() {
+        final int generation = AppLabelIconCache.getInstance(context).getGeneration();
+        final UidToDetail utd;
+        synchronized (sUidCache) {
+            if (sCacheGeneration != generation) {
+                sUidCache.evictAll();
+                sCacheGeneration = generation;
+            }
+            utd = sUidCache.get(sipper.uidObj.getUid());
+        }
+        if (utd == null) {
+            return false;
+        }
+        defaultPackageName = utd.packageName;
+        name = utd.name;
+        icon = utd.icon;
+        return true;
+    }
+
     void getQuickNameIconForUid(BatteryStats.Uid uidObj) {
         final int uid = uidObj.getUid();
-        final String uidString = Integer.toString(uid);
-        if (sUidCache.containsKey(uidString)) {
-            UidToDetail utd = sUidCache.get(uidString);
-            defaultPackageName = utd.packageName;
-            name = utd.name;
-            icon = utd.icon;
+        if (getCachedNameIcon()) {
             return;
         }
         PackageManager pm = context.getPackageManager();
@@ -230,11 +329,32 @@ public class BatteryEntry {
         }
         if (sHandler != null) {
             synchronized (mRequestQueue) {
+                mRequestSequence = sRequestSequence++;
                 mRequestQueue.add(this);
             }
         }
     }
 
+    /**
+     * Queue the entry again if its name has not been loaded, as the queue is cleared when it
+     * is stopped.  The queue still needs to be started.
+     *
+     * @return true if the entry is queued.
+     */
+    boolean requeueIfNotLoaded(Handler handler) {
+        if (name != null || sipper.uidObj == null) {
+            return false;
+        }
+        synchronized (mRequestQueue) {
+            sHandler = handler;
+            if (!mRequestQueue.contains(this)) {
+                mRequestSequence = sRequestSequence++;
+                mRequestQueue.add(this);
+            }
+        }
+        return true;
+    }
+
     /**
      * Loads the app label and icon image and stores into the cache.
      */
@@ -244,6 +364,8 @@ public class BatteryEntry {
             return;
         }
         PackageManager pm = context.getPackageManager();
+        final AppLabelIconCache cache = AppLabelIconCache.getInstance(context);
+        final int generation = cache.getGeneration();
         final int uid = sipper.uidObj.getUid();
         final Drawable defaultActivityIcon = pm.getDefaultActivityIcon();
         sipper.mPackages = pm.getPackagesForUid(uid);
@@ -267,13 +389,13 @@ public class BatteryEntry {
                             + packageLabels[i] + ", user " + userId);
                     continue;
                 }
-                CharSequence label = ai.loadLabel(pm);
+                CharSequence label = cache.getLabel(ai);
                 if (label != null) {
                     packageLabels[i] = label.toString();
                 }
                 if (ai.icon != 0) {
                     defaultPackageName = sipper.mPackages[i];
-                    icon = ai.loadIcon(pm);
+                    icon = cache.getIcon(ai);
                     break;
                 }
             } catch (RemoteException e) {
@@ -304,7 +426,7 @@ public class BatteryEntry {
                             name = nm.toString();
                             if (pi.applicationInfo.icon != 0) {
                                 defaultPackageName = pkgName;
-                                icon = pi.applicationInfo.loadIcon(pm);
+                                icon = cache.getIcon(pi.applicationInfo);
                             }
                             break;
                         }
@@ -315,14 +437,15 @@ public class BatteryEntry {
                 }
             }
         }
-        final String uidString = Integer.toString(sipper.uidObj.getUid());
         UidToDetail utd = new UidToDetail();
         utd.name = name;
         utd.icon = icon;
         utd.packageName = defaultPackageName;
-        sUidCache.put(uidString, utd);
-        if (sHandler != null) {
-            sHandler.sendMessage(sHandler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
+        synchronized (sUidCache) {
+            // Don't cache what was loaded before an invalidation
+            if (sCacheGeneration == generation) {
+                sUidCache.put(uid, utd);
+            }
         }
     }
 }
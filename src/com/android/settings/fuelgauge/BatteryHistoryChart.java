@@ -46,6 +46,7 @@ import android.view.View;
 import libcore.icu.LocaleData;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Locale;
 
@@ -116,6 +117,51 @@ public class BatteryHistoryChart extends View {
         }
     }
 
+    /**
+     * The records of the battery history the chart is built from, decoded once by setStats()
+     * so that the paths can be rebuilt for a new size without iterating the history again.
+     * Held as parallel arrays with an element per record.
+     */
+    static class HistoryBuffer {
+        int mSize;
+        byte[] mCmds = new byte[0];
+        byte[] mLevels = new byte[0];
+        int[] mStates = new int[0];
+        int[] mStates2 = new int[0];
+        long[] mTimes = new long[0];
+        // Only meaningful for CMD_CURRENT_TIME and CMD_RESET records.
+        long[] mCurrentTimes = new long[0];
+
+        void clear() {
+            mSize = 0;
+        }
+
+        void add(HistoryItem rec) {
+            if (mSize == mCmds.length) {
+                final int capacity = Math.max(256, mSize * 2);
+                mCmds = Arrays.copyOf(mCmds, capacity);
+                mLevels = Arrays.copyOf(mLevels, capacity);
+                mStates = Arrays.copyOf(mStates, capacity);
+                mStates2 = Arrays.copyOf(mStates2, capacity);
+                mTimes = Arrays.copyOf(mTimes, capacity);
+                mCurrentTimes = Arrays.copyOf(mCurrentTimes, capacity);
+            }
+            mCmds[mSize] = rec.cmd;
+            mLevels[mSize] = rec.batteryLevel;
+            mStates[mSize] = rec.states;
+            mStates2[mSize] = rec.states2;
+            mTimes[mSize] = rec.time;
+            mCurrentTimes[mSize] = rec.currentTime;
+            mSize++;
+        }
+
+        void truncate(int size) {
+            if (size < mSize) {
+                mSize = size;
+            }
+        }
+    }
+
     static final int SANS = 1;
     static final int SERIF = 2;
     static final int MONOSPACE = 3;
@@ -136,6 +182,7 @@ public class BatteryHistoryChart extends View {
     final Paint mCpuRunningPaint = new Paint();
     final Paint mDateLinePaint = new Paint();
     final ChartData mPhoneSignalChart = new ChartData();
+    final HistoryBuffer mHistory = new HistoryBuffer();
     final TextPaint mTextPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
     final TextPaint mHeaderTextPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
     final Paint mDebugRectPaint = new Paint();
@@ -556,10 +603,12 @@ public class BatteryHistoryChart extends View {
         int aggrStates = 0;
         int aggrStates2 = 0;
         boolean first = true;
+        mHistory.clear();
         if (stats.startIteratingHistoryLocked()) {
             final HistoryItem rec = new HistoryItem();
             while (stats.getNextHistoryLocked(rec)) {
                 pos++;
+                mHistory.add(rec);
                 if (first) {
                     first = false;
                     mHistStart = rec.time;
@@ -594,11 +643,14 @@ public class BatteryHistoryChart extends View {
                     aggrStates2 |= rec.states2;
                 }
             }
+            stats.finishIteratingHistoryLocked();
         }
         mHistEnd = mHistDataEnd + (remainingTimeUs/1000);
         mEndDataWallTime = lastWallTime + mHistDataEnd - lastRealtime;
         mEndWallTime = mEndDataWallTime + (remainingTimeUs/1000);
         mNumHist = lastInteresting;
+        // Nothing after the last update is drawn.
+        mHistory.truncate(lastInteresting);
         mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
         mHaveWifi = (aggrStates2&HistoryItem.STATE2_WIFI_RUNNING_FLAG) != 0
                 || (aggrStates&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
@@ -775,19 +827,23 @@ public class BatteryHistoryChart extends View {
         mLevelBottom = mLevelTop + levelh;
 
         int x = mLevelLeft, y = 0, startX = mLevelLeft, lastX = -1, lastY = -1;
-        int i = 0;
         Path curLevelPath = null;
         Path lastLinePath = null;
         boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
         boolean lastWifiRunning = false, lastWifiSupplRunning = false, lastCpuRunning = false;
         int lastWifiSupplState = BatteryStats.WIFI_SUPPL_STATE_INVALID;
-        final int N = mNumHist;
-        if (mEndDataWallTime > mStartWallTime && mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.isDeltaData()) {
-                    curWalltime += rec.time-lastRealtime;
-                    lastRealtime = rec.time;
+        final HistoryBuffer hist = mHistory;
+        final int N = hist.mSize;
+        if (mEndDataWallTime > mStartWallTime) {
+            for (int i = 0; i < N; i++) {
+                final byte cmd = hist.mCmds[i];
+                final long time = hist.mTimes[i];
+                if (cmd == HistoryItem.CMD_UPDATE) {
+                    final byte level = hist.mLevels[i];
+                    final int states = hist.mStates[i];
+                    final int states2 = hist.mStates2[i];
+                    curWalltime += time-lastRealtime;
+                    lastRealtime = time;
                     x = mLevelLeft + (int)(((curWalltime-walltimeStart)*levelWidth)/walltimeChange);
                     if (x < 0) {
                         x = 0;
@@ -802,14 +858,14 @@ public class BatteryHistoryChart extends View {
                         sb.append(x);
                         Log.d("foo", sb.toString());
                     }
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
+                    y = mLevelTop + levelh - ((level-batLow)*(levelh-1))/batChange;
 
                     if (lastX != x) {
                         // We have moved by at least a pixel.
                         if (lastY != y) {
                             // Don't plot changes within a pixel.
                             Path path;
-                            byte value = rec.batteryLevel;
+                            byte value = level;
                             if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
                             else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
                             else path = null; //mBatGoodPath;
@@ -840,7 +896,7 @@ public class BatteryHistoryChart extends View {
 
                     if (mLargeMode) {
                         final boolean charging =
-                            (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
+                            (states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
                         if (charging != lastCharging) {
                             if (charging) {
                                 mChargingPath.moveTo(x, h-mChargingOffset);
@@ -851,7 +907,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean screenOn =
-                            (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
                         if (screenOn != lastScreenOn) {
                             if (screenOn) {
                                 mScreenOnPath.moveTo(x, h-mScreenOnOffset);
@@ -862,7 +918,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean gpsOn =
-                            (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
                         if (gpsOn != lastGpsOn) {
                             if (gpsOn) {
                                 mGpsOnPath.moveTo(x, h-mGpsOnOffset);
@@ -873,7 +929,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final int wifiSupplState =
-                            ((rec.states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
+                            ((states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
                                     >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
                         boolean wifiRunning;
                         if (lastWifiSupplState != wifiSupplState) {
@@ -894,7 +950,7 @@ public class BatteryHistoryChart extends View {
                         } else {
                             wifiRunning = lastWifiSupplRunning;
                         }
-                        if ((rec.states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                        if ((states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
                                 |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
                                 |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
                             wifiRunning = true;
@@ -909,7 +965,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean cpuRunning =
-                            (rec.states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
+                            (states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
                         if (cpuRunning != lastCpuRunning) {
                             if (cpuRunning) {
                                 mCpuRunningPath.moveTo(x, h - mCpuRunningOffset);
@@ -921,14 +977,14 @@ public class BatteryHistoryChart extends View {
 
                         if (mLargeMode && mHavePhoneSignal) {
                             int bin;
-                            if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
+                            if (((states&HistoryItem.STATE_PHONE_STATE_MASK)
                                     >> HistoryItem.STATE_PHONE_STATE_SHIFT)
                                     == ServiceState.STATE_POWER_OFF) {
                                 bin = 0;
-                            } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                            } else if ((states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
                                 bin = 1;
                             } else {
-                                bin = (rec.states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
+                                bin = (states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
                                         >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
                                 bin += 2;
                             }
@@ -938,18 +994,18 @@ public class BatteryHistoryChart extends View {
 
                 } else {
                     long lastWalltime = curWalltime;
-                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                            || rec.cmd == HistoryItem.CMD_RESET) {
-                        if (rec.currentTime >= mStartWallTime) {
-                            curWalltime = rec.currentTime;
+                    if (cmd == HistoryItem.CMD_CURRENT_TIME
+                            || cmd == HistoryItem.CMD_RESET) {
+                        if (hist.mCurrentTimes[i] >= mStartWallTime) {
+                            curWalltime = hist.mCurrentTimes[i];
                         } else {
-                            curWalltime = mStartWallTime + (rec.time-mHistStart);
+                            curWalltime = mStartWallTime + (time-mHistStart);
                         }
-                        lastRealtime = rec.time;
+                        lastRealtime = time;
                     }
 
-                    if (rec.cmd != HistoryItem.CMD_OVERFLOW
-                            && (rec.cmd != HistoryItem.CMD_CURRENT_TIME
+                    if (cmd != HistoryItem.CMD_OVERFLOW
+                            && (cmd != HistoryItem.CMD_CURRENT_TIME
                                     || Math.abs(lastWalltime-curWalltime) > (60*60*1000))) {
                         if (curLevelPath != null) {
                             finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
@@ -962,10 +1018,7 @@ public class BatteryHistoryChart extends View {
                         }
                     }
                 }
-                
-                i++;
             }
-            mStats.finishIteratingHistoryLocked();
         }
 
         if (lastY < 0 || lastX < 0) {
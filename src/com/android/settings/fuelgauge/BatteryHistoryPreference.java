@@ -35,8 +35,8 @@ import com.android.settings.R;
  */
 public class BatteryHistoryPreference extends Preference {
 
-    final private BatteryStats mStats;
-    final private Intent mBatteryBroadcast;
+    private BatteryStats mStats;
+    private Intent mBatteryBroadcast;
 
     private boolean mHideLabels;
     private View mLabelHeader;
@@ -53,6 +53,17 @@ public class BatteryHistoryPreference extends Preference {
         return mStats;
     }
 
+    void setStats(BatteryStats stats, Intent batteryBroadcast) {
+        if (stats == mStats && batteryBroadcast == mBatteryBroadcast) {
+            return;
+        }
+        mStats = stats;
+        mBatteryBroadcast = batteryBroadcast;
+        // Build a new chart for these stats on the next bind
+        mChart = null;
+        notifyChanged();
+    }
+
     public void setHideLabels(boolean hide) {
         if (mHideLabels != hide) {
             mHideLabels = hide;
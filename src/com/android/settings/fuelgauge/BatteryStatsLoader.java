@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.content.Intent;
+import android.os.BatteryStats;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.text.format.DateUtils;
+
+import com.android.internal.os.BatteryStatsHelper;
+import com.android.internal.os.PowerProfile;
+import com.android.settings.Utils;
+
+import java.util.List;
+
+/**
+ * Loads and computes the battery stats in the background, with a new {@link BatteryStatsHelper}
+ * each time.
+ *
+ * A helper is not modified once it has been refreshed, so the last one is kept for the process
+ * and shown right away by the next screen, which then only reloads if the battery level or
+ * status changed or if the snapshot is older than {@link #MAX_SNAPSHOT_AGE}.
+ */
+class BatteryStatsLoader extends AsyncTaskLoader<BatteryStatsLoader.Snapshot> {
+    private static final long MAX_SNAPSHOT_AGE = 60 * DateUtils.SECOND_IN_MILLIS;
+
+    private static final int MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP = 10;
+
+    static class Snapshot {
+        final BatteryStatsHelper helper;
+        // False if the screen does not draw enough power for the usage list to be meaningful,
+        // in which case it was not computed.
+        final boolean hasUsageList;
+        final String batteryLevel;
+        final String batteryStatus;
+        final long elapsedRealtime;
+
+        Snapshot(BatteryStatsHelper helper, boolean hasUsageList, String batteryLevel,
+                String batteryStatus) {
+            this.helper = helper;
+            this.hasUsageList = hasUsageList;
+            this.batteryLevel = batteryLevel;
+            this.batteryStatus = batteryStatus;
+            this.elapsedRealtime = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * @return true if the snapshot was taken recently, at the given battery level and status.
+         */
+        boolean isCurrent(String batteryLevel, String batteryStatus) {
+            return this.batteryLevel.equals(batteryLevel)
+                    && this.batteryStatus.equals(batteryStatus)
+                    && SystemClock.elapsedRealtime() - elapsedRealtime < MAX_SNAPSHOT_AGE;
+        }
+    }
+
+    private static Snapshot sLastSnapshot;
+
+    private Snapshot mSnapshot;
+
+    /**
+     * @return the snapshot last loaded in this process, or null.
+     */
+    static synchronized Snapshot getLastSnapshot() {
+        return sLastSnapshot;
+    }
+
+    private static synchronized void setLastSnapshot(Snapshot snapshot) {
+        sLastSnapshot = snapshot;
+    }
+
+    BatteryStatsLoader(Context context) {
+        super(context);
+    }
+
+    @Override
+    protected void onStartLoading() {
+        super.onStartLoading();
+        if (mSnapshot != null) {
+            deliverResult(mSnapshot);
+        } else {
+            forceLoad();
+        }
+    }
+
+    @Override
+    public Snapshot loadInBackground() {
+        final Context context = getContext();
+        final BatteryStatsHelper helper = new BatteryStatsHelper(context, true);
+        helper.create((Bundle) null);
+
+        final PowerProfile powerProfile = helper.getPowerProfile();
+        final double averagePower = powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
+        final boolean hasUsageList = averagePower >= MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP;
+        if (hasUsageList) {
+            final UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
+            final List<UserHandle> profiles = um.getUserProfiles();
+            helper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, profiles);
+        } else {
+            // Still loads the stats, for the history chart
+            helper.getStats();
+        }
+
+        final Intent broadcast = helper.getBatteryBroadcast();
+        final Snapshot snapshot = new Snapshot(helper, hasUsageList,
+                Utils.getBatteryPercentage(broadcast),
+                Utils.getBatteryStatus(context.getResources(), broadcast));
+        setLastSnapshot(snapshot);
+        return snapshot;
+    }
+
+    @Override
+    public void deliverResult(Snapshot snapshot) {
+        mSnapshot = snapshot;
+        if (isStarted()) {
+            super.deliverResult(snapshot);
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        super.onStopLoading();
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        cancelLoad();
+        mSnapshot = null;
+    }
+}
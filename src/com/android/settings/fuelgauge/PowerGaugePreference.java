@@ -35,7 +35,7 @@ public class PowerGaugePreference extends Preference {
     private BatteryEntry mInfo;
     private int mProgress;
     private CharSequence mProgressText;
-    private final CharSequence mContentDescription;
+    private CharSequence mContentDescription;
 
     public PowerGaugePreference(Context context, Drawable icon, CharSequence contentDescription,
             BatteryEntry info) {
@@ -52,6 +52,16 @@ public class PowerGaugePreference extends Preference {
         notifyChanged();
     }
 
+    /**
+     * Show another entry, for the same uid or drain type, in this preference.
+     */
+    void setInfo(Drawable icon, CharSequence contentDescription, BatteryEntry info) {
+        setIcon(icon != null ? icon : new ColorDrawable(0));
+        mInfo = info;
+        mContentDescription = contentDescription;
+        notifyChanged();
+    }
+
     BatteryEntry getInfo() {
         return mInfo;
     }
@@ -60,6 +70,10 @@ public class PowerGaugePreference extends Preference {
     protected void onBindView(View view) {
         super.onBindView(view);
 
+        if (mInfo != null) {
+            BatteryEntry.requestVisible(mInfo);
+        }
+
         final ProgressBar progress = (ProgressBar) view.findViewById(android.R.id.progress);
         progress.setProgress(mProgress);
 
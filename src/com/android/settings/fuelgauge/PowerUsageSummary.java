@@ -17,10 +17,12 @@
 package com.android.settings.fuelgauge;
 
 import android.app.Activity;
+import android.app.LoaderManager.LoaderCallbacks;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.Loader;
 import android.graphics.drawable.Drawable;
 import android.os.BatteryStats;
 import android.os.Build;
@@ -40,18 +42,19 @@ import android.view.MenuItem;
 
 import com.android.internal.os.BatterySipper;
 import com.android.internal.os.BatteryStatsHelper;
-import com.android.internal.os.PowerProfile;
 import com.android.settings.HelpUtils;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 
+import java.util.HashMap;
 import java.util.List;
 
 /**
  * Displays a list of apps and subsystems that consume power, ordered by how much power was
  * consumed since the last time it was unplugged.
  */
-public class PowerUsageSummary extends PreferenceFragment {
+public class PowerUsageSummary extends PreferenceFragment
+        implements LoaderCallbacks<BatteryStatsLoader.Snapshot> {
 
     private static final boolean DEBUG = false;
 
@@ -66,9 +69,12 @@ public class PowerUsageSummary extends PreferenceFragment {
     private static final int MENU_BATTERY_SAVER = Menu.FIRST + 2;
     private static final int MENU_HELP = Menu.FIRST + 3;
 
+    private static final int LOADER_STATS = 1;
+
     private UserManager mUm;
 
     private BatteryHistoryPreference mHistPref;
+    private Preference mNotAvailablePref;
     private PreferenceGroup mAppListGroup;
     private String mBatteryLevel;
     private String mBatteryStatus;
@@ -77,10 +83,11 @@ public class PowerUsageSummary extends PreferenceFragment {
 
     private static final int MIN_POWER_THRESHOLD_MILLI_AMP = 5;
     private static final int MAX_ITEMS_TO_LIST = 10;
-    private static final int MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP = 10;
     private static final int SECONDS_IN_HOUR = 60 * 60;
 
+    // Helper of the snapshot shown, which is not modified anymore, or null before the first one
     private BatteryStatsHelper mStatsHelper;
+    private BatteryStatsLoader.Snapshot mSnapshot;
 
     private BroadcastReceiver mBatteryInfoReceiver = new BroadcastReceiver() {
 
@@ -100,23 +107,25 @@ public class PowerUsageSummary extends PreferenceFragment {
     public void onAttach(Activity activity) {
         super.onAttach(activity);
         mUm = (UserManager) activity.getSystemService(Context.USER_SERVICE);
-        mStatsHelper = new BatteryStatsHelper(activity, true);
     }
 
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
-        mStatsHelper.create(icicle);
 
         addPreferencesFromResource(R.xml.power_usage_summary);
         mAppListGroup = (PreferenceGroup) findPreference(KEY_APP_LIST);
+        mAppListGroup.setOrderingAsAdded(false);
         setHasOptionsMenu(true);
     }
 
     @Override
-    public void onStart() {
-        super.onStart();
-        mStatsHelper.clearStats();
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        // Reconnect to a load started before a configuration change
+        if (getLoaderManager().getLoader(LOADER_STATS) != null) {
+            getLoaderManager().initLoader(LOADER_STATS, null, this);
+        }
     }
 
     @Override
@@ -125,11 +134,38 @@ public class PowerUsageSummary extends PreferenceFragment {
         BatteryStatsHelper.dropFile(getActivity(), BATTERY_HISTORY_FILE);
         updateBatteryStatus(getActivity().registerReceiver(mBatteryInfoReceiver,
                 new IntentFilter(Intent.ACTION_BATTERY_CHANGED)));
-        if (mHandler.hasMessages(MSG_REFRESH_STATS)) {
-            mHandler.removeMessages(MSG_REFRESH_STATS);
-            mStatsHelper.clearStats();
+        mHandler.removeMessages(MSG_REFRESH_STATS);
+
+        // Show the last stats right away, then refresh them if they are out of date
+        final BatteryStatsLoader.Snapshot snapshot = BatteryStatsLoader.getLastSnapshot();
+        if (snapshot != null && snapshot != mSnapshot) {
+            bindSnapshot(snapshot);
+        } else {
+            requeueNamesAndIcons();
+        }
+        if (snapshot == null || !snapshot.isCurrent(mBatteryLevel, mBatteryStatus)) {
+            refreshStats();
+        }
+    }
+
+    /**
+     * Load again the names and icons of the entries still shown without them, as the queue
+     * was cleared when paused.
+     */
+    private void requeueNamesAndIcons() {
+        boolean queued = false;
+        for (int i = 0; i < mAppListGroup.getPreferenceCount(); i++) {
+            final Preference pref = mAppListGroup.getPreference(i);
+            if (pref instanceof PowerGaugePreference) {
+                final BatteryEntry entry = ((PowerGaugePreference) pref).getInfo();
+                if (entry != null && entry.requeueIfNotLoaded(mHandler)) {
+                    queued = true;
+                }
+            }
+        }
+        if (queued) {
+            BatteryEntry.startRequestQueue();
         }
-        refreshStats();
     }
 
     @Override
@@ -146,15 +182,6 @@ public class PowerUsageSummary extends PreferenceFragment {
         mHandler.removeMessages(MSG_REFRESH_STATS);
     }
 
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        if (getActivity().isChangingConfigurations()) {
-            mStatsHelper.storeState();
-            BatteryEntry.clearUidCache();
-        }
-    }
-
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (preference instanceof BatteryHistoryPreference) {
@@ -210,10 +237,11 @@ public class PowerUsageSummary extends PreferenceFragment {
                 } else {
                     mStatsType = BatteryStats.STATS_SINCE_CHARGED;
                 }
-                refreshStats();
+                if (mSnapshot != null) {
+                    bindSnapshot(mSnapshot);
+                }
                 return true;
             case MENU_STATS_REFRESH:
-                mStatsHelper.clearStats();
                 refreshStats();
                 mHandler.removeMessages(MSG_REFRESH_STATS);
                 return true;
@@ -228,10 +256,12 @@ public class PowerUsageSummary extends PreferenceFragment {
     }
 
     private void addNotAvailableMessage() {
-        Preference notAvailable = new Preference(getActivity());
-        notAvailable.setTitle(R.string.power_usage_not_available);
+        if (mNotAvailablePref == null) {
+            mNotAvailablePref = new Preference(getActivity());
+            mNotAvailablePref.setTitle(R.string.power_usage_not_available);
+            mAppListGroup.addPreference(mNotAvailablePref);
+        }
         mHistPref.setHideLabels(true);
-        mAppListGroup.addPreference(notAvailable);
     }
 
     private boolean updateBatteryStatus(Intent intent) {
@@ -248,27 +278,69 @@ public class PowerUsageSummary extends PreferenceFragment {
         return false;
     }
 
+    /**
+     * Load and compute the stats again, in the background.
+     */
     private void refreshStats() {
-        mAppListGroup.removeAll();
-        mAppListGroup.setOrderingAsAdded(false);
-        mHistPref = new BatteryHistoryPreference(getActivity(), mStatsHelper.getStats(),
-                mStatsHelper.getBatteryBroadcast());
-        mHistPref.setOrder(-1);
-        mAppListGroup.addPreference(mHistPref);
-        boolean addedSome = false;
+        getLoaderManager().restartLoader(LOADER_STATS, null, this);
+    }
 
-        final PowerProfile powerProfile = mStatsHelper.getPowerProfile();
-        final BatteryStats stats = mStatsHelper.getStats();
-        final double averagePower = powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
-        if (averagePower >= MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP) {
-            final List<UserHandle> profiles = mUm.getUserProfiles();
+    @Override
+    public Loader<BatteryStatsLoader.Snapshot> onCreateLoader(int id, Bundle args) {
+        return new BatteryStatsLoader(getActivity());
+    }
+
+    @Override
+    public void onLoadFinished(Loader<BatteryStatsLoader.Snapshot> loader,
+            BatteryStatsLoader.Snapshot snapshot) {
+        if (snapshot != null && snapshot != mSnapshot) {
+            bindSnapshot(snapshot);
+        }
+    }
+
+    @Override
+    public void onLoaderReset(Loader<BatteryStatsLoader.Snapshot> loader) {
+    }
 
-            mStatsHelper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, profiles);
+    private static String getPreferenceKey(BatterySipper sipper) {
+        if (sipper.uidObj != null) {
+            return Integer.toString(sipper.uidObj.getUid());
+        }
+        return sipper.drainType.name() + "_" + sipper.userId;
+    }
 
+    /**
+     * Show the given stats, updating the preferences already shown rather than replacing them.
+     */
+    private void bindSnapshot(BatteryStatsLoader.Snapshot snapshot) {
+        mSnapshot = snapshot;
+        mStatsHelper = snapshot.helper;
+        if (mHistPref == null) {
+            mHistPref = new BatteryHistoryPreference(getActivity(), mStatsHelper.getStats(),
+                    mStatsHelper.getBatteryBroadcast());
+            mHistPref.setOrder(-1);
+            mAppListGroup.addPreference(mHistPref);
+        } else {
+            mHistPref.setStats(mStatsHelper.getStats(), mStatsHelper.getBatteryBroadcast());
+        }
+        boolean addedSome = false;
+
+        final HashMap<String, PowerGaugePreference> oldPrefs =
+                new HashMap<String, PowerGaugePreference>();
+        for (int i = 0; i < mAppListGroup.getPreferenceCount(); i++) {
+            final Preference pref = mAppListGroup.getPreference(i);
+            if (pref instanceof PowerGaugePreference) {
+                oldPrefs.put(pref.getKey(), (PowerGaugePreference) pref);
+            }
+        }
+
+        final BatteryStats stats = mStatsHelper.getStats();
+        if (snapshot.hasUsageList) {
             final List<BatterySipper> usageList = mStatsHelper.getUsageList();
 
             final int dischargeAmount = stats != null ? stats.getDischargeAmount(mStatsType) : 0;
             final int numSippers = usageList.size();
+            int shown = 0;
             for (int i = 0; i < numSippers; i++) {
                 final BatterySipper sipper = usageList.get(i);
                 if ((sipper.value * SECONDS_IN_HOUR) < MIN_POWER_THRESHOLD_MILLI_AMP) {
@@ -311,26 +383,39 @@ public class PowerUsageSummary extends PreferenceFragment {
                         userHandle);
                 final CharSequence contentDescription = mUm.getBadgedLabelForUser(entry.getLabel(),
                         userHandle);
-                final PowerGaugePreference pref = new PowerGaugePreference(getActivity(),
-                        badgedIcon, contentDescription, entry);
+                final String key = getPreferenceKey(sipper);
+                PowerGaugePreference pref = oldPrefs.remove(key);
+                if (pref == null) {
+                    pref = new PowerGaugePreference(getActivity(), badgedIcon, contentDescription,
+                            entry);
+                    pref.setKey(key);
+                    mAppListGroup.addPreference(pref);
+                } else {
+                    pref.setInfo(badgedIcon, contentDescription, entry);
+                }
 
                 final double percentOfMax = (sipper.value * 100) / mStatsHelper.getMaxPower();
                 sipper.percent = percentOfTotal;
                 pref.setTitle(entry.getLabel());
                 pref.setOrder(i + 1);
                 pref.setPercent(percentOfMax, percentOfTotal);
-                if (sipper.uidObj != null) {
-                    pref.setKey(Integer.toString(sipper.uidObj.getUid()));
-                }
                 addedSome = true;
-                mAppListGroup.addPreference(pref);
-                if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST + 1)) {
+                if (++shown > MAX_ITEMS_TO_LIST) {
                     break;
                 }
             }
         }
+        for (PowerGaugePreference pref : oldPrefs.values()) {
+            mAppListGroup.removePreference(pref);
+        }
         if (!addedSome) {
             addNotAvailableMessage();
+        } else {
+            if (mNotAvailablePref != null) {
+                mAppListGroup.removePreference(mNotAvailablePref);
+                mNotAvailablePref = null;
+            }
+            mHistPref.setHideLabels(false);
         }
 
         BatteryEntry.startRequestQueue();
@@ -344,15 +429,18 @@ public class PowerUsageSummary extends PreferenceFragment {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case BatteryEntry.MSG_UPDATE_NAME_ICON:
-                    BatteryEntry entry = (BatteryEntry) msg.obj;
-                    PowerGaugePreference pgp =
-                            (PowerGaugePreference) findPreference(
-                                    Integer.toString(entry.sipper.uidObj.getUid()));
-                    if (pgp != null) {
-                        final int userId = UserHandle.getUserId(entry.sipper.getUid());
-                        final UserHandle userHandle = new UserHandle(userId);
-                        pgp.setIcon(mUm.getBadgedIconForUser(entry.getIcon(), userHandle));
-                        pgp.setTitle(entry.name);
+                    final List<BatteryEntry> entries = BatteryEntry.takeLoadedEntries();
+                    for (int i = 0; i < entries.size(); i++) {
+                        final BatteryEntry entry = entries.get(i);
+                        PowerGaugePreference pgp =
+                                (PowerGaugePreference) findPreference(
+                                        Integer.toString(entry.sipper.uidObj.getUid()));
+                        if (pgp != null) {
+                            final int userId = UserHandle.getUserId(entry.sipper.getUid());
+                            final UserHandle userHandle = new UserHandle(userId);
+                            pgp.setIcon(mUm.getBadgedIconForUser(entry.getIcon(), userHandle));
+                            pgp.setTitle(entry.name);
+                        }
                     }
                     break;
                 case BatteryEntry.MSG_REPORT_FULLY_DRAWN:
@@ -362,7 +450,6 @@ public class PowerUsageSummary extends PreferenceFragment {
                     }
                     break;
                 case MSG_REFRESH_STATS:
-                    mStatsHelper.clearStats();
                     refreshStats();
             }
             super.handleMessage(msg);
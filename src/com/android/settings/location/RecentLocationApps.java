@@ -36,6 +36,7 @@ import android.widget.TextView;
 
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
+import com.android.settings.applications.AppLabelIconCache;
 import com.android.settings.applications.InstalledAppDetails;
 
 import java.util.ArrayList;
@@ -191,9 +192,10 @@ public class RecentLocationApps {
             Resources res = mActivity.getResources();
 
             final UserHandle userHandle = new UserHandle(userId);
-            Drawable appIcon = mPackageManager.getApplicationIcon(appInfo);
+            final AppLabelIconCache cache = AppLabelIconCache.getInstance(mActivity);
+            Drawable appIcon = cache.getIcon(appInfo);
             Drawable icon = mPackageManager.getUserBadgedIcon(appIcon, userHandle);
-            CharSequence appLabel = mPackageManager.getApplicationLabel(appInfo);
+            CharSequence appLabel = cache.getLabel(appInfo);
             CharSequence badgedAppLabel = mPackageManager.getUserBadgedLabel(appLabel, userHandle);
             if (appLabel.toString().contentEquals(badgedAppLabel)) {
                 // If badged label is not different from original then no need for it as
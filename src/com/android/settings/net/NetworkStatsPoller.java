@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.INetworkStatsService;
+import android.os.AsyncTask;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+/**
+ * Asks the {@link INetworkStatsService} to poll the network stats, at most
+ * once per {@link #MIN_POLL_INTERVAL} for the whole process, so that the data
+ * usage screens resumed one after the other do not each cause a poll.
+ */
+public class NetworkStatsPoller {
+    private static final String TAG = "NetworkStatsPoller";
+
+    private static final long MIN_POLL_INTERVAL = 30 * DateUtils.SECOND_IN_MILLIS;
+
+    private static final Object sLock = new Object();
+    private static long sLastPollTime;
+    private static boolean sPolling;
+
+    private NetworkStatsPoller() {
+    }
+
+    /**
+     * Poll in the background, unless a poll is running or was started less
+     * than {@link #MIN_POLL_INTERVAL} ago.
+     *
+     * @param onPolled run on the main thread once the poll is done, if a poll
+     *            was started.
+     * @return true if a poll was started.
+     */
+    public static boolean requestPoll(final INetworkStatsService service,
+            final Runnable onPolled) {
+        synchronized (sLock) {
+            final long now = SystemClock.elapsedRealtime();
+            if (sPolling || (sLastPollTime != 0 && now - sLastPollTime < MIN_POLL_INTERVAL)) {
+                return false;
+            }
+            sPolling = true;
+            sLastPollTime = now;
+        }
+
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                try {
+                    service.forceUpdate();
+                    return true;
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Cannot poll the network stats", e);
+                    return false;
+                } finally {
+                    synchronized (sLock) {
+                        sPolling = false;
+                    }
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Boolean polled) {
+                if (polled && onPolled != null) {
+                    onPolled.run();
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        return true;
+    }
+}
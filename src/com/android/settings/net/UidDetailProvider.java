@@ -28,24 +28,44 @@ import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
 import android.net.ConnectivityManager;
 import android.net.TrafficStats;
+import android.os.AsyncTask;
 import android.os.UserManager;
 import android.os.UserHandle;
 import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.SparseArray;
+import android.util.LruCache;
+import android.util.SparseBooleanArray;
 
 import com.android.settings.R;
 import com.android.settings.Utils;
+import com.android.settings.applications.AppLabelIconCache;
 
 /**
  * Return details about a specific UID, handling special cases like
  * {@link TrafficStats#UID_TETHERING} and {@link UserInfo}.
+ *
+ * The details are kept in a bounded cache shared by all the providers, so that
+ * they outlive the screens showing them; they are built again when the labels
+ * or icons of the applications change.  The labels of the applications are
+ * also kept on disk, for the previews shown while the details are built.
  */
 public class UidDetailProvider {
     private static final String TAG = "DataUsage";
+
+    private static final int MAX_CACHED_DETAILS = 256;
+
+    private static final LruCache<Integer, UidDetail> sUidDetailCache =
+            new LruCache<Integer, UidDetail>(MAX_CACHED_DETAILS);
+    // Generation of the AppLabelIconCache the cached details were built with
+    private static int sCacheGeneration;
+
     private final Context mContext;
-    private final SparseArray<UidDetail> mUidDetailCache;
+    private final AppLabelIconCache mAppCache;
+    private final UidLabelCache mLabelCache;
+
+    // Keys being loaded by prefetch()
+    private final SparseBooleanArray mPrefetchingKeys = new SparseBooleanArray();
 
     public static final int OTHER_USER_RANGE_START = -2000;
 
@@ -63,12 +83,13 @@ public class UidDetailProvider {
 
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
-        mUidDetailCache = new SparseArray<UidDetail>();
+        mAppCache = AppLabelIconCache.getInstance(mContext);
+        mLabelCache = UidLabelCache.getInstance(mContext);
     }
 
     public void clearCache() {
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.clear();
+        synchronized (sUidDetailCache) {
+            sUidDetailCache.evictAll();
         }
     }
 
@@ -77,9 +98,14 @@ public class UidDetailProvider {
      */
     public UidDetail getUidDetail(int uid, boolean blocking) {
         UidDetail detail;
+        final int generation = mAppCache.getGeneration();
 
-        synchronized (mUidDetailCache) {
-            detail = mUidDetailCache.get(uid);
+        synchronized (sUidDetailCache) {
+            if (sCacheGeneration != generation) {
+                sUidDetailCache.evictAll();
+                sCacheGeneration = generation;
+            }
+            detail = sUidDetailCache.get(uid);
         }
 
         if (detail != null) {
@@ -90,13 +116,69 @@ public class UidDetailProvider {
 
         detail = buildUidDetail(uid);
 
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.put(uid, detail);
+        synchronized (sUidDetailCache) {
+            // Unless it was built with labels or icons dropped in the meantime
+            if (sCacheGeneration == generation) {
+                sUidDetailCache.put(uid, detail);
+            }
         }
 
         return detail;
     }
 
+    /**
+     * @return the label last stored on disk for the given UID, which may be
+     *         out of date, or null.  Does not block.
+     */
+    public CharSequence getPreviewLabel(int uid) {
+        return mLabelCache.getPreview(uid);
+    }
+
+    /**
+     * @return true if the details of the given UID are being loaded by
+     *         {@link #prefetch}.
+     */
+    public boolean isPrefetching(int uid) {
+        synchronized (mPrefetchingKeys) {
+            return mPrefetchingKeys.get(uid);
+        }
+    }
+
+    /**
+     * Load the details of the given UIDs in the background, in a single task,
+     * and run the callback on the main thread once they are all cached.
+     */
+    public void prefetch(final int[] uids, final Runnable callback) {
+        synchronized (mPrefetchingKeys) {
+            for (int uid : uids) {
+                mPrefetchingKeys.put(uid, true);
+            }
+        }
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                mLabelCache.load();
+                for (int uid : uids) {
+                    getUidDetail(uid, true);
+                }
+                mLabelCache.write();
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void result) {
+                synchronized (mPrefetchingKeys) {
+                    for (int uid : uids) {
+                        mPrefetchingKeys.delete(uid);
+                    }
+                }
+                if (callback != null) {
+                    callback.run();
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
     /**
      * Build {@link UidDetail} object, blocking until all {@link Drawable}
      * lookup is finished.
@@ -149,12 +231,20 @@ public class UidDetailProvider {
             final int userId = UserHandle.getUserId(uid);
             UserHandle userHandle = new UserHandle(userId);
             IPackageManager ipm = AppGlobals.getPackageManager();
+            final AppLabelIconCache cache = mAppCache;
             if (length == 1) {
-                final ApplicationInfo info = ipm.getApplicationInfo(packageNames[0],
+                final PackageInfo packageInfo = ipm.getPackageInfo(packageNames[0],
                         0 /* no flags */, userId);
+                final ApplicationInfo info =
+                        packageInfo != null ? packageInfo.applicationInfo : null;
                 if (info != null) {
-                    detail.label = info.loadLabel(pm).toString();
-                    detail.icon = um.getBadgedIconForUser(info.loadIcon(pm),
+                    String label = mLabelCache.get(uid, packageInfo.lastUpdateTime);
+                    if (label == null) {
+                        label = cache.getLabel(info).toString();
+                        mLabelCache.put(uid, packageInfo.lastUpdateTime, label);
+                    }
+                    detail.label = label;
+                    detail.icon = um.getBadgedIconForUser(cache.getIcon(info),
                             new UserHandle(userId));
                 }
             } else if (length > 1) {
@@ -167,13 +257,14 @@ public class UidDetailProvider {
                             0 /* no flags */, userId);
 
                     if (appInfo != null) {
-                        detail.detailLabels[i] = appInfo.loadLabel(pm).toString();
+                        detail.detailLabels[i] = cache.getLabel(appInfo).toString();
                         detail.detailContentDescriptions[i] = um.getBadgedLabelForUser(
                                 detail.detailLabels[i], userHandle);
                         if (packageInfo.sharedUserLabel != 0) {
                             detail.label = pm.getText(packageName, packageInfo.sharedUserLabel,
                                     packageInfo.applicationInfo).toString();
-                            detail.icon = um.getBadgedIconForUser(appInfo.loadIcon(pm), userHandle);
+                            detail.icon = um.getBadgedIconForUser(cache.getIcon(appInfo),
+                                    userHandle);
                         }
                     }
                 }
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Labels of the uids shown in the data usage screens, kept in a file so that the list of
+ * applications can show them right away, even in a new process, while the details are loaded.
+ *
+ * A label is only returned for the version (last update time of the package) it was stored
+ * for, unless asked for a preview, and all the labels are dropped when the locale changes.
+ * Only the {@link #MAX_LABELS} most recently used labels are kept, in memory and in the file.
+ * Thread safe; the file is read and written by whichever thread calls load() and write().
+ */
+class UidLabelCache {
+    private static final String TAG = "UidLabelCache";
+
+    private static final String FILE_NAME = "uid_labels";
+    private static final int FILE_VERSION = 1;
+
+    // Bound on the number of labels kept
+    private static final int MAX_LABELS = 500;
+
+    private static class Entry {
+        final long version;
+        final String label;
+
+        Entry(long version, String label) {
+            this.version = version;
+            this.label = label;
+        }
+    }
+
+    private static UidLabelCache sInstance;
+
+    private final AtomicFile mFile;
+    // Held while the entries are copied and written to the file
+    private final Object mWriteLock = new Object();
+
+    // In access order, the least recently used first
+    private LinkedHashMap<Integer, Entry> mEntries = newEntries();
+    private String mLocale;
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    static synchronized UidLabelCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UidLabelCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private static LinkedHashMap<Integer, Entry> newEntries() {
+        return new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                return size() > MAX_LABELS;
+            }
+        };
+    }
+
+    private UidLabelCache(Context context) {
+        mFile = new AtomicFile(new File(context.getCacheDir(), FILE_NAME));
+        mLocale = Locale.getDefault().toString();
+    }
+
+    /**
+     * @return the label stored for the uid, whatever its version, or null if there is none or
+     *         if the file has not been read yet.  Does not block.
+     */
+    synchronized String getPreview(int uid) {
+        checkLocaleLocked();
+        final Entry entry = mEntries.get(uid);
+        return entry != null ? entry.label : null;
+    }
+
+    /**
+     * @return the label stored for the uid if it was stored for the given version, or null.
+     */
+    String get(int uid, long version) {
+        load();
+        synchronized (this) {
+            checkLocaleLocked();
+            final Entry entry = mEntries.get(uid);
+            return entry != null && entry.version == version ? entry.label : null;
+        }
+    }
+
+    synchronized void put(int uid, long version, String label) {
+        checkLocaleLocked();
+        final Entry entry = mEntries.get(uid);
+        if (entry != null && entry.version == version && entry.label.equals(label)) {
+            return;
+        }
+        mEntries.put(uid, new Entry(version, label));
+        mDirty = true;
+    }
+
+    /**
+     * Read the file if it has not been read yet.
+     */
+    void load() {
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+        }
+        // In the order they were written, the least recently used first
+        final LinkedHashMap<Integer, Entry> entries = newEntries();
+        String locale = null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() == FILE_VERSION) {
+                locale = in.readUTF();
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final int uid = in.readInt();
+                    final long version = in.readLong();
+                    entries.put(uid, new Entry(version, in.readUTF()));
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing stored yet
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + mFile.getBaseFile(), e);
+            entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+            mLoaded = true;
+            checkLocaleLocked();
+            if (mLocale.equals(locale)) {
+                // Keep the labels stored while the file was being read, as the most recent ones
+                entries.putAll(mEntries);
+                mEntries = entries;
+            }
+        }
+    }
+
+    /**
+     * Write the file if labels were stored since the last write.
+     */
+    void write() {
+        // The copy is taken with the file locked, so that an older copy is never written
+        // after a newer one
+        synchronized (mWriteLock) {
+            // Copied, as the map entries change with the map
+            final ArrayList<Integer> uids;
+            final ArrayList<Entry> entries;
+            final String locale;
+            synchronized (this) {
+                if (!mDirty || !mLoaded) {
+                    return;
+                }
+                mDirty = false;
+                uids = new ArrayList<Integer>(mEntries.keySet());
+                entries = new ArrayList<Entry>(mEntries.values());
+                locale = mLocale;
+            }
+
+            FileOutputStream fos = null;
+            try {
+                fos = mFile.startWrite();
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                final int count = entries.size();
+                out.writeInt(FILE_VERSION);
+                out.writeUTF(locale);
+                out.writeInt(count);
+                // In access order, so that reading them back keeps the most recent ones
+                for (int i = 0; i < count; i++) {
+                    final Entry entry = entries.get(i);
+                    out.writeInt(uids.get(i));
+                    out.writeLong(entry.version);
+                    out.writeUTF(entry.label);
+                }
+                out.flush();
+                mFile.finishWrite(fos);
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot write " + mFile.getBaseFile(), e);
+                if (fos != null) {
+                    mFile.failWrite(fos);
+                }
+            }
+        }
+    }
+
+    private void checkLocaleLocked() {
+        final String locale = Locale.getDefault().toString();
+        if (!locale.equals(mLocale)) {
+            mLocale = locale;
+            mEntries.clear();
+            mDirty = true;
+        }
+    }
+}
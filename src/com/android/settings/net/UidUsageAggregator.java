@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.NetworkStats;
+import android.os.UserHandle;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sums the bytes of the entries of a {@link NetworkStats} by uid.
+ *
+ * A stats object can hold an entry per uid, set, tag and interface, so nothing is allocated per
+ * entry: the totals are kept in an open addressing table of primitive arrays, which is reused
+ * from one call of {@link #aggregate} to the next.  Not thread safe.
+ */
+public class UidUsageAggregator {
+    // Must be a power of two
+    private static final int INITIAL_CAPACITY = 128;
+
+    private final NetworkStats.Entry mEntry = new NetworkStats.Entry();
+
+    // Index + 1 in mUids and mTotals of the uid hashed to each slot, or 0 for an empty slot.
+    // Twice as large as mUids, so that it is never more than half full.
+    private int[] mTable;
+    private int[] mUids;
+    private long[] mTotals;
+    private int mCount;
+
+    public UidUsageAggregator() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Replace the current totals by the ones of the given stats, which may be null.
+     */
+    public void aggregate(NetworkStats stats) {
+        clear();
+        final int size = stats != null ? stats.size() : 0;
+        NetworkStats.Entry entry = mEntry;
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+            add(entry.uid, entry.rxBytes + entry.txBytes);
+        }
+    }
+
+    public void clear() {
+        if (mCount > 0) {
+            Arrays.fill(mTable, 0);
+            mCount = 0;
+        }
+    }
+
+    public void add(int uid, long bytes) {
+        final int mask = mTable.length - 1;
+        int slot = hash(uid) & mask;
+        int index;
+        while ((index = mTable[slot]) != 0) {
+            if (mUids[index - 1] == uid) {
+                mTotals[index - 1] += bytes;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (mCount == mUids.length) {
+            grow();
+            add(uid, bytes);
+            return;
+        }
+        mUids[mCount] = uid;
+        mTotals[mCount] = bytes;
+        mCount++;
+        mTable[slot] = mCount;
+    }
+
+    /**
+     * @return the number of distinct uids, in the order they were first seen.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    public int getUid(int index) {
+        return mUids[index];
+    }
+
+    public long getTotal(int index) {
+        return mTotals[index];
+    }
+
+    /**
+     * Build a bitset of the ids of the given users, for {@link #containsUser}.
+     */
+    public static long[] buildUserBits(List<UserHandle> users) {
+        int maxId = -1;
+        for (int i = 0; i < users.size(); i++) {
+            maxId = Math.max(maxId, users.get(i).getIdentifier());
+        }
+        final long[] bits = new long[(maxId >> 6) + 1];
+        for (int i = 0; i < users.size(); i++) {
+            final int id = users.get(i).getIdentifier();
+            if (id >= 0) {
+                bits[id >> 6] |= 1L << (id & 63);
+            }
+        }
+        return bits;
+    }
+
+    public static boolean containsUser(long[] userBits, int userId) {
+        return userId >= 0 && (userId >> 6) < userBits.length
+                && (userBits[userId >> 6] & (1L << (userId & 63))) != 0;
+    }
+
+    private void allocate(int capacity) {
+        mTable = new int[capacity * 2];
+        mUids = new int[capacity];
+        mTotals = new long[capacity];
+    }
+
+    private void grow() {
+        final int[] uids = mUids;
+        final long[] totals = mTotals;
+        final int count = mCount;
+        allocate(uids.length * 2);
+        mCount = 0;
+        for (int i = 0; i < count; i++) {
+            add(uids[i], totals[i]);
+        }
+    }
+
+    private static int hash(int uid) {
+        final int h = uid * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
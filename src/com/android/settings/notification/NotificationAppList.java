@@ -62,6 +62,7 @@ import com.android.settings.R;
 import com.android.settings.Settings.NotificationAppListActivity;
 import com.android.settings.UserSpinnerAdapter;
 import com.android.settings.Utils;
+import com.android.settings.applications.AppLabelIconCache;
 
 import java.text.Collator;
 import java.util.ArrayList;
@@ -373,18 +374,19 @@ public class NotificationAppList extends PinnedHeaderListFragment
     };
 
 
-    public static AppRow loadAppRow(PackageManager pm, ApplicationInfo app,
+    public static AppRow loadAppRow(Context context, ApplicationInfo app,
             Backend backend) {
+        final AppLabelIconCache cache = AppLabelIconCache.getInstance(context);
         final AppRow row = new AppRow();
         row.pkg = app.packageName;
         row.uid = app.uid;
         try {
-            row.label = app.loadLabel(pm);
+            row.label = cache.getLabel(app);
         } catch (Throwable t) {
             Log.e(TAG, "Error loading application label for " + row.pkg, t);
             row.label = row.pkg;
         }
-        row.icon = app.loadIcon(pm);
+        row.icon = cache.getIcon(app);
         row.banned = backend.getNotificationsBanned(row.pkg, row.uid);
         row.priority = backend.getHighPriority(row.pkg, row.uid);
         row.sensitive = backend.getSensitive(row.pkg, row.uid);
@@ -460,6 +462,9 @@ public class NotificationAppList extends PinnedHeaderListFragment
                     appInfos.add(ri.activityInfo.applicationInfo);
                 }
 
+                // The rows are loaded from the start of the list
+                AppLabelIconCache.getInstance(mContext).prefetch(appInfos, true);
+
                 for (ApplicationInfo info : appInfos) {
                     final String key = info.packageName;
                     if (mRows.containsKey(key)) {
@@ -467,7 +472,7 @@ public class NotificationAppList extends PinnedHeaderListFragment
                         continue;
                     }
 
-                    final AppRow row = loadAppRow(mPM, info, mBackend);
+                    final AppRow row = loadAppRow(mContext, info, mBackend);
                     mRows.put(key, row);
                 }
 
@@ -24,14 +24,17 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
-import android.database.MergeCursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.Process;
 import android.provider.SearchIndexableData;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesContract;
@@ -44,18 +47,35 @@ import com.android.settings.R;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_NON_INDEXABLE_KEYS_KEY_VALUE;
@@ -126,13 +146,10 @@ public class Index {
             IndexColumns.DATA_KEY_REF             // 13
     };
 
-    private static final String[] MATCH_COLUMNS_PRIMARY = {
+    private static final String[] MATCH_COLUMNS = {
             IndexColumns.DATA_TITLE,
             IndexColumns.DATA_TITLE_NORMALIZED,
-            IndexColumns.DATA_KEYWORDS
-    };
-
-    private static final String[] MATCH_COLUMNS_SECONDARY = {
+            IndexColumns.DATA_KEYWORDS,
             IndexColumns.DATA_SUMMARY_ON,
             IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
             IndexColumns.DATA_SUMMARY_OFF,
@@ -140,6 +157,20 @@ public class Index {
             IndexColumns.DATA_ENTRIES
     };
 
+    // Number of phrases, number of columns, number of rows, average lengths of the columns,
+    // lengths of the columns of the row and hits
+    private static final String MATCHINFO_FORMAT = "pcnalx";
+
+    // Scoring weights of the prefs_index columns, in the matchinfo() order
+    private static final float[] COLUMN_WEIGHTS =
+            new float[IndexDatabaseHelper.INDEX_COLUMNS.length];
+
+    static {
+        for (int n = 0; n < COLUMN_WEIGHTS.length; n++) {
+            COLUMN_WEIGHTS[n] = Ranking.getColumnWeight(IndexDatabaseHelper.INDEX_COLUMNS[n]);
+        }
+    }
+
     // Max number of saved search queries (who will be used for proposing suggestions)
     private static long MAX_SAVED_SEARCH_QUERY = 64;
     // Max number of proposed suggestions
@@ -162,6 +193,16 @@ public class Index {
 
     private static Index sInstance;
 
+    // Number of threads used for querying the providers and parsing the XML resources
+    private static final int INDEXING_THREAD_COUNT =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long INDEXING_THREAD_KEEP_ALIVE_SECONDS = 10;
+
+    private static ExecutorService sIndexingExecutor;
+
+    // Answer the search queries from an in-memory copy of the Index when possible
+    private static final boolean USE_PREFIX_INDEX = true;
+
     private static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -172,20 +213,26 @@ public class Index {
         public List<SearchIndexableData> dataToUpdate;
         public List<SearchIndexableData> dataToDelete;
         public Map<String, List<String>> nonIndexableKeys;
+        // Packages whose provider could not be queried by a full update
+        public Set<String> failedPackages;
 
         public boolean forceUpdate = false;
+        public boolean fullUpdate = false;
 
         public UpdateData() {
             dataToUpdate = new ArrayList<SearchIndexableData>();
             dataToDelete = new ArrayList<SearchIndexableData>();
             nonIndexableKeys = new HashMap<String, List<String>>();
+            failedPackages = new HashSet<String>();
         }
 
         public UpdateData(UpdateData other) {
             dataToUpdate = new ArrayList<SearchIndexableData>(other.dataToUpdate);
             dataToDelete = new ArrayList<SearchIndexableData>(other.dataToDelete);
             nonIndexableKeys = new HashMap<String, List<String>>(other.nonIndexableKeys);
+            failedPackages = new HashSet<String>(other.failedPackages);
             forceUpdate = other.forceUpdate;
+            fullUpdate = other.fullUpdate;
         }
 
         public UpdateData copy() {
@@ -196,7 +243,31 @@ public class Index {
             dataToUpdate.clear();
             dataToDelete.clear();
             nonIndexableKeys.clear();
+            failedPackages.clear();
             forceUpdate = false;
+            fullUpdate = false;
+        }
+    }
+
+    /**
+     * The rows produced for one entry of the update data, waiting to be written to the database.
+     */
+    private static class IndexResult {
+        public final String manifestKey;
+        public final String className;
+        public final long fingerprint;
+        public final List<IndexWriter.Row> rows = new ArrayList<IndexWriter.Row>();
+
+        // True if the entry has already been indexed with the same fingerprint
+        public boolean unchanged;
+
+        // True if the rows are added to the ones already indexed for the entry
+        public boolean appendRows;
+
+        public IndexResult(String manifestKey, String className, long fingerprint) {
+            this.manifestKey = manifestKey;
+            this.className = className;
+            this.fingerprint = fingerprint;
         }
     }
 
@@ -205,6 +276,12 @@ public class Index {
     private Context mContext;
     private final String mBaseAuthority;
 
+    private final Object mPrefixIndexLock = new Object();
+    private PrefixIndex mPrefixIndex;
+    private int mPrefixIndexGeneration;
+
+    private final SearchMetrics mMetrics = new SearchMetrics();
+
     /**
      * A basic singleton
      */
@@ -231,77 +308,286 @@ public class Index {
     }
 
     public Cursor search(String query) {
+        final long start = SearchMetrics.now();
+        try {
+            if (USE_PREFIX_INDEX) {
+                final PrefixIndex prefixIndex = getPrefixIndex();
+                if (prefixIndex != null) {
+                    return prefixIndex.search(query);
+                }
+            }
+
+            return searchFromDatabase(query);
+        } finally {
+            mMetrics.recordQuery(SearchMetrics.QUERY_SEARCH, start);
+        }
+    }
+
+    /**
+     * Search the Index database with a single FTS query. The results are scored from the FTS
+     * matchinfo() data (see {@link Ranking#getTermScore}) and sorted by decreasing score.
+     */
+    public Cursor searchFromDatabase(String query) {
         final SQLiteDatabase database = getReadableDatabase();
-        final Cursor[] cursors = new Cursor[2];
 
-        final String primarySql = buildSearchSQL(query, MATCH_COLUMNS_PRIMARY, true);
-        Log.d(LOG_TAG, "Search primary query: " + primarySql);
-        cursors[0] = database.rawQuery(primarySql, null);
+        final String match = buildSearchMatchStringForColumns(query, MATCH_COLUMNS);
+        if (match == null) {
+            return new MatrixCursor(SELECT_COLUMNS, 0);
+        }
+        final String sql = buildSearchSQL();
+        Log.d(LOG_TAG, "Search query: " + sql + " with match: " + match);
 
-        // We need to use an EXCEPT operator as negate MATCH queries do not work.
-        StringBuilder sql = new StringBuilder(
-                buildSearchSQL(query, MATCH_COLUMNS_SECONDARY, false));
-        sql.append(" EXCEPT ");
-        sql.append(primarySql);
+        final Cursor cursor = database.rawQuery(sql,
+                new String[] { match, Locale.getDefault().toString() });
+        try {
+            final int count = cursor.getCount();
+            final Object[][] rows = new Object[count][];
+            final float[] scores = new float[count];
+            final int[] ranks = new int[count];
+            final Integer[] order = new Integer[count];
+
+            final int columnCount = SELECT_COLUMNS.length;
+            int n = 0;
+            while (cursor.moveToNext() && n < count) {
+                final Object[] values = new Object[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    values[i] = cursor.getString(i);
+                }
+                rows[n] = values;
+                ranks[n] = cursor.getInt(COLUMN_INDEX_RANK);
+                scores[n] = getMatchInfoScore(cursor.getBlob(columnCount)) *
+                        Ranking.getRankBoost(ranks[n]);
+                order[n] = n;
+                n++;
+            }
 
-        final String secondarySql = sql.toString();
-        Log.d(LOG_TAG, "Search secondary query: " + secondarySql);
-        cursors[1] = database.rawQuery(secondarySql, null);
+            Arrays.sort(order, 0, n, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    final int result = Float.compare(scores[rhs], scores[lhs]);
+                    if (result != 0) {
+                        return result;
+                    }
+                    if (ranks[lhs] != ranks[rhs]) {
+                        return (ranks[lhs] < ranks[rhs]) ? -1 : 1;
+                    }
+                    return lhs.compareTo(rhs);
+                }
+            });
 
-        return new MergeCursor(cursors);
+            final MatrixCursor result = new MatrixCursor(SELECT_COLUMNS, n);
+            for (int i = 0; i < n; i++) {
+                result.addRow(rows[order[i]]);
+            }
+            return result;
+        } finally {
+            cursor.close();
+        }
     }
 
-    public Cursor getSuggestions(String query) {
-        final String sql = buildSuggestionsSQL(query);
-        Log.d(LOG_TAG, "Suggestions query: " + sql);
-        return getReadableDatabase().rawQuery(sql, null);
+    /**
+     * Compute the score of a row from its matchinfo() data (with the "pcnalx" format).
+     */
+    private static float getMatchInfoScore(byte[] blob) {
+        if (blob == null) {
+            return 0.0f;
+        }
+        final IntBuffer info = ByteBuffer.wrap(blob).order(ByteOrder.nativeOrder()).asIntBuffer();
+        final int phraseCount = info.get(0);
+        final int columnCount = info.get(1);
+        final int rowCount = info.get(2);
+        final int averageLengthsOffset = 3;
+        final int lengthsOffset = averageLengthsOffset + columnCount;
+        final int hitsOffset = lengthsOffset + columnCount;
+
+        float score = 0.0f;
+        for (int phrase = 0; phrase < phraseCount; phrase++) {
+            for (int column = 0; column < columnCount && column < COLUMN_WEIGHTS.length;
+                    column++) {
+                final float weight = COLUMN_WEIGHTS[column];
+                if (weight == 0.0f) {
+                    continue;
+                }
+                final int offset = hitsOffset + 3 * (phrase * columnCount + column);
+                final int hits = info.get(offset);
+                if (hits == 0) {
+                    continue;
+                }
+                score += weight * Ranking.getTermScore(hits, info.get(offset + 2), rowCount,
+                        info.get(lengthsOffset + column),
+                        info.get(averageLengthsOffset + column));
+            }
+        }
+        return score;
     }
 
-    private String buildSuggestionsSQL(String query) {
-        StringBuilder sb = new StringBuilder();
+    /**
+     * Return the in-memory copy of the Index for the current locale, loading it from the
+     * database if needed. It is kept until the Index is updated, which happens for example when
+     * the {@link DynamicIndexableContentMonitor} is notified of a package change.
+     */
+    private PrefixIndex getPrefixIndex() {
+        final String localeStr = Locale.getDefault().toString();
+        final int generation;
+        synchronized (mPrefixIndexLock) {
+            if (mPrefixIndex != null && mPrefixIndex.getLocale().equals(localeStr)) {
+                return mPrefixIndex;
+            }
+            generation = mPrefixIndexGeneration;
+        }
 
-        sb.append("SELECT ");
-        sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-        sb.append(" FROM ");
-        sb.append(Tables.TABLE_SAVED_QUERIES);
+        final long current = System.currentTimeMillis();
+        final PrefixIndex prefixIndex;
+        try {
+            prefixIndex = PrefixIndex.build(getReadableDatabase(), localeStr, SELECT_COLUMNS);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Cannot load the prefix index for locale: " + localeStr, e);
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        Log.d(LOG_TAG, "Loading prefix index for locale '" + localeStr + "' took " +
+                (now - current) + " millis for " + prefixIndex.getRowCount() + " rows");
+
+        synchronized (mPrefixIndexLock) {
+            // Do not keep it if the Index has been updated in the meantime
+            if (generation == mPrefixIndexGeneration) {
+                mPrefixIndex = prefixIndex;
+            }
+        }
+        return prefixIndex;
+    }
 
-        if (TextUtils.isEmpty(query)) {
-            sb.append(" ORDER BY rowId DESC");
-        } else {
-            sb.append(" WHERE ");
-            sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-            sb.append(" LIKE ");
-            sb.append("'");
-            sb.append(query);
-            sb.append("%");
-            sb.append("'");
+    /**
+     * Drop the in-memory copy of the Index. It will be loaded again by the next search.
+     */
+    public void invalidatePrefixIndex() {
+        synchronized (mPrefixIndexLock) {
+            mPrefixIndex = null;
+            mPrefixIndexGeneration++;
         }
+    }
 
-        sb.append(" LIMIT ");
-        sb.append(MAX_PROPOSED_SUGGESTIONS);
+    public Cursor getSuggestions(String query) {
+        return getSuggestions(query, null);
+    }
 
+    /**
+     * Return the most recent saved queries starting with the given query (ignoring the case of
+     * ASCII letters). The prefix is matched as a range of the saved queries index.
+     *
+     * @param cancellationSignal used for aborting the query when it is superseded, can be null.
+     */
+    public Cursor getSuggestions(String query, CancellationSignal cancellationSignal) {
+        final String[] columns = new String[] { IndexDatabaseHelper.SavedQueriesColums.QUERY };
+        final String orderBy = "rowId DESC";
+        final String limit = Integer.toString(MAX_PROPOSED_SUGGESTIONS);
+
+        String selection = null;
+        String[] selectionArgs = null;
+        if (!TextUtils.isEmpty(query)) {
+            final String lowerBound = toLowerCaseAscii(query);
+            final String upperBound = getPrefixUpperBound(lowerBound);
+            if (upperBound != null) {
+                selection = IndexDatabaseHelper.SavedQueriesColums.QUERY +
+                        " >= ? COLLATE NOCASE AND " +
+                        IndexDatabaseHelper.SavedQueriesColums.QUERY + " < ? COLLATE NOCASE";
+                selectionArgs = new String[] { lowerBound, upperBound };
+            } else {
+                selection = IndexDatabaseHelper.SavedQueriesColums.QUERY +
+                        " >= ? COLLATE NOCASE AND substr(" +
+                        IndexDatabaseHelper.SavedQueriesColums.QUERY +
+                        ", 1, ?) = ? COLLATE NOCASE";
+                selectionArgs = new String[] { lowerBound,
+                        Integer.toString(lowerBound.codePointCount(0, lowerBound.length())),
+                        lowerBound };
+            }
+        }
+        Log.d(LOG_TAG, "Suggestions query: " + selection + " for: '" + query + "'");
+
+        final long start = SearchMetrics.now();
+        final Cursor cursor = getReadableDatabase().query(false, Tables.TABLE_SAVED_QUERIES,
+                columns, selection, selectionArgs, null, null, orderBy, limit,
+                cancellationSignal);
+        // Run the query now (and not on the first access of the cursor)
+        cursor.getCount();
+        mMetrics.recordQuery(SearchMetrics.QUERY_SUGGESTIONS, start);
+        return cursor;
+    }
+
+    /**
+     * Fold the ASCII letters to lower case the same way as the NOCASE collation does.
+     */
+    private static String toLowerCaseAscii(String value) {
+        final int length = value.length();
+        final StringBuilder sb = new StringBuilder(length);
+        for (int n = 0; n < length; n++) {
+            final char c = value.charAt(n);
+            sb.append((c >= 'A' && c <= 'Z') ? (char) (c - 'A' + 'a') : c);
+        }
         return sb.toString();
     }
 
-    public long addSavedQuery(String query){
-        final SaveSearchQueryTask task = new SaveSearchQueryTask();
-        task.execute(query);
-        try {
-            return task.get();
-        } catch (InterruptedException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1 ;
-        } catch (ExecutionException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1;
+    /**
+     * Return the smallest string greater than all the strings starting with the given prefix or
+     * null if it cannot be computed by incrementing the last character.
+     */
+    private static String getPrefixUpperBound(String prefix) {
+        final int last = prefix.length() - 1;
+        final char c = prefix.charAt(last);
+        if (Character.isSurrogate(c) || c == Character.MAX_VALUE) {
+            return null;
+        }
+        final char next = (char) (c + 1);
+        if (Character.isSurrogate(next) || (next >= 'A' && next <= 'Z')) {
+            // Would not be ordered as the prefix by SQLite (UTF-8 and NOCASE)
+            return null;
+        }
+        return prefix.substring(0, last) + next;
+    }
+
+    /**
+     * Save a search query in the background. The oldest saved queries are removed when there
+     * are more than {@link #MAX_SAVED_SEARCH_QUERY} of them.
+     */
+    public void addSavedQuery(String query) {
+        if (TextUtils.isEmpty(query)) {
+            return;
         }
+        // The serial executor keeps the saves in order
+        new SaveSearchQueryTask().execute(query);
     }
 
+    /**
+     * Update the Index with the data of all the well known SearchIndexablesProvider. The providers
+     * are queried in the background, see {@link #addIndexablesFromRemoteProviders(UpdateData)}.
+     */
     public void update() {
+        synchronized (mDataToProcess) {
+            mDataToProcess.fullUpdate = true;
+        }
+        updateInternal();
+    }
+
+    /**
+     * Query all the well known SearchIndexablesProvider concurrently and add their data to the
+     * update data. The results are added in the providers order.
+     *
+     * The queries only use the immutable context and authority, the synchronized metrics and
+     * a result of their own, so they can run on any indexing thread. The base ranks are
+     * assigned here, in the providers order, as they depend on the order of the first calls.
+     *
+     * The packages whose provider could not be queried are added to the failed packages of
+     * the update data, so that their rows are kept.
+     */
+    private void addIndexablesFromRemoteProviders(UpdateData updateData) {
         final Intent intent = new Intent(SearchIndexablesContract.PROVIDER_INTERFACE);
         List<ResolveInfo> list =
                 mContext.getPackageManager().queryIntentContentProviders(intent, 0);
 
+        final ExecutorService executor = getIndexingExecutor();
+        final List<Future<UpdateData>> futures = new ArrayList<Future<UpdateData>>();
+        final List<String> packageNames = new ArrayList<String>();
+
         final int size = list.size();
         for (int n = 0; n < size; n++) {
             final ResolveInfo info = list.get(n);
@@ -310,43 +596,108 @@ public class Index {
             }
             final String authority = info.providerInfo.authority;
             final String packageName = info.providerInfo.packageName;
+            final int baseRank = Ranking.getBaseRankForAuthority(authority);
 
-            addIndexablesFromRemoteProvider(packageName, authority);
-            addNonIndexablesKeysFromRemoteProvider(packageName, authority);
+            packageNames.add(packageName);
+            futures.add(executor.submit(new Callable<UpdateData>() {
+                @Override
+                public UpdateData call() {
+                    final long start = SearchMetrics.now();
+                    final UpdateData result = new UpdateData();
+                    if (!addIndexablesFromRemoteProvider(packageName, authority, baseRank,
+                            result.dataToUpdate)) {
+                        result.failedPackages.add(packageName);
+                        return result;
+                    }
+                    result.nonIndexableKeys.put(packageName,
+                            getNonIndexablesKeysFromRemoteProvider(packageName, authority));
+                    mMetrics.recordIndexing(SearchMetrics.KIND_REMOTE_PROVIDER, authority,
+                            start, result.dataToUpdate.size(), false);
+                    return result;
+                }
+            }));
         }
 
-        updateInternal();
+        final int count = futures.size();
+        for (int n = 0; n < count; n++) {
+            final UpdateData result = getFutureResult(futures.get(n));
+            if (result == null) {
+                updateData.failedPackages.add(packageNames.get(n));
+            } else if (!result.failedPackages.isEmpty()) {
+                updateData.failedPackages.addAll(result.failedPackages);
+            } else {
+                updateData.dataToUpdate.addAll(result.dataToUpdate);
+                updateData.nonIndexableKeys.putAll(result.nonIndexableKeys);
+            }
+        }
     }
 
-    private boolean addIndexablesFromRemoteProvider(String packageName, String authority) {
+    private static <T> T getFutureResult(Future<T> future) {
         try {
-            final int baseRank = Ranking.getBaseRankForAuthority(authority);
+            return future.get();
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "Interrupted while waiting for indexing", e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Error while indexing", e.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * Return the bounded pool used for querying the providers and parsing the XML resources.
+     * Its threads are only kept alive while indexing.
+     */
+    private static synchronized ExecutorService getIndexingExecutor() {
+        if (sIndexingExecutor == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    INDEXING_THREAD_COUNT, INDEXING_THREAD_COUNT,
+                    INDEXING_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "Index #" + mCount.getAndIncrement());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sIndexingExecutor = executor;
+        }
+        return sIndexingExecutor;
+    }
 
+    /**
+     * @return false if the provider could not be queried, true if its data has been added or
+     *         if its package is gone.
+     */
+    private boolean addIndexablesFromRemoteProvider(String packageName, String authority,
+            int baseRank, List<SearchIndexableData> out) {
+        try {
             final Context context = mBaseAuthority.equals(authority) ?
                     mContext : mContext.createPackageContext(packageName, 0);
 
             final Uri uriForResources = buildUriForXmlResources(authority);
-            addIndexablesForXmlResourceUri(context, packageName, uriForResources,
-                    SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS, baseRank);
-
             final Uri uriForRawData = buildUriForRawData(authority);
-            addIndexablesForRawDataUri(context, packageName, uriForRawData,
-                    SearchIndexablesContract.INDEXABLES_RAW_COLUMNS, baseRank);
-            return true;
+            return addIndexablesForXmlResourceUri(context, packageName, uriForResources,
+                    SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS, baseRank, out)
+                    && addIndexablesForRawDataUri(context, packageName, uriForRawData,
+                    SearchIndexablesContract.INDEXABLES_RAW_COLUMNS, baseRank, out);
         } catch (PackageManager.NameNotFoundException e) {
+            // The package is gone, its rows can be removed
             Log.w(LOG_TAG, "Could not create context for " + packageName + ": "
                     + Log.getStackTraceString(e));
-            return false;
+            return true;
         }
     }
 
-    private void addNonIndexablesKeysFromRemoteProvider(String packageName,
-                                                        String authority) {
-        final List<String> keys =
-                getNonIndexablesKeysFromRemoteProvider(packageName, authority);
-        addNonIndexableKeys(packageName, keys);
-    }
-
     private List<String> getNonIndexablesKeysFromRemoteProvider(String packageName,
                                                                 String authority) {
         try {
@@ -455,7 +806,12 @@ public class Index {
     }
 
     private void updateFromRemoteProvider(String packageName, String authority) {
-        if (addIndexablesFromRemoteProvider(packageName, authority)) {
+        final List<SearchIndexableData> list = new ArrayList<SearchIndexableData>();
+        if (addIndexablesFromRemoteProvider(packageName, authority,
+                Ranking.getBaseRankForAuthority(authority), list)) {
+            synchronized (mDataToProcess) {
+                mDataToProcess.dataToUpdate.addAll(list);
+            }
             updateInternal();
         }
     }
@@ -495,6 +851,46 @@ public class Index {
         updateInternal();
     }
 
+    /**
+     * Print the size of the Index and the indexing and query metrics. Used by the dump of
+     * {@link com.android.settings.SettingsActivity}.
+     */
+    public void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix); pw.println("Search Index:");
+        final String innerPrefix = prefix + "  ";
+        try {
+            final SQLiteDatabase database = getReadableDatabase();
+            pw.print(innerPrefix); pw.print("Database size: ");
+            pw.print(new File(database.getPath()).length() / 1024); pw.println(" KB");
+
+            Cursor cursor = database.rawQuery("SELECT " + IndexColumns.LOCALE + ", COUNT(*) FROM " +
+                    Tables.TABLE_PREFS_INDEX + " GROUP BY " + IndexColumns.LOCALE, null);
+            try {
+                while (cursor.moveToNext()) {
+                    pw.print(innerPrefix); pw.print("Rows for locale '");
+                    pw.print(cursor.getString(0)); pw.print("': "); pw.println(cursor.getInt(1));
+                }
+            } finally {
+                cursor.close();
+            }
+            pw.print(innerPrefix); pw.print("Manifest entries: ");
+            pw.println(DatabaseUtils.queryNumEntries(database, Tables.TABLE_INDEX_MANIFEST));
+            pw.print(innerPrefix); pw.print("Saved queries: ");
+            pw.println(DatabaseUtils.queryNumEntries(database, Tables.TABLE_SAVED_QUERIES));
+        } catch (Exception e) {
+            pw.print(innerPrefix); pw.print("Cannot read the Index database: "); pw.println(e);
+        }
+
+        synchronized (mPrefixIndexLock) {
+            pw.print(innerPrefix); pw.print("Prefix index: ");
+            pw.println((mPrefixIndex != null) ? mPrefixIndex.getLocale() + ", " +
+                    mPrefixIndex.getRowCount() + " rows" : "not loaded");
+        }
+        pw.print(innerPrefix); pw.print("Available: "); pw.println(isAvailable());
+
+        mMetrics.dump(innerPrefix, pw);
+    }
+
     private SQLiteDatabase getReadableDatabase() {
         return IndexDatabaseHelper.getInstance(mContext).getReadableDatabase();
     }
@@ -527,15 +923,15 @@ public class Index {
         }
     }
 
-    private void addIndexablesForXmlResourceUri(Context packageContext, String packageName,
-            Uri uri, String[] projection, int baseRank) {
+    private boolean addIndexablesForXmlResourceUri(Context packageContext, String packageName,
+            Uri uri, String[] projection, int baseRank, List<SearchIndexableData> out) {
 
         final ContentResolver resolver = packageContext.getContentResolver();
         final Cursor cursor = resolver.query(uri, projection, null, null, null);
 
         if (cursor == null) {
             Log.w(LOG_TAG, "Cannot add index data for Uri: " + uri.toString());
-            return;
+            return false;
         }
 
         try {
@@ -566,23 +962,24 @@ public class Index {
                     sir.intentTargetPackage = targetPackage;
                     sir.intentTargetClass = targetClass;
 
-                    addIndexableData(sir);
+                    out.add(sir);
                 }
             }
         } finally {
             cursor.close();
         }
+        return true;
     }
 
-    private void addIndexablesForRawDataUri(Context packageContext, String packageName,
-            Uri uri, String[] projection, int baseRank) {
+    private boolean addIndexablesForRawDataUri(Context packageContext, String packageName,
+            Uri uri, String[] projection, int baseRank, List<SearchIndexableData> out) {
 
         final ContentResolver resolver = packageContext.getContentResolver();
         final Cursor cursor = resolver.query(uri, projection, null, null, null);
 
         if (cursor == null) {
             Log.w(LOG_TAG, "Cannot add index data for Uri: " + uri.toString());
-            return;
+            return false;
         }
 
         try {
@@ -629,88 +1026,100 @@ public class Index {
                     data.key = key;
                     data.userId = userId;
 
-                    addIndexableData(data);
+                    out.add(data);
                 }
             }
         } finally {
             cursor.close();
         }
+        return true;
     }
 
-    private String buildSearchSQL(String query, String[] colums, boolean withOrderBy) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(buildSearchSQLForColumn(query, colums));
-        if (withOrderBy) {
-            sb.append(" ORDER BY ");
-            sb.append(IndexColumns.DATA_RANK);
-        }
-        return sb.toString();
-    }
-
-    private String buildSearchSQLForColumn(String query, String[] columnNames) {
+    private static String buildSearchSQL() {
         StringBuilder sb = new StringBuilder();
         sb.append("SELECT ");
         for (int n = 0; n < SELECT_COLUMNS.length; n++) {
             sb.append(SELECT_COLUMNS[n]);
-            if (n < SELECT_COLUMNS.length - 1) {
-                sb.append(", ");
-            }
+            sb.append(", ");
         }
+        sb.append("matchinfo(");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(", '");
+        sb.append(MATCHINFO_FORMAT);
+        sb.append("')");
         sb.append(" FROM ");
         sb.append(Tables.TABLE_PREFS_INDEX);
         sb.append(" WHERE ");
-        sb.append(buildSearchWhereStringForColumns(query, columnNames));
-
-        return sb.toString();
-    }
-
-    private String buildSearchWhereStringForColumns(String query, String[] columnNames) {
-        final StringBuilder sb = new StringBuilder(Tables.TABLE_PREFS_INDEX);
-        sb.append(" MATCH ");
-        DatabaseUtils.appendEscapedSQLString(sb,
-                buildSearchMatchStringForColumns(query, columnNames));
-        sb.append(" AND ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" MATCH ? AND ");
         sb.append(IndexColumns.LOCALE);
-        sb.append(" = ");
-        DatabaseUtils.appendEscapedSQLString(sb, Locale.getDefault().toString());
-        sb.append(" AND ");
+        sb.append(" = ? AND ");
         sb.append(IndexColumns.ENABLED);
         sb.append(" = 1");
         return sb.toString();
     }
 
+    /**
+     * Build the FTS MATCH expression for a query, with one group per term of the query
+     * matching it in any of the columns: a column filter only applies to the term following it.
+     * The terms are split as the {@link PrefixIndex} does it, and only the last one is used as
+     * a prefix, so that both match the same rows.
+     *
+     * @return the expression, or null if the query has no terms.
+     */
     private String buildSearchMatchStringForColumns(String query, String[] columnNames) {
-        final String value = query + "*";
+        final List<String> terms = PrefixIndex.tokenize(query);
+        final int termCount = terms.size();
+        if (termCount == 0) {
+            return null;
+        }
         StringBuilder sb = new StringBuilder();
         final int count = columnNames.length;
-        for (int n = 0; n < count; n++) {
-            sb.append(columnNames[n]);
-            sb.append(":");
-            sb.append(value);
-            if (n < count - 1) {
-                sb.append(" OR ");
+        for (int t = 0; t < termCount; t++) {
+            final String value = (t == termCount - 1) ? terms.get(t) + "*" : terms.get(t);
+            if (t > 0) {
+                sb.append(" ");
+            }
+            sb.append("(");
+            for (int n = 0; n < count; n++) {
+                sb.append(columnNames[n]);
+                sb.append(":");
+                sb.append(value);
+                if (n < count - 1) {
+                    sb.append(" OR ");
+                }
             }
+            sb.append(")");
         }
         return sb.toString();
     }
 
-    private void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
-            SearchIndexableData data, Map<String, List<String>> nonIndexableKeys) {
+    private IndexResult indexOneSearchIndexableData(String localeStr, SearchIndexableData data,
+            Map<String, List<String>> nonIndexableKeys, IndexManifest manifest) {
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            return indexOneResource(localeStr, (SearchIndexableResource) data, nonIndexableKeys,
+                    manifest);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data);
+            // Owned by an entry of its class, so that the rows are removed when the class is
+            // rebuilt or the entry goes stale after an OTA
+            final String manifestKey = IndexManifest.getForcedRawKey(
+                    manifest.getPackageName(data.packageName), data.className);
+            final IndexResult result = new IndexResult(manifestKey, data.className, 0);
+            result.appendRows = true;
+            indexOneRaw(result.rows, localeStr, (SearchIndexableRaw) data);
+            return result;
         }
+        return null;
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
+    private void indexOneRaw(List<IndexWriter.Row> rows, String localeStr,
                              SearchIndexableRaw raw) {
         // Should be the same locale as the one we are processing
         if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
             return;
         }
 
-        updateOneRowWithFilteredData(database, localeStr,
+        updateOneRowWithFilteredData(rows, localeStr,
                 raw.title,
                 raw.summaryOn,
                 raw.summaryOff,
@@ -743,37 +1152,56 @@ public class Index {
         return isIndexableClass(clazz) ? clazz : null;
     }
 
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
-            SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource) {
+    /**
+     * Produce the rows for one resource. Can be called from any indexing thread as it is not
+     * touching the database.
+     *
+     * @return the rows to write or null if there is nothing to index.
+     */
+    private IndexResult indexOneResource(String localeStr, SearchIndexableResource sir,
+            Map<String, List<String>> nonIndexableKeysFromResource, IndexManifest manifest) {
 
         if (sir == null) {
             Log.e(LOG_TAG, "Cannot index a null resource!");
-            return;
+            return null;
         }
 
         final List<String> nonIndexableKeys = new ArrayList<String>();
 
+        final String packageName = manifest.getPackageName(sir.packageName);
+        final String manifestKey =
+                IndexManifest.getResourceKey(packageName, sir.className, sir.xmlResId);
+
         if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
             List<String> resNonIndxableKeys = nonIndexableKeysFromResource.get(sir.packageName);
             if (resNonIndxableKeys != null && resNonIndxableKeys.size() > 0) {
                 nonIndexableKeys.addAll(resNonIndxableKeys);
             }
 
-            indexFromResource(sir.context, database, localeStr,
+            final long fingerprint =
+                    manifest.newResourceFingerprint(sir, packageName, nonIndexableKeys).get();
+            final IndexResult result = new IndexResult(manifestKey, sir.className, fingerprint);
+            if (manifest.matches(manifestKey, fingerprint)) {
+                result.unchanged = true;
+                return result;
+            }
+
+            indexFromResource(sir.context, result.rows, localeStr,
                     sir.xmlResId, sir.className, sir.iconResId, sir.rank,
                     sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
                     nonIndexableKeys);
+            return result;
         } else {
             if (TextUtils.isEmpty(sir.className)) {
                 Log.w(LOG_TAG, "Cannot index an empty Search Provider name!");
-                return;
+                return null;
             }
 
             final Class<?> clazz = getIndexableClass(sir.className);
             if (clazz == null) {
                 Log.d(LOG_TAG, "SearchIndexableResource '" + sir.className +
                         "' should implement the " + Indexable.class.getName() + " interface!");
-                return;
+                return null;
             }
 
             // Will be non null only for a Local provider implementing a
@@ -785,10 +1213,55 @@ public class Index {
                     nonIndexableKeys.addAll(providerNonIndexableKeys);
                 }
 
-                indexFromProvider(mContext, database, localeStr, provider, sir.className,
-                        sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
+                final List<SearchIndexableRaw> rawList =
+                        provider.getRawDataToIndex(mContext, sir.enabled);
+                final List<SearchIndexableResource> resList =
+                        provider.getXmlResourcesToIndex(mContext, sir.enabled);
+
+                final long fingerprint = getProviderFingerprint(manifest, sir, packageName,
+                        nonIndexableKeys, rawList, resList);
+                final IndexResult result =
+                        new IndexResult(manifestKey, sir.className, fingerprint);
+                if (manifest.matches(manifestKey, fingerprint)) {
+                    result.unchanged = true;
+                    return result;
+                }
+
+                indexFromProvider(mContext, result.rows, localeStr, rawList, resList,
+                        sir.className, sir.iconResId, sir.rank, nonIndexableKeys);
+                return result;
+            }
+            return null;
+        }
+    }
+
+    private static long getProviderFingerprint(IndexManifest manifest,
+            SearchIndexableResource sir, String packageName, List<String> nonIndexableKeys,
+            List<SearchIndexableRaw> rawList, List<SearchIndexableResource> resList) {
+        final IndexManifest.Fingerprint fingerprint =
+                manifest.newResourceFingerprint(sir, packageName, nonIndexableKeys);
+        if (rawList != null) {
+            final int rawSize = rawList.size();
+            for (int i = 0; i < rawSize; i++) {
+                fingerprint.add(rawList.get(i));
             }
+            fingerprint.add(rawSize);
         }
+        if (resList != null) {
+            final int resSize = resList.size();
+            for (int i = 0; i < resSize; i++) {
+                final SearchIndexableResource item = resList.get(i);
+                fingerprint.add(item.xmlResId);
+                fingerprint.add(item.className);
+                fingerprint.add(item.iconResId);
+                fingerprint.add(item.rank);
+                fingerprint.add(item.intentAction);
+                fingerprint.add(item.intentTargetPackage);
+                fingerprint.add(item.intentTargetClass);
+            }
+            fingerprint.add(resSize);
+        }
+        return fingerprint.get();
     }
 
     private Indexable.SearchIndexProvider getSearchIndexProvider(final Class<?> clazz) {
@@ -811,11 +1284,13 @@ public class Index {
         return null;
     }
 
-    private void indexFromResource(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromResource(Context context, List<IndexWriter.Row> rows, String localeStr,
            int xmlResId, String fragmentName, int iconResId, int rank,
            String intentAction, String intentTargetPackage, String intentTargetClass,
            List<String> nonIndexableKeys) {
 
+        final long start = SearchMetrics.now();
+        final int rowsCount = rows.size();
         XmlResourceParser parser = null;
         try {
             parser = context.getResources().getXml(xmlResId);
@@ -851,7 +1326,7 @@ public class Index {
                 summary = getDataSummary(context, attrs);
                 keywords = getDataKeywords(context, attrs);
 
-                updateOneRowWithFilteredData(database, localeStr, title, summary, null, null,
+                updateOneRowWithFilteredData(rows, localeStr, title, summary, null, null,
                         fragmentName, screenTitle, iconResId, rank,
                         keywords, intentAction, intentTargetPackage, intentTargetClass, true,
                         key, -1 /* default user id */);
@@ -883,7 +1358,7 @@ public class Index {
                     }
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, localeStr, title, summary, null, entries,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summary, null, entries,
                             fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -895,7 +1370,7 @@ public class Index {
                         summaryOn = getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, localeStr, title, summaryOn, summaryOff,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summaryOn, summaryOff,
                             null, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -908,19 +1383,37 @@ public class Index {
             throw new RuntimeException("Error parsing PreferenceScreen", e);
         } finally {
             if (parser != null) parser.close();
+            mMetrics.recordIndexing(SearchMetrics.KIND_XML_RESOURCE,
+                    getXmlResourceLabel(context, xmlResId, fragmentName), start,
+                    rows.size() - rowsCount, false);
         }
     }
 
-    private void indexFromProvider(Context context, SQLiteDatabase database, String localeStr,
-            Indexable.SearchIndexProvider provider, String className, int iconResId, int rank,
-            boolean enabled, List<String> nonIndexableKeys) {
+    private static String getXmlResourceLabel(Context context, int xmlResId,
+            String fragmentName) {
+        String name;
+        try {
+            name = context.getResources().getResourceName(xmlResId);
+        } catch (Resources.NotFoundException e) {
+            name = "0x" + Integer.toHexString(xmlResId);
+        }
+        return TextUtils.isEmpty(fragmentName) ? name : name + " (" + fragmentName + ")";
+    }
 
-        if (provider == null) {
-            Log.w(LOG_TAG, "Cannot find provider: " + className);
-            return;
+    private static String getIndexableLabel(SearchIndexableData data) {
+        if (data instanceof SearchIndexableResource) {
+            final SearchIndexableResource sir = (SearchIndexableResource) data;
+            if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
+                return sir.className + " (xml 0x" + Integer.toHexString(sir.xmlResId) + ")";
+            }
+            return sir.className + " (provider)";
         }
+        return data.className + " (raw)";
+    }
 
-        final List<SearchIndexableRaw> rawList = provider.getRawDataToIndex(context, enabled);
+    private void indexFromProvider(Context context, List<IndexWriter.Row> rows, String localeStr,
+            List<SearchIndexableRaw> rawList, List<SearchIndexableResource> resList,
+            String className, int iconResId, int rank, List<String> nonIndexableKeys) {
 
         if (rawList != null) {
             final int rawSize = rawList.size();
@@ -936,7 +1429,7 @@ public class Index {
                     continue;
                 }
 
-                updateOneRowWithFilteredData(database, localeStr,
+                updateOneRowWithFilteredData(rows, localeStr,
                         raw.title,
                         raw.summaryOn,
                         raw.summaryOff,
@@ -955,8 +1448,6 @@ public class Index {
             }
         }
 
-        final List<SearchIndexableResource> resList =
-                provider.getXmlResourcesToIndex(context, enabled);
         if (resList != null) {
             final int resSize = resList.size();
             for (int i = 0; i < resSize; i++) {
@@ -972,7 +1463,7 @@ public class Index {
                 String itemClassName = (TextUtils.isEmpty(item.className))
                         ? className : item.className;
 
-                indexFromResource(context, database, localeStr,
+                indexFromResource(context, rows, localeStr,
                         item.xmlResId, itemClassName, itemIconResId, itemRank,
                         item.intentAction, item.intentTargetPackage,
                         item.intentTargetClass, nonIndexableKeys);
@@ -980,7 +1471,7 @@ public class Index {
         }
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, String locale,
+    private void updateOneRowWithFilteredData(List<IndexWriter.Row> rows, String locale,
             String title, String summaryOn, String summaryOff, String entries,
             String className,
             String screenTitle, int iconResId, int rank, String keywords,
@@ -995,7 +1486,7 @@ public class Index {
         final String normalizedSummaryOn = normalizeString(updatedSummaryOn);
         final String normalizedSummaryOff = normalizeString(updatedSummaryOff);
 
-        updateOneRow(database, locale,
+        updateOneRow(rows, locale,
                 updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
                 updatedSummaryOff, normalizedSummaryOff, entries,
                 className, screenTitle, iconResId,
@@ -1014,7 +1505,7 @@ public class Index {
         return REMOVE_DIACRITICALS_PATTERN.matcher(normalized).replaceAll("").toLowerCase();
     }
 
-    private void updateOneRow(SQLiteDatabase database, String locale,
+    private void updateOneRow(List<IndexWriter.Row> rows, String locale,
             String updatedTitle, String normalizedTitle,
             String updatedSummaryOn, String normalizedSummaryOn,
             String updatedSummaryOff, String normalizedSummaryOff, String entries,
@@ -1032,29 +1523,29 @@ public class Index {
         sb.append(screenTitle);
         int docId = sb.toString().hashCode();
 
-        ContentValues values = new ContentValues();
-        values.put(IndexColumns.DOCID, docId);
-        values.put(IndexColumns.LOCALE, locale);
-        values.put(IndexColumns.DATA_RANK, rank);
-        values.put(IndexColumns.DATA_TITLE, updatedTitle);
-        values.put(IndexColumns.DATA_TITLE_NORMALIZED, normalizedTitle);
-        values.put(IndexColumns.DATA_SUMMARY_ON, updatedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_ON_NORMALIZED, normalizedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_OFF, updatedSummaryOff);
-        values.put(IndexColumns.DATA_SUMMARY_OFF_NORMALIZED, normalizedSummaryOff);
-        values.put(IndexColumns.DATA_ENTRIES, entries);
-        values.put(IndexColumns.DATA_KEYWORDS, keywords);
-        values.put(IndexColumns.CLASS_NAME, className);
-        values.put(IndexColumns.SCREEN_TITLE, screenTitle);
-        values.put(IndexColumns.INTENT_ACTION, intentAction);
-        values.put(IndexColumns.INTENT_TARGET_PACKAGE, intentTargetPackage);
-        values.put(IndexColumns.INTENT_TARGET_CLASS, intentTargetClass);
-        values.put(IndexColumns.ICON, iconResId);
-        values.put(IndexColumns.ENABLED, enabled);
-        values.put(IndexColumns.DATA_KEY_REF, key);
-        values.put(IndexColumns.USER_ID, userId);
-
-        database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+        final IndexWriter.Row row = new IndexWriter.Row();
+        row.docId = docId;
+        row.locale = locale;
+        row.rank = rank;
+        row.title = updatedTitle;
+        row.normalizedTitle = normalizedTitle;
+        row.summaryOn = updatedSummaryOn;
+        row.normalizedSummaryOn = normalizedSummaryOn;
+        row.summaryOff = updatedSummaryOff;
+        row.normalizedSummaryOff = normalizedSummaryOff;
+        row.entries = entries;
+        row.keywords = keywords;
+        row.className = className;
+        row.screenTitle = screenTitle;
+        row.intentAction = intentAction;
+        row.intentTargetPackage = intentTargetPackage;
+        row.intentTargetClass = intentTargetClass;
+        row.iconResId = iconResId;
+        row.enabled = enabled;
+        row.key = key;
+        row.userId = userId;
+
+        rows.add(row);
     }
 
     private String getDataKey(Context context, AttributeSet attrs) {
@@ -1164,67 +1655,225 @@ public class Index {
 
         @Override
         protected Void doInBackground(UpdateData... params) {
-            final List<SearchIndexableData> dataToUpdate = params[0].dataToUpdate;
-            final List<SearchIndexableData> dataToDelete = params[0].dataToDelete;
-            final Map<String, List<String>> nonIndexableKeys = params[0].nonIndexableKeys;
+            final UpdateData updateData = params[0];
+            final List<SearchIndexableData> dataToDelete = updateData.dataToDelete;
 
-            final boolean forceUpdate = params[0].forceUpdate;
+            final boolean forceUpdate = updateData.forceUpdate;
+            final boolean fullUpdate = updateData.fullUpdate;
 
             final SQLiteDatabase database = getWritableDatabase();
             final String localeStr = Locale.getDefault().toString();
 
+            final long current = System.currentTimeMillis();
+
+            // Producing the rows (querying the providers and parsing the XML resources) is done
+            // concurrently and before starting the transaction, so that the transaction is only
+            // writing the rows.
+            IndexManifest manifest = null;
+            List<IndexResult> results = null;
+            if (updateData.dataToUpdate.size() > 0 || fullUpdate) {
+                if (!forceUpdate && isLocaleAlreadyIndexed(database, localeStr) &&
+                        !IndexManifest.hasStaleEntries(database, localeStr)) {
+                    Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
+                } else {
+                    if (fullUpdate) {
+                        addIndexablesFromRemoteProviders(updateData);
+                    }
+                    manifest = new IndexManifest(mContext, database, localeStr);
+                    // Data deleted by this update needs to be reindexed
+                    final int count = dataToDelete.size();
+                    for (int n = 0; n < count; n++) {
+                        final SearchIndexableData data = dataToDelete.get(n);
+                        if (data != null && !TextUtils.isEmpty(data.className)) {
+                            manifest.forgetClassName(data.className);
+                        }
+                    }
+                    results = processDataToUpdate(localeStr, updateData.dataToUpdate,
+                            updateData.nonIndexableKeys, forceUpdate, manifest);
+                }
+            }
+
+            final long writeStart = System.currentTimeMillis();
+            final IndexWriter writer = new IndexWriter(database);
             try {
                 database.beginTransaction();
                 if (dataToDelete.size() > 0) {
-                    processDataToDelete(database, localeStr, dataToDelete);
+                    processDataToDelete(database, writer, localeStr, dataToDelete);
                 }
-                if (dataToUpdate.size() > 0) {
-                    processDataToUpdate(database, localeStr, dataToUpdate, nonIndexableKeys,
-                            forceUpdate);
+                if (results != null) {
+                    writeIndexResults(writer, manifest, results);
+                    if (fullUpdate) {
+                        // Keep what was indexed for the providers that could not be queried
+                        for (String packageName : updateData.failedPackages) {
+                            manifest.markPackageVerified(packageName);
+                        }
+                        manifest.removeStaleEntries();
+                    }
                 }
                 database.setTransactionSuccessful();
             } finally {
                 database.endTransaction();
+                writer.close();
+                if (manifest != null) {
+                    manifest.close();
+                }
+            }
+
+            if (results != null || dataToDelete.size() > 0) {
+                invalidatePrefixIndex();
+            }
+
+            if (results != null) {
+                final long now = System.currentTimeMillis();
+                Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
+                        (now - current) + " millis (writing " + writer.getInsertedCount() +
+                        " rows took " + (now - writeStart) + " millis, " +
+                        manifest.getChangedCount() + " changed, " +
+                        manifest.getUnchangedCount() + " unchanged)");
+                mMetrics.recordUpdate(localeStr, now - current, now - writeStart,
+                        writer.getInsertedCount(), manifest.getChangedCount(),
+                        manifest.getUnchangedCount());
             }
 
             return null;
         }
 
-        private boolean processDataToUpdate(SQLiteDatabase database, String localeStr,
-                List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys,
-                boolean forceUpdate) {
+        /**
+         * Produce the rows for the data to update on the indexing pool.
+         *
+         * @return the results in the same order as the data to update.
+         */
+        private List<IndexResult> processDataToUpdate(final String localeStr,
+                List<SearchIndexableData> dataToUpdate,
+                final Map<String, List<String>> nonIndexableKeys, boolean forceUpdate,
+                final IndexManifest manifest) {
 
-            if (!forceUpdate && isLocaleAlreadyIndexed(database, localeStr)) {
-                Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
-                return true;
-            }
+            final ExecutorService executor = getIndexingExecutor();
+            final List<Future<IndexResult>> futures = new ArrayList<Future<IndexResult>>();
 
-            boolean result = false;
-            final long current = System.currentTimeMillis();
+            // Raw data coming from the providers is grouped by package, so that it is only
+            // reindexed when something changed for the package
+            final Map<String, List<SearchIndexableRaw>> rawDataByPackage =
+                    new HashMap<String, List<SearchIndexableRaw>>();
 
             final int count = dataToUpdate.size();
             for (int n = 0; n < count; n++) {
                 final SearchIndexableData data = dataToUpdate.get(n);
-                try {
-                    indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG,
-                            "Cannot index: " + data.className + " for locale: " + localeStr, e);
+                if (!forceUpdate && data instanceof SearchIndexableRaw) {
+                    final String packageName = manifest.getPackageName(data.packageName);
+                    List<SearchIndexableRaw> rawList = rawDataByPackage.get(packageName);
+                    if (rawList == null) {
+                        rawList = new ArrayList<SearchIndexableRaw>();
+                        rawDataByPackage.put(packageName, rawList);
+                    }
+                    rawList.add((SearchIndexableRaw) data);
+                    continue;
                 }
+                futures.add(executor.submit(new Callable<IndexResult>() {
+                    @Override
+                    public IndexResult call() {
+                        final long start = SearchMetrics.now();
+                        try {
+                            final IndexResult result = indexOneSearchIndexableData(localeStr,
+                                    data, nonIndexableKeys, manifest);
+                            mMetrics.recordIndexing(SearchMetrics.KIND_INDEXABLE,
+                                    getIndexableLabel(data), start,
+                                    (result != null) ? result.rows.size() : 0,
+                                    result != null && result.unchanged);
+                            return result;
+                        } catch (Exception e) {
+                            Log.e(LOG_TAG, "Cannot index: " + data.className + " for locale: " +
+                                    localeStr, e);
+                            return null;
+                        }
+                    }
+                }));
             }
 
-            final long now = System.currentTimeMillis();
-            Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
-                    (now - current) + " millis");
+            final List<IndexResult> results = new ArrayList<IndexResult>();
+            for (Map.Entry<String, List<SearchIndexableRaw>> entry : rawDataByPackage.entrySet()) {
+                results.add(processRawDataForPackage(localeStr, entry.getKey(), entry.getValue(),
+                        manifest));
+            }
+
+            final int futuresCount = futures.size();
+            for (int n = 0; n < futuresCount; n++) {
+                final IndexResult result = getFutureResult(futures.get(n));
+                if (result != null) {
+                    results.add(result);
+                }
+            }
+            return results;
+        }
+
+        private IndexResult processRawDataForPackage(String localeStr, String packageName,
+                List<SearchIndexableRaw> rawList, IndexManifest manifest) {
+            final long start = SearchMetrics.now();
+            final String manifestKey = IndexManifest.getRawKey(packageName);
+            final IndexManifest.Fingerprint fingerprint = new IndexManifest.Fingerprint();
+            fingerprint.add(manifest.getPackageToken(packageName));
+            final int count = rawList.size();
+            for (int n = 0; n < count; n++) {
+                fingerprint.add(rawList.get(n));
+            }
+            fingerprint.add(count);
+
+            final IndexResult result = new IndexResult(manifestKey, null, fingerprint.get());
+            if (manifest.matches(manifestKey, fingerprint.get())) {
+                result.unchanged = true;
+            } else {
+                for (int n = 0; n < count; n++) {
+                    final SearchIndexableRaw raw = rawList.get(n);
+                    try {
+                        indexOneRaw(result.rows, localeStr, raw);
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG,
+                                "Cannot index: " + raw.className + " for locale: " + localeStr,
+                                e);
+                    }
+                }
+            }
+            mMetrics.recordIndexing(SearchMetrics.KIND_INDEXABLE, manifestKey, start,
+                    result.rows.size(), result.unchanged);
             return result;
         }
 
-        private boolean processDataToDelete(SQLiteDatabase database, String localeStr,
-                List<SearchIndexableData> dataToDelete) {
+        private void writeIndexResults(IndexWriter writer, IndexManifest manifest,
+                List<IndexResult> results) {
+            final int count = results.size();
+            for (int n = 0; n < count; n++) {
+                final IndexResult result = results.get(n);
+                if (result.manifestKey != null) {
+                    if (result.unchanged) {
+                        manifest.markVerified(result.manifestKey);
+                        continue;
+                    }
+                    if (!result.appendRows) {
+                        manifest.clearRows(result.manifestKey);
+                    }
+                }
+
+                final List<IndexWriter.Row> rows = result.rows;
+                final int rowsCount = rows.size();
+                for (int i = 0; i < rowsCount; i++) {
+                    writer.insert(rows.get(i));
+                }
+
+                if (result.manifestKey != null) {
+                    manifest.put(result.manifestKey, result.className, result.fingerprint,
+                            rows);
+                }
+                writer.yieldIfNeeded();
+            }
+        }
+
+        private boolean processDataToDelete(SQLiteDatabase database, IndexWriter writer,
+                String localeStr, List<SearchIndexableData> dataToDelete) {
 
             boolean result = false;
             final long current = System.currentTimeMillis();
 
+            final List<String> classNames = new ArrayList<String>();
             final int count = dataToDelete.size();
             for (int n = 0; n < count; n++) {
                 final SearchIndexableData data = dataToDelete.get(n);
@@ -1232,7 +1881,8 @@ public class Index {
                     continue;
                 }
                 if (!TextUtils.isEmpty(data.className)) {
-                    delete(database, IndexColumns.CLASS_NAME, data.className);
+                    classNames.add(data.className);
+                    IndexManifest.deleteForClassName(database, data.className);
                 } else  {
                     if (data instanceof SearchIndexableRaw) {
                         final SearchIndexableRaw raw = (SearchIndexableRaw) data;
@@ -1242,6 +1892,9 @@ public class Index {
                     }
                 }
             }
+            if (classNames.size() > 0) {
+                writer.deleteClassNames(classNames, null);
+            }
 
             final long now = System.currentTimeMillis();
             Log.d(LOG_TAG, "Deleting data for locale '" + localeStr + "' took " +
@@ -1293,6 +1946,7 @@ public class Index {
             final SQLiteDatabase database = getWritableDatabase();
 
             long lastInsertedRowId = -1;
+            database.beginTransaction();
             try {
                 // First, delete all saved queries that are the same
                 database.delete(Tables.TABLE_SAVED_QUERIES,
@@ -1310,8 +1964,12 @@ public class Index {
                             new String[] { Long.toString(delta) });
                     Log.d(LOG_TAG, "Deleted '" + count + "' saved Search query(ies)");
                 }
+                database.setTransactionSuccessful();
             } catch (Exception e) {
                 Log.d(LOG_TAG, "Cannot update saved Search queries", e);
+                lastInsertedRowId = -1;
+            } finally {
+                database.endTransaction();
             }
 
             return lastInsertedRowId;
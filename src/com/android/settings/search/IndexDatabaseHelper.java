@@ -28,12 +28,19 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "IndexDatabaseHelper";
 
     private static final String DATABASE_NAME = "search_index.db";
-    private static final int DATABASE_VERSION = 115;
+    private static final int DATABASE_VERSION = 116;
 
     public interface Tables {
         public static final String TABLE_PREFS_INDEX = "prefs_index";
         public static final String TABLE_META_INDEX = "meta_index";
         public static final String TABLE_SAVED_QUERIES = "saved_queries";
+        public static final String TABLE_INDEX_MANIFEST = "index_manifest";
+        public static final String TABLE_INDEX_MANIFEST_ROWS = "index_manifest_rows";
+    }
+
+    public interface Indexes {
+        public static final String INDEX_SAVED_QUERIES_QUERY = "saved_queries_query";
+        public static final String INDEX_MANIFEST_ROWS_DOCID = "index_manifest_rows_docid";
     }
 
     public interface IndexColumns {
@@ -59,6 +66,30 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String USER_ID = "user_id";
     }
 
+    // The columns of the prefs_index table in the order used by CREATE_INDEX_TABLE (this is the
+    // order of the FTS matchinfo() data)
+    public static final String[] INDEX_COLUMNS = new String[] {
+            IndexColumns.LOCALE,
+            IndexColumns.DATA_RANK,
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES,
+            IndexColumns.DATA_KEYWORDS,
+            IndexColumns.SCREEN_TITLE,
+            IndexColumns.CLASS_NAME,
+            IndexColumns.ICON,
+            IndexColumns.INTENT_ACTION,
+            IndexColumns.INTENT_TARGET_PACKAGE,
+            IndexColumns.INTENT_TARGET_CLASS,
+            IndexColumns.ENABLED,
+            IndexColumns.DATA_KEY_REF,
+            IndexColumns.USER_ID
+    };
+
     public interface MetaColumns {
         public static final String BUILD = "build";
     }
@@ -68,6 +99,20 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String TIME_STAMP = "timestamp";
     }
 
+    public interface ManifestColumns {
+        public static final String LOCALE = "locale";
+        public static final String KEY = "manifest_key";
+        public static final String CLASS_NAME = "class_name";
+        public static final String FINGERPRINT = "fingerprint";
+        public static final String BUILD = "build";
+    }
+
+    public interface ManifestRowsColumns {
+        public static final String LOCALE = "locale";
+        public static final String KEY = "manifest_key";
+        public static final String DOCID = "docid";
+    }
+
     private static final String CREATE_INDEX_TABLE =
             "CREATE VIRTUAL TABLE " + Tables.TABLE_PREFS_INDEX + " USING fts4" +
                     "(" +
@@ -124,6 +169,53 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     SavedQueriesColums.TIME_STAMP + " INTEGER" +
                     ")";
 
+    // Case insensitive (like the LIKE operator) so that it can be used for prefix queries
+    private static final String CREATE_SAVED_QUERIES_INDEX =
+            "CREATE INDEX " + Indexes.INDEX_SAVED_QUERIES_QUERY +
+                    " ON " + Tables.TABLE_SAVED_QUERIES +
+                    "(" +
+                    SavedQueriesColums.QUERY + " COLLATE NOCASE" +
+                    ")";
+
+    private static final String CREATE_INDEX_MANIFEST_TABLE =
+            "CREATE TABLE " + Tables.TABLE_INDEX_MANIFEST +
+                    "(" +
+                    ManifestColumns.LOCALE + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    ManifestColumns.KEY + " TEXT NOT NULL" +
+                    ", " +
+                    ManifestColumns.CLASS_NAME + " TEXT" +
+                    ", " +
+                    ManifestColumns.FINGERPRINT + " INTEGER NOT NULL" +
+                    ", " +
+                    ManifestColumns.BUILD + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    "PRIMARY KEY (" + ManifestColumns.LOCALE + ", " + ManifestColumns.KEY + ")" +
+                    ")";
+
+    // The docids of the rows written for each manifest entry, so that the rows can be deleted
+    // with the entry (raw data rows do not record where they come from)
+    private static final String CREATE_INDEX_MANIFEST_ROWS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_INDEX_MANIFEST_ROWS +
+                    "(" +
+                    ManifestRowsColumns.LOCALE + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    ManifestRowsColumns.KEY + " TEXT NOT NULL" +
+                    ", " +
+                    ManifestRowsColumns.DOCID + " INTEGER NOT NULL" +
+                    ", " +
+                    "PRIMARY KEY (" + ManifestRowsColumns.LOCALE + ", " + ManifestRowsColumns.KEY +
+                    ", " + ManifestRowsColumns.DOCID + ")" +
+                    ")";
+
+    // For finding the other entries sharing a row
+    private static final String CREATE_INDEX_MANIFEST_ROWS_DOCID_INDEX =
+            "CREATE INDEX " + Indexes.INDEX_MANIFEST_ROWS_DOCID +
+                    " ON " + Tables.TABLE_INDEX_MANIFEST_ROWS +
+                    "(" +
+                    ManifestRowsColumns.DOCID +
+                    ")";
+
     private static final String INSERT_BUILD_VERSION =
             "INSERT INTO " + Tables.TABLE_META_INDEX +
                     " VALUES ('" + Build.VERSION.INCREMENTAL + "');";
@@ -153,6 +245,10 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_INDEX_TABLE);
         db.execSQL(CREATE_META_TABLE);
         db.execSQL(CREATE_SAVED_QUERIES_TABLE);
+        db.execSQL(CREATE_SAVED_QUERIES_INDEX);
+        db.execSQL(CREATE_INDEX_MANIFEST_TABLE);
+        db.execSQL(CREATE_INDEX_MANIFEST_ROWS_TABLE);
+        db.execSQL(CREATE_INDEX_MANIFEST_ROWS_DOCID_INDEX);
         db.execSQL(INSERT_BUILD_VERSION);
         Log.i(TAG, "Bootstrapped database");
     }
@@ -164,9 +260,10 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         Log.i(TAG, "Using schema version: " + db.getVersion());
 
         if (!Build.VERSION.INCREMENTAL.equals(getBuildVersion(db))) {
-            Log.w(TAG, "Index needs to be rebuilt as build-version is not the same");
-            // We need to drop the tables and recreate them
-            reconstruct(db);
+            Log.w(TAG, "Index needs to be verified as build-version is not the same");
+            // Keep the Index data: the manifest entries recorded for the previous build are now
+            // stale, so the next update will only reindex the data whose fingerprint changed.
+            updateBuildVersion(db);
         } else {
             Log.i(TAG, "Index is fine");
         }
@@ -195,6 +292,17 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         bootstrapDB(db);
     }
 
+    private void updateBuildVersion(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL("DELETE FROM " + Tables.TABLE_META_INDEX);
+            db.execSQL(INSERT_BUILD_VERSION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     private String getBuildVersion(SQLiteDatabase db) {
         String version = null;
         Cursor cursor = null;
@@ -219,5 +327,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SAVED_QUERIES);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_INDEX_MANIFEST);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_INDEX_MANIFEST_ROWS);
     }
 }
@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.provider.SearchIndexableResource;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.ManifestColumns;
+import static com.android.settings.search.IndexDatabaseHelper.ManifestRowsColumns;
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+
+/**
+ * Keeps track of what has been indexed for a given locale.
+ *
+ * Each indexable class (and each group of raw data coming from a remote provider) is recorded
+ * with a fingerprint of everything that was used for producing its rows: the version of the
+ * package providing the data, the resource attributes, the non indexable keys and the dynamic
+ * raw data. An update only needs to reindex the entries whose fingerprint changed.
+ *
+ * The entries are read from the indexing threads while producing the rows, and only updated by the
+ * thread writing the rows into the database.
+ *
+ * Each entry also records the build it was verified with, so that after an OTA the entries are
+ * considered stale (but kept) until the next update verifies them again. The raw data given
+ * directly to the Index (like the names of the paired Bluetooth devices) is never verified by an
+ * update, so it is kept until the next OTA.
+ *
+ * The docids of the rows written for an entry are recorded with it, so that its rows can be
+ * deleted when it is reindexed or removed. A row is only deleted once no other entry owns it, as
+ * entries of the same class name or rows with the same title can produce the same docid.
+ */
+class IndexManifest {
+
+    private static final String LOG_TAG = "IndexManifest";
+
+    private static final String KEY_PREFIX_RESOURCE = "res:";
+    private static final String KEY_PREFIX_RAW = "raw:";
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static class Entry {
+        final String className;
+        final long fingerprint;
+
+        Entry(String className, long fingerprint) {
+            this.className = className;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private final Context mContext;
+    private final SQLiteDatabase mDatabase;
+    private final String mLocale;
+    private final String mBuild;
+
+    // Read from the indexing threads
+    private final Map<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+    private final Map<String, Long> mPackageTokens = new ConcurrentHashMap<String, Long>();
+
+    private int mUnchangedCount;
+    private int mChangedCount;
+
+    private SQLiteStatement mAddRowStatement;
+
+    public IndexManifest(Context context, SQLiteDatabase database, String locale) {
+        mContext = context;
+        mDatabase = database;
+        mLocale = locale;
+        mBuild = Build.VERSION.INCREMENTAL;
+        load();
+    }
+
+    private void load() {
+        final Cursor cursor = mDatabase.query(Tables.TABLE_INDEX_MANIFEST,
+                new String[] {
+                        ManifestColumns.KEY,
+                        ManifestColumns.CLASS_NAME,
+                        ManifestColumns.FINGERPRINT },
+                ManifestColumns.LOCALE + " = ?", new String[] { mLocale },
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                mEntries.put(cursor.getString(0), new Entry(cursor.getString(1),
+                        cursor.getLong(2)));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return true if some entries have not been verified with the current build for the locale.
+     */
+    public static boolean hasStaleEntries(SQLiteDatabase database, String locale) {
+        final Cursor cursor = database.query(Tables.TABLE_INDEX_MANIFEST,
+                new String[] { ManifestColumns.KEY },
+                ManifestColumns.LOCALE + " = ? AND " + ManifestColumns.BUILD + " != ?",
+                new String[] { locale, Build.VERSION.INCREMENTAL },
+                null, null, null, "1");
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Forget about all the entries of a class name (for all locales) as its data has been
+     * deleted from the Index.
+     */
+    public static int deleteForClassName(SQLiteDatabase database, String className) {
+        database.delete(Tables.TABLE_INDEX_MANIFEST_ROWS,
+                ManifestRowsColumns.LOCALE + " || '/' || " + ManifestRowsColumns.KEY +
+                " IN (SELECT " + ManifestColumns.LOCALE + " || '/' || " + ManifestColumns.KEY +
+                " FROM " + Tables.TABLE_INDEX_MANIFEST +
+                " WHERE " + ManifestColumns.CLASS_NAME + " = ?)",
+                new String[] { className });
+        return database.delete(Tables.TABLE_INDEX_MANIFEST,
+                ManifestColumns.CLASS_NAME + " = ?", new String[] { className });
+    }
+
+    public static String getResourceKey(String packageName, String className, int xmlResId) {
+        return KEY_PREFIX_RESOURCE + packageName + "/" +
+                (TextUtils.isEmpty(className) ? "" : className) + "#" + xmlResId;
+    }
+
+    public static String getRawKey(String packageName) {
+        return KEY_PREFIX_RAW + packageName;
+    }
+
+    /**
+     * @return the key of the raw data of a class name given directly to the Index, whose rows
+     *         are added to the ones already indexed for it.
+     */
+    public static String getForcedRawKey(String packageName, String className) {
+        return KEY_PREFIX_RAW + packageName + "/" +
+                (TextUtils.isEmpty(className) ? "" : className);
+    }
+
+    public String getPackageName(String packageName) {
+        return TextUtils.isEmpty(packageName) ? mContext.getPackageName() : packageName;
+    }
+
+    /**
+     * Return true if the entry has already been indexed with the same fingerprint. Can be called
+     * from any indexing thread.
+     */
+    public boolean matches(String key, long fingerprint) {
+        final Entry entry = mEntries.get(key);
+        return entry != null && entry.fingerprint == fingerprint;
+    }
+
+    /**
+     * Forget (in memory only) the entries of a class name whose data is being deleted, so that
+     * they are reindexed.
+     */
+    public void forgetClassName(String className) {
+        final Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            if (className.equals(it.next().className)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Mark an unchanged entry as verified for the current build.
+     */
+    public void markVerified(String key) {
+        final ContentValues values = new ContentValues();
+        values.put(ManifestColumns.BUILD, mBuild);
+        mDatabase.update(Tables.TABLE_INDEX_MANIFEST, values,
+                ManifestColumns.LOCALE + " = ? AND " + ManifestColumns.KEY + " = ?",
+                new String[] { mLocale, key });
+        mUnchangedCount++;
+    }
+
+    /**
+     * Mark all the entries of a package as verified for the current build without checking
+     * them, as its provider could not be queried. Its rows are kept until the next update.
+     */
+    public void markPackageVerified(String packageName) {
+        final String resourcePrefix = KEY_PREFIX_RESOURCE + packageName + "/";
+        final ContentValues values = new ContentValues();
+        values.put(ManifestColumns.BUILD, mBuild);
+        final int count = mDatabase.update(Tables.TABLE_INDEX_MANIFEST, values,
+                ManifestColumns.LOCALE + " = ? AND (" + ManifestColumns.KEY + " = ? OR " +
+                "substr(" + ManifestColumns.KEY + ", 1, " + resourcePrefix.length() + ") = ?)",
+                new String[] { mLocale, getRawKey(packageName), resourcePrefix });
+        mUnchangedCount += count;
+    }
+
+    /**
+     * Delete the rows previously indexed for an entry that is about to be reindexed, so that
+     * preferences which do not exist anymore are not kept into the Index.
+     *
+     * Rows also owned by another entry are kept.
+     */
+    public void clearRows(String key) {
+        if (!mEntries.containsKey(key)) {
+            return;
+        }
+        mDatabase.execSQL("DELETE FROM " + Tables.TABLE_PREFS_INDEX +
+                " WHERE " + IndexColumns.DOCID + " IN (SELECT r." + ManifestRowsColumns.DOCID +
+                " FROM " + Tables.TABLE_INDEX_MANIFEST_ROWS + " r" +
+                " WHERE r." + ManifestRowsColumns.LOCALE + " = ?" +
+                " AND r." + ManifestRowsColumns.KEY + " = ?" +
+                " AND NOT EXISTS (SELECT 1 FROM " + Tables.TABLE_INDEX_MANIFEST_ROWS + " o" +
+                " WHERE o." + ManifestRowsColumns.DOCID + " = r." + ManifestRowsColumns.DOCID +
+                " AND (o." + ManifestRowsColumns.LOCALE + " != ?" +
+                " OR o." + ManifestRowsColumns.KEY + " != ?)))",
+                new String[] { mLocale, key, mLocale, key });
+        mDatabase.delete(Tables.TABLE_INDEX_MANIFEST_ROWS,
+                ManifestRowsColumns.LOCALE + " = ? AND " + ManifestRowsColumns.KEY + " = ?",
+                new String[] { mLocale, key });
+    }
+
+    /**
+     * Record an entry that has just been (re)indexed with the given rows.
+     */
+    public void put(String key, String className, long fingerprint, List<IndexWriter.Row> rows) {
+        final ContentValues values = new ContentValues();
+        values.put(ManifestColumns.LOCALE, mLocale);
+        values.put(ManifestColumns.KEY, key);
+        values.put(ManifestColumns.CLASS_NAME, className);
+        values.put(ManifestColumns.FINGERPRINT, fingerprint);
+        values.put(ManifestColumns.BUILD, mBuild);
+        mDatabase.replaceOrThrow(Tables.TABLE_INDEX_MANIFEST, null, values);
+        mEntries.put(key, new Entry(className, fingerprint));
+        mChangedCount++;
+
+        if (mAddRowStatement == null) {
+            mAddRowStatement = mDatabase.compileStatement("INSERT OR IGNORE INTO " +
+                    Tables.TABLE_INDEX_MANIFEST_ROWS + " (" + ManifestRowsColumns.LOCALE + ", " +
+                    ManifestRowsColumns.KEY + ", " + ManifestRowsColumns.DOCID +
+                    ") VALUES (?, ?, ?)");
+        }
+        final SQLiteStatement statement = mAddRowStatement;
+        final int count = rows.size();
+        for (int n = 0; n < count; n++) {
+            statement.bindString(1, mLocale);
+            statement.bindString(2, key);
+            statement.bindLong(3, rows.get(n).docId);
+            statement.executeInsert();
+        }
+    }
+
+    /**
+     * Remove the entries (and their rows) that have not been verified for the current build.
+     * Should only be called after a full update, when every provider has been visited.
+     */
+    public void removeStaleEntries() {
+        final List<String> staleKeys = new ArrayList<String>();
+        final Cursor cursor = mDatabase.query(Tables.TABLE_INDEX_MANIFEST,
+                new String[] { ManifestColumns.KEY },
+                ManifestColumns.LOCALE + " = ? AND " + ManifestColumns.BUILD + " != ?",
+                new String[] { mLocale, mBuild },
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                staleKeys.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        if (staleKeys.isEmpty()) {
+            return;
+        }
+
+        // Forget the rows of the stale entries first, so that rows only shared between stale
+        // entries are deleted too, then delete the rows that no entry owns anymore
+        final int count = staleKeys.size();
+        for (int n = 0; n < count; n++) {
+            final String key = staleKeys.get(n);
+            final List<Long> docIds = getDocIds(key);
+            mDatabase.delete(Tables.TABLE_INDEX_MANIFEST_ROWS,
+                    ManifestRowsColumns.LOCALE + " = ? AND " + ManifestRowsColumns.KEY + " = ?",
+                    new String[] { mLocale, key });
+            final int docIdsCount = docIds.size();
+            for (int i = 0; i < docIdsCount; i++) {
+                deleteRowIfNotOwned(docIds.get(i));
+            }
+            mEntries.remove(key);
+        }
+        final int deleted = mDatabase.delete(Tables.TABLE_INDEX_MANIFEST,
+                ManifestColumns.LOCALE + " = ? AND " + ManifestColumns.BUILD + " != ?",
+                new String[] { mLocale, mBuild });
+        if (deleted > 0) {
+            Log.d(LOG_TAG, "Removed " + deleted + " stale entries for locale '" + mLocale + "'");
+        }
+    }
+
+    private List<Long> getDocIds(String key) {
+        final List<Long> docIds = new ArrayList<Long>();
+        final Cursor cursor = mDatabase.query(Tables.TABLE_INDEX_MANIFEST_ROWS,
+                new String[] { ManifestRowsColumns.DOCID },
+                ManifestRowsColumns.LOCALE + " = ? AND " + ManifestRowsColumns.KEY + " = ?",
+                new String[] { mLocale, key },
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                docIds.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return docIds;
+    }
+
+    private void deleteRowIfNotOwned(long docId) {
+        mDatabase.execSQL("DELETE FROM " + Tables.TABLE_PREFS_INDEX +
+                " WHERE " + IndexColumns.DOCID + " = ?" +
+                " AND NOT EXISTS (SELECT 1 FROM " + Tables.TABLE_INDEX_MANIFEST_ROWS +
+                " WHERE " + ManifestRowsColumns.DOCID + " = ?)",
+                new Object[] { docId, docId });
+    }
+
+    public void close() {
+        if (mAddRowStatement != null) {
+            mAddRowStatement.close();
+            mAddRowStatement = null;
+        }
+    }
+
+    public int getUnchangedCount() {
+        return mUnchangedCount;
+    }
+
+    public int getChangedCount() {
+        return mChangedCount;
+    }
+
+    /**
+     * Return a token identifying the installed version of a package. The token changes when the
+     * package (and thus its resources) is updated.
+     */
+    public long getPackageToken(String packageName) {
+        Long token = mPackageTokens.get(packageName);
+        if (token != null) {
+            return token;
+        }
+        final Fingerprint fingerprint = new Fingerprint();
+        fingerprint.add(packageName);
+        try {
+            final PackageInfo info =
+                    mContext.getPackageManager().getPackageInfo(packageName, 0);
+            fingerprint.add(info.versionCode);
+            fingerprint.add(info.versionName);
+            fingerprint.add(info.lastUpdateTime);
+            if (info.applicationInfo != null && info.applicationInfo.sourceDir != null) {
+                fingerprint.add(new File(info.applicationInfo.sourceDir).length());
+            }
+        } catch (PackageManager.NameNotFoundException e) {
+            // Use the build so that the data is verified again after an OTA
+            fingerprint.add(mBuild);
+        }
+        token = fingerprint.get();
+        mPackageTokens.put(packageName, token);
+        return token;
+    }
+
+    public Fingerprint newResourceFingerprint(SearchIndexableResource sir, String packageName,
+            List<String> nonIndexableKeys) {
+        final Fingerprint fingerprint = new Fingerprint();
+        fingerprint.add(getPackageToken(packageName));
+        fingerprint.add(sir.className);
+        fingerprint.add(sir.xmlResId);
+        fingerprint.add(sir.rank);
+        fingerprint.add(sir.iconResId);
+        fingerprint.add(sir.enabled);
+        fingerprint.add(sir.intentAction);
+        fingerprint.add(sir.intentTargetPackage);
+        fingerprint.add(sir.intentTargetClass);
+        fingerprint.add(nonIndexableKeys);
+        return fingerprint;
+    }
+
+    /**
+     * A 64 bits FNV-1a hash of the data used for indexing an entry.
+     */
+    public static class Fingerprint {
+        private long mHash = FNV_OFFSET_BASIS;
+
+        public Fingerprint add(long value) {
+            for (int n = 0; n < 8; n++) {
+                mHash ^= (value >>> (n * 8)) & 0xff;
+                mHash *= FNV_PRIME;
+            }
+            return this;
+        }
+
+        public Fingerprint add(int value) {
+            return add((long) value);
+        }
+
+        public Fingerprint add(boolean value) {
+            return add(value ? 1L : 0L);
+        }
+
+        public Fingerprint add(String value) {
+            if (value == null) {
+                return add(-1L);
+            }
+            final int length = value.length();
+            for (int n = 0; n < length; n++) {
+                mHash ^= value.charAt(n);
+                mHash *= FNV_PRIME;
+            }
+            return add(length);
+        }
+
+        public Fingerprint add(List<String> values) {
+            if (values == null) {
+                return add(-1L);
+            }
+            final int count = values.size();
+            for (int n = 0; n < count; n++) {
+                add(values.get(n));
+            }
+            return add(count);
+        }
+
+        public Fingerprint add(SearchIndexableRaw raw) {
+            add(raw.title);
+            add(raw.summaryOn);
+            add(raw.summaryOff);
+            add(raw.entries);
+            add(raw.keywords);
+            add(raw.screenTitle);
+            add(raw.className);
+            add(raw.iconResId);
+            add(raw.rank);
+            add(raw.intentAction);
+            add(raw.intentTargetPackage);
+            add(raw.intentTargetClass);
+            add(raw.enabled);
+            add(raw.key);
+            return add(raw.userId);
+        }
+
+        public long get() {
+            return mHash;
+        }
+    }
+}
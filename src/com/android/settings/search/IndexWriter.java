@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.List;
+
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+
+/**
+ * Writes rows into the Index using compiled statements.
+ *
+ * Must be used inside a transaction. Once {@link #BATCH_SIZE} rows have been inserted, the
+ * transaction can be yielded between two entries with {@link #yieldIfNeeded()} if another thread
+ * (typically a search query) is waiting for the database.
+ */
+class IndexWriter {
+
+    private static final int BATCH_SIZE = 128;
+
+    // SQLite does not allow more than 999 host parameters per statement
+    private static final int MAX_DELETE_ARGS = 256;
+
+    // If you change the order of columns here, you SHOULD change the bindings in insert()
+    private static final String[] INSERT_COLUMNS = new String[] {
+            IndexColumns.DOCID,                         // 1
+            IndexColumns.LOCALE,                        // 2
+            IndexColumns.DATA_RANK,                     // 3
+            IndexColumns.DATA_TITLE,                    // 4
+            IndexColumns.DATA_TITLE_NORMALIZED,         // 5
+            IndexColumns.DATA_SUMMARY_ON,               // 6
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,    // 7
+            IndexColumns.DATA_SUMMARY_OFF,              // 8
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,   // 9
+            IndexColumns.DATA_ENTRIES,                  // 10
+            IndexColumns.DATA_KEYWORDS,                 // 11
+            IndexColumns.CLASS_NAME,                    // 12
+            IndexColumns.SCREEN_TITLE,                  // 13
+            IndexColumns.INTENT_ACTION,                 // 14
+            IndexColumns.INTENT_TARGET_PACKAGE,         // 15
+            IndexColumns.INTENT_TARGET_CLASS,           // 16
+            IndexColumns.ICON,                          // 17
+            IndexColumns.ENABLED,                       // 18
+            IndexColumns.DATA_KEY_REF,                  // 19
+            IndexColumns.USER_ID                        // 20
+    };
+
+    /**
+     * One row of the Index.
+     */
+    public static class Row {
+        public int docId;
+        public String locale;
+        public int rank;
+        public String title;
+        public String normalizedTitle;
+        public String summaryOn;
+        public String normalizedSummaryOn;
+        public String summaryOff;
+        public String normalizedSummaryOff;
+        public String entries;
+        public String keywords;
+        public String className;
+        public String screenTitle;
+        public String intentAction;
+        public String intentTargetPackage;
+        public String intentTargetClass;
+        public int iconResId;
+        public boolean enabled;
+        public String key;
+        public int userId;
+    }
+
+    private final SQLiteDatabase mDatabase;
+    private SQLiteStatement mInsertStatement;
+
+    private int mPendingCount;
+    private int mInsertedCount;
+
+    public IndexWriter(SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    public void insert(Row row) {
+        if (mInsertStatement == null) {
+            mInsertStatement = mDatabase.compileStatement(buildInsertSQL());
+        }
+        final SQLiteStatement statement = mInsertStatement;
+        statement.bindLong(1, row.docId);
+        bindString(statement, 2, row.locale);
+        statement.bindLong(3, row.rank);
+        bindString(statement, 4, row.title);
+        bindString(statement, 5, row.normalizedTitle);
+        bindString(statement, 6, row.summaryOn);
+        bindString(statement, 7, row.normalizedSummaryOn);
+        bindString(statement, 8, row.summaryOff);
+        bindString(statement, 9, row.normalizedSummaryOff);
+        bindString(statement, 10, row.entries);
+        bindString(statement, 11, row.keywords);
+        bindString(statement, 12, row.className);
+        bindString(statement, 13, row.screenTitle);
+        bindString(statement, 14, row.intentAction);
+        bindString(statement, 15, row.intentTargetPackage);
+        bindString(statement, 16, row.intentTargetClass);
+        statement.bindLong(17, row.iconResId);
+        statement.bindLong(18, row.enabled ? 1 : 0);
+        bindString(statement, 19, row.key);
+        statement.bindLong(20, row.userId);
+        statement.executeInsert();
+
+        mInsertedCount++;
+        mPendingCount++;
+    }
+
+    /**
+     * Yield the transaction if enough rows have been inserted since the last yield and another
+     * thread is waiting for the database. Must only be called between two entries, once the
+     * rows of an entry have all been replaced, so that readers never see an entry half written.
+     */
+    public void yieldIfNeeded() {
+        if (mPendingCount >= BATCH_SIZE) {
+            mPendingCount = 0;
+            // Let the readers go through
+            mDatabase.yieldIfContendedSafely();
+        }
+    }
+
+    /**
+     * Delete all the rows of the given class names.
+     *
+     * @param locale the locale of the rows to delete or null for all locales.
+     * @return the number of deleted rows.
+     */
+    public int deleteClassNames(List<String> classNames, String locale) {
+        int deleted = 0;
+        final int count = classNames.size();
+        for (int start = 0; start < count; start += MAX_DELETE_ARGS) {
+            final int end = Math.min(count, start + MAX_DELETE_ARGS);
+            final StringBuilder sb = new StringBuilder(IndexColumns.CLASS_NAME);
+            sb.append(" IN (");
+            final String[] args = new String[end - start + (locale != null ? 1 : 0)];
+            for (int n = start; n < end; n++) {
+                sb.append((n == start) ? "?" : ",?");
+                args[n - start] = classNames.get(n);
+            }
+            sb.append(")");
+            if (locale != null) {
+                sb.append(" AND ");
+                sb.append(IndexColumns.LOCALE);
+                sb.append(" = ?");
+                args[args.length - 1] = locale;
+            }
+            deleted += mDatabase.delete(Tables.TABLE_PREFS_INDEX, sb.toString(), args);
+        }
+        return deleted;
+    }
+
+    public int getInsertedCount() {
+        return mInsertedCount;
+    }
+
+    public void close() {
+        if (mInsertStatement != null) {
+            mInsertStatement.close();
+            mInsertStatement = null;
+        }
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static String buildInsertSQL() {
+        final StringBuilder sb = new StringBuilder("INSERT OR REPLACE INTO ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" (");
+        for (int n = 0; n < INSERT_COLUMNS.length; n++) {
+            if (n > 0) {
+                sb.append(", ");
+            }
+            sb.append(INSERT_COLUMNS[n]);
+        }
+        sb.append(") VALUES (");
+        for (int n = 0; n < INSERT_COLUMNS.length; n++) {
+            sb.append((n > 0) ? ", ?" : "?");
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+}
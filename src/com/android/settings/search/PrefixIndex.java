@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+
+/**
+ * An in-memory copy of the enabled rows of the Index for one locale, with a sorted token table
+ * for answering search-as-you-type prefix queries without going to SQLite.
+ *
+ * The tokens are split the same way as the FTS "simple" tokenizer is doing it: any ASCII character
+ * that is not a letter or a digit is a separator and ASCII letters are folded to lower case.
+ *
+ * A row matches a query when all the terms of the query are found in its title, keywords,
+ * summaries or entries, the last term being used as a prefix. The rows are scored the same way
+ * as {@link Index#searchFromDatabase(String)} is scoring the FTS results.
+ */
+class PrefixIndex {
+
+    // The columns used for matching and scoring the rows
+    private static final String[] SCORED_COLUMNS = {
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_KEYWORDS,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES
+    };
+
+    private static final int SCORED_COLUMN_COUNT = SCORED_COLUMNS.length;
+
+    private static final float[] WEIGHTS = new float[SCORED_COLUMN_COUNT];
+
+    static {
+        for (int n = 0; n < SCORED_COLUMN_COUNT; n++) {
+            WEIGHTS[n] = Ranking.getColumnWeight(SCORED_COLUMNS[n]);
+        }
+    }
+
+    private final String mLocale;
+    private final String[] mColumnNames;
+
+    // One entry per row
+    private final String[][] mRows;
+    private final int[] mRanks;
+
+    // Number of tokens of each scored column of each row, and their average per column
+    private final int[] mLengths;
+    private final float[] mAverageLengths;
+
+    // Sorted tokens, with the row and the scored column they come from and their number
+    private final String[] mTokens;
+    private final int[] mTokenRows;
+    private final byte[] mTokenColumns;
+    private final int[] mTokenHits;
+
+    private static class Token {
+        final String token;
+        final int row;
+        final byte column;
+        final int hits;
+
+        Token(String token, int row, byte column, int hits) {
+            this.token = token;
+            this.row = row;
+            this.column = column;
+            this.hits = hits;
+        }
+    }
+
+    private PrefixIndex(String locale, String[] columnNames, String[][] rows, int[] ranks,
+            int[] lengths, List<Token> tokens) {
+        mLocale = locale;
+        mColumnNames = columnNames;
+        mRows = rows;
+        mRanks = ranks;
+        mLengths = lengths;
+
+        final int rowCount = rows.length;
+        mAverageLengths = new float[SCORED_COLUMN_COUNT];
+        for (int column = 0; column < SCORED_COLUMN_COUNT; column++) {
+            long total = 0;
+            for (int row = 0; row < rowCount; row++) {
+                total += lengths[row * SCORED_COLUMN_COUNT + column];
+            }
+            mAverageLengths[column] = (rowCount > 0) ? (float) total / rowCount : 0;
+        }
+
+        Collections.sort(tokens, new Comparator<Token>() {
+            @Override
+            public int compare(Token lhs, Token rhs) {
+                return lhs.token.compareTo(rhs.token);
+            }
+        });
+        final int count = tokens.size();
+        mTokens = new String[count];
+        mTokenRows = new int[count];
+        mTokenColumns = new byte[count];
+        mTokenHits = new int[count];
+        for (int n = 0; n < count; n++) {
+            final Token token = tokens.get(n);
+            mTokens[n] = token.token;
+            mTokenRows[n] = token.row;
+            mTokenColumns[n] = token.column;
+            mTokenHits[n] = token.hits;
+        }
+    }
+
+    /**
+     * Load the enabled rows of a locale.
+     *
+     * @param columnNames the columns of the cursors returned by {@link #search(String)}. Should
+     *                    be the ones used by {@link Index#search(String)}.
+     */
+    public static PrefixIndex build(SQLiteDatabase database, String locale,
+            String[] columnNames) {
+        final int columnCount = columnNames.length;
+
+        // Load the columns needed for the cursors, followed by the scored columns
+        final String[] projection = new String[columnCount + SCORED_COLUMN_COUNT];
+        System.arraycopy(columnNames, 0, projection, 0, columnCount);
+        System.arraycopy(SCORED_COLUMNS, 0, projection, columnCount, SCORED_COLUMN_COUNT);
+
+        final Cursor cursor = database.query(Tables.TABLE_PREFS_INDEX, projection,
+                IndexColumns.LOCALE + " = ? AND " + IndexColumns.ENABLED + " = 1",
+                new String[] { locale }, null, null, IndexColumns.DOCID);
+        try {
+            final int rowCount = cursor.getCount();
+            final String[][] rows = new String[rowCount][];
+            final int[] ranks = new int[rowCount];
+            final int[] lengths = new int[rowCount * SCORED_COLUMN_COUNT];
+            final List<Token> tokens = new ArrayList<Token>(rowCount * 8);
+            final Map<String, Integer> columnTokens = new HashMap<String, Integer>();
+
+            int row = 0;
+            while (cursor.moveToNext() && row < rowCount) {
+                final String[] values = new String[columnCount];
+                for (int n = 0; n < columnCount; n++) {
+                    values[n] = cursor.getString(n);
+                }
+                rows[row] = values;
+                ranks[row] = cursor.getInt(Index.COLUMN_INDEX_RANK);
+
+                for (int column = 0; column < SCORED_COLUMN_COUNT; column++) {
+                    final List<String> columnTokenList =
+                            tokenize(cursor.getString(columnCount + column));
+                    final int tokenCount = columnTokenList.size();
+                    lengths[row * SCORED_COLUMN_COUNT + column] = tokenCount;
+
+                    columnTokens.clear();
+                    for (int n = 0; n < tokenCount; n++) {
+                        final String token = columnTokenList.get(n);
+                        final Integer hits = columnTokens.get(token);
+                        columnTokens.put(token, (hits == null) ? 1 : hits + 1);
+                    }
+                    for (Map.Entry<String, Integer> entry : columnTokens.entrySet()) {
+                        tokens.add(new Token(entry.getKey(), row, (byte) column,
+                                entry.getValue()));
+                    }
+                }
+                row++;
+            }
+            return new PrefixIndex(locale, columnNames, rows, ranks, lengths, tokens);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public String getLocale() {
+        return mLocale;
+    }
+
+    public int getRowCount() {
+        return mRows.length;
+    }
+
+    /**
+     * @return a cursor with the columns given to {@link #build(SQLiteDatabase, String, String[])}
+     *         sorted by decreasing score.
+     */
+    public Cursor search(String query) {
+        final List<String> terms = tokenize(query);
+        final int termCount = terms.size();
+        if (termCount == 0) {
+            return new MatrixCursor(mColumnNames, 0);
+        }
+
+        final int rowCount = mRows.length;
+        final float[] scores = new float[rowCount];
+        final int[] matchedTerms = new int[rowCount];
+        for (int n = 0; n < termCount; n++) {
+            score(terms.get(n), n == termCount - 1, scores, matchedTerms);
+        }
+
+        final List<Integer> results = new ArrayList<Integer>();
+        for (int row = 0; row < rowCount; row++) {
+            if (matchedTerms[row] == termCount) {
+                scores[row] *= Ranking.getRankBoost(mRanks[row]);
+                results.add(row);
+            }
+        }
+
+        Collections.sort(results, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                final int result = Float.compare(scores[rhs], scores[lhs]);
+                if (result != 0) {
+                    return result;
+                }
+                final int lhsRank = mRanks[lhs];
+                final int rhsRank = mRanks[rhs];
+                if (lhsRank != rhsRank) {
+                    return (lhsRank < rhsRank) ? -1 : 1;
+                }
+                return lhs.compareTo(rhs);
+            }
+        });
+
+        final int count = results.size();
+        final MatrixCursor cursor = new MatrixCursor(mColumnNames, count);
+        for (int n = 0; n < count; n++) {
+            cursor.addRow(mRows[results.get(n)]);
+        }
+        return cursor;
+    }
+
+    /**
+     * Add the score of a term to the rows containing it, and count the term as matched for them.
+     */
+    private void score(String term, boolean prefix, float[] scores, int[] matchedTerms) {
+        final int start = lowerBound(term);
+        final int count = mTokens.length;
+        int end = start;
+        while (end < count &&
+                (prefix ? mTokens[end].startsWith(term) : mTokens[end].equals(term))) {
+            end++;
+        }
+        if (start == end) {
+            return;
+        }
+
+        // First pass: hits of each column of each row, and number of rows having hits per column
+        final int[] hits = new int[mRows.length * SCORED_COLUMN_COUNT];
+        final int[] rowsWithHits = new int[SCORED_COLUMN_COUNT];
+        for (int n = start; n < end; n++) {
+            final int index = mTokenRows[n] * SCORED_COLUMN_COUNT + mTokenColumns[n];
+            if (hits[index] == 0) {
+                rowsWithHits[mTokenColumns[n]]++;
+            }
+            hits[index] += mTokenHits[n];
+        }
+
+        // Second pass: score each (row, column) once
+        final boolean[] matched = new boolean[mRows.length];
+        for (int n = start; n < end; n++) {
+            final int row = mTokenRows[n];
+            final int column = mTokenColumns[n];
+            final int index = row * SCORED_COLUMN_COUNT + column;
+            if (hits[index] == 0) {
+                continue;
+            }
+            scores[row] += WEIGHTS[column] * Ranking.getTermScore(hits[index],
+                    rowsWithHits[column], mRows.length, mLengths[index],
+                    mAverageLengths[column]);
+            hits[index] = 0;
+            if (!matched[row]) {
+                matched[row] = true;
+                matchedTerms[row]++;
+            }
+        }
+    }
+
+    private int lowerBound(String term) {
+        int low = 0;
+        int high = mTokens.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mTokens[mid].compareTo(term) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    static List<String> tokenize(String value) {
+        final List<String> tokens = new ArrayList<String>();
+        if (value == null) {
+            return tokens;
+        }
+        final int length = value.length();
+        final StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < length; n++) {
+            char c = value.charAt(n);
+            if (c < 0x80) {
+                if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                    sb.append(c);
+                    continue;
+                }
+                if (c >= 'A' && c <= 'Z') {
+                    sb.append((char) (c - 'A' + 'a'));
+                    continue;
+                }
+                // Separator
+                if (sb.length() > 0) {
+                    tokens.add(sb.toString());
+                    sb.setLength(0);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        if (sb.length() > 0) {
+            tokens.add(sb.toString());
+        }
+        return tokens;
+    }
+}
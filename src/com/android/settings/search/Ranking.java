@@ -50,6 +50,8 @@ import com.android.settings.wifi.WifiSettings;
 
 import java.util.HashMap;
 
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+
 /**
  * Utility class for dealing with Search Ranking.
  */
@@ -83,6 +85,16 @@ public final class Ranking {
 
     public static int sCurrentBaseRank = BASE_RANK_DEFAULT;
 
+    // BM25 parameters used for scoring the search results
+    private static final float BM25_K1 = 1.2f;
+    private static final float BM25_B = 0.75f;
+    private static final float MIN_IDF = 0.01f;
+
+    // How much the rank of a result is lowering its score
+    private static final float RANK_WEIGHT = 0.25f;
+
+    private static HashMap<String, Float> sColumnWeightMap = new HashMap<String, Float>();
+
     private static HashMap<String, Integer> sRankMap = new HashMap<String, Integer>();
     private static HashMap<String, Integer> sBaseRankMap = new HashMap<String, Integer>();
 
@@ -161,6 +173,16 @@ public final class Ranking {
         sRankMap.put(DeviceInfoSettings.class.getName(), RANK_DEVICE_INFO);
 
         sBaseRankMap.put("com.android.settings", 0);
+
+        // Search results columns
+        sColumnWeightMap.put(IndexColumns.DATA_TITLE, 4.0f);
+        sColumnWeightMap.put(IndexColumns.DATA_TITLE_NORMALIZED, 4.0f);
+        sColumnWeightMap.put(IndexColumns.DATA_KEYWORDS, 3.0f);
+        sColumnWeightMap.put(IndexColumns.DATA_SUMMARY_ON, 1.0f);
+        sColumnWeightMap.put(IndexColumns.DATA_SUMMARY_ON_NORMALIZED, 1.0f);
+        sColumnWeightMap.put(IndexColumns.DATA_SUMMARY_OFF, 1.0f);
+        sColumnWeightMap.put(IndexColumns.DATA_SUMMARY_OFF_NORMALIZED, 1.0f);
+        sColumnWeightMap.put(IndexColumns.DATA_ENTRIES, 0.5f);
     }
 
     public static int getRankForClassName(String className) {
@@ -179,4 +201,42 @@ public final class Ranking {
             return sCurrentBaseRank;
         }
     }
+
+    /**
+     * @return the weight of a column of the Index when scoring the search results, 0 if the
+     *         column is not used for scoring.
+     */
+    public static float getColumnWeight(String columnName) {
+        Float weight = sColumnWeightMap.get(columnName);
+        return (weight != null) ? weight : 0.0f;
+    }
+
+    /**
+     * Return the BM25 score of a query term for one column of one row.
+     *
+     * @param hits number of times the term is found in the column of the row.
+     * @param rowsWithHits number of rows having the term in the column.
+     * @param rowCount total number of rows.
+     * @param length number of tokens of the column of the row.
+     * @param averageLength average number of tokens of the column.
+     */
+    public static float getTermScore(int hits, int rowsWithHits, int rowCount, int length,
+            float averageLength) {
+        if (hits <= 0) {
+            return 0.0f;
+        }
+        float idf = (float) Math.log((rowCount - rowsWithHits + 0.5f) / (rowsWithHits + 0.5f));
+        if (idf < MIN_IDF) {
+            idf = MIN_IDF;
+        }
+        final float norm = (averageLength > 0) ? length / averageLength : 1.0f;
+        return idf * (hits * (BM25_K1 + 1)) / (hits + BM25_K1 * (1 - BM25_B + BM25_B * norm));
+    }
+
+    /**
+     * @return the factor to apply to the score of a result with the given rank.
+     */
+    public static float getRankBoost(int rank) {
+        return 1.0f / (1.0f + RANK_WEIGHT * (float) Math.log(Math.max(1, rank)));
+    }
 }
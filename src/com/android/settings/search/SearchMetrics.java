@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.os.SystemClock;
+import android.text.format.DateFormat;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects timings for the Index: how long each indexable (and each XML resource) takes to be
+ * indexed, how long the remote providers take to answer, the last updates and the latency of the
+ * search and suggestions queries.
+ *
+ * All the methods are thread safe as the indexing is done from several threads.
+ */
+class SearchMetrics {
+
+    public static final int KIND_INDEXABLE = 0;
+    public static final int KIND_XML_RESOURCE = 1;
+    public static final int KIND_REMOTE_PROVIDER = 2;
+
+    private static final String[] KIND_TITLES = {
+            "Indexables (providers, resources and raw data)",
+            "XML resources",
+            "Remote providers"
+    };
+
+    public static final int QUERY_SEARCH = 0;
+    public static final int QUERY_SUGGESTIONS = 1;
+
+    private static final String[] QUERY_TITLES = {
+            "search()",
+            "getSuggestions()"
+    };
+
+    // Upper bounds (exclusive) of the latency histogram buckets, in millis
+    private static final int[] LATENCY_BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200, 500 };
+
+    private static final int MAX_UPDATES = 8;
+
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private static class IndexingStats {
+        final String label;
+        int count;
+        int unchangedCount;
+        long totalNanos;
+        long maxNanos;
+        long lastNanos;
+        int lastRows;
+
+        IndexingStats(String label) {
+            this.label = label;
+        }
+    }
+
+    private static class LatencyHistogram {
+        final int[] buckets = new int[LATENCY_BUCKETS.length + 1];
+        int count;
+        long totalNanos;
+        long maxNanos;
+
+        void add(long nanos) {
+            final long millis = nanos / NANOS_PER_MILLI;
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKETS.length && millis >= LATENCY_BUCKETS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket]++;
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+    }
+
+    private static class UpdateStats {
+        final String locale;
+        final long wallTime;
+        final long totalMillis;
+        final long writeMillis;
+        final int rows;
+        final int changed;
+        final int unchanged;
+
+        UpdateStats(String locale, long totalMillis, long writeMillis, int rows, int changed,
+                int unchanged) {
+            this.locale = locale;
+            this.wallTime = System.currentTimeMillis();
+            this.totalMillis = totalMillis;
+            this.writeMillis = writeMillis;
+            this.rows = rows;
+            this.changed = changed;
+            this.unchanged = unchanged;
+        }
+    }
+
+    private final List<Map<String, IndexingStats>> mIndexingStats =
+            new ArrayList<Map<String, IndexingStats>>();
+    private final LatencyHistogram[] mLatencies = new LatencyHistogram[QUERY_TITLES.length];
+    private final List<UpdateStats> mUpdates = new ArrayList<UpdateStats>();
+
+    public SearchMetrics() {
+        for (int n = 0; n < KIND_TITLES.length; n++) {
+            mIndexingStats.add(new HashMap<String, IndexingStats>());
+        }
+        for (int n = 0; n < mLatencies.length; n++) {
+            mLatencies[n] = new LatencyHistogram();
+        }
+    }
+
+    public static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Record the time spent indexing something.
+     *
+     * @param kind one of {@link #KIND_INDEXABLE}, {@link #KIND_XML_RESOURCE} or
+     *             {@link #KIND_REMOTE_PROVIDER}.
+     * @param startNanos the value returned by {@link #now()} when the indexing started.
+     * @param rows the number of rows produced.
+     * @param unchanged true if the rows did not need to be produced again.
+     */
+    public synchronized void recordIndexing(int kind, String label, long startNanos, int rows,
+            boolean unchanged) {
+        final long nanos = now() - startNanos;
+        final Map<String, IndexingStats> map = mIndexingStats.get(kind);
+        IndexingStats stats = map.get(label);
+        if (stats == null) {
+            stats = new IndexingStats(label);
+            map.put(label, stats);
+        }
+        stats.count++;
+        if (unchanged) {
+            stats.unchangedCount++;
+        }
+        stats.totalNanos += nanos;
+        stats.maxNanos = Math.max(stats.maxNanos, nanos);
+        stats.lastNanos = nanos;
+        stats.lastRows = rows;
+    }
+
+    /**
+     * Record the latency of a query.
+     *
+     * @param query one of {@link #QUERY_SEARCH} or {@link #QUERY_SUGGESTIONS}.
+     */
+    public synchronized void recordQuery(int query, long startNanos) {
+        mLatencies[query].add(now() - startNanos);
+    }
+
+    public synchronized void recordUpdate(String locale, long totalMillis, long writeMillis,
+            int rows, int changed, int unchanged) {
+        if (mUpdates.size() >= MAX_UPDATES) {
+            mUpdates.remove(0);
+        }
+        mUpdates.add(new UpdateStats(locale, totalMillis, writeMillis, rows, changed,
+                unchanged));
+    }
+
+    public synchronized void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix); pw.println("Last updates:");
+        for (int n = mUpdates.size() - 1; n >= 0; n--) {
+            final UpdateStats update = mUpdates.get(n);
+            pw.print(prefix); pw.print("  ");
+            pw.print(DateFormat.format("MM-dd HH:mm:ss", update.wallTime));
+            pw.print(" locale="); pw.print(update.locale);
+            pw.print(" total="); pw.print(update.totalMillis);
+            pw.print("ms write="); pw.print(update.writeMillis);
+            pw.print("ms rows="); pw.print(update.rows);
+            pw.print(" changed="); pw.print(update.changed);
+            pw.print(" unchanged="); pw.println(update.unchanged);
+        }
+
+        for (int n = 0; n < QUERY_TITLES.length; n++) {
+            dumpLatency(prefix, pw, QUERY_TITLES[n], mLatencies[n]);
+        }
+
+        for (int kind = 0; kind < KIND_TITLES.length; kind++) {
+            dumpIndexingStats(prefix, pw, KIND_TITLES[kind], mIndexingStats.get(kind));
+        }
+    }
+
+    private static void dumpLatency(String prefix, PrintWriter pw, String title,
+            LatencyHistogram histogram) {
+        pw.print(prefix); pw.print("Latency of "); pw.print(title);
+        pw.print(": count="); pw.print(histogram.count);
+        if (histogram.count > 0) {
+            pw.print(" avg="); pw.print(formatMillis(histogram.totalNanos / histogram.count));
+            pw.print(" max="); pw.print(formatMillis(histogram.maxNanos));
+        }
+        pw.println();
+        if (histogram.count == 0) {
+            return;
+        }
+        pw.print(prefix); pw.print(" ");
+        for (int n = 0; n < histogram.buckets.length; n++) {
+            pw.print(" ");
+            pw.print((n < LATENCY_BUCKETS.length) ?
+                    "<" + LATENCY_BUCKETS[n] : ">=" + LATENCY_BUCKETS[n - 1]);
+            pw.print("ms:");
+            pw.print(histogram.buckets[n]);
+        }
+        pw.println();
+    }
+
+    private static void dumpIndexingStats(String prefix, PrintWriter pw, String title,
+            Map<String, IndexingStats> map) {
+        final List<IndexingStats> list = new ArrayList<IndexingStats>(map.values());
+        // The most expensive first
+        Collections.sort(list, new Comparator<IndexingStats>() {
+            @Override
+            public int compare(IndexingStats lhs, IndexingStats rhs) {
+                if (lhs.totalNanos != rhs.totalNanos) {
+                    return (lhs.totalNanos > rhs.totalNanos) ? -1 : 1;
+                }
+                return lhs.label.compareTo(rhs.label);
+            }
+        });
+
+        pw.print(prefix); pw.print(title); pw.print(" ("); pw.print(list.size());
+        pw.println("):");
+        final int count = list.size();
+        for (int n = 0; n < count; n++) {
+            final IndexingStats stats = list.get(n);
+            pw.print(prefix); pw.print("  ");
+            pw.print(stats.label);
+            pw.print(": total="); pw.print(formatMillis(stats.totalNanos));
+            pw.print(" last="); pw.print(formatMillis(stats.lastNanos));
+            pw.print(" max="); pw.print(formatMillis(stats.maxNanos));
+            pw.print(" count="); pw.print(stats.count);
+            pw.print(" unchanged="); pw.print(stats.unchangedCount);
+            pw.print(" rows="); pw.println(stats.lastRows);
+        }
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.2fms", nanos / (double) NANOS_PER_MILLI);
+    }
+}
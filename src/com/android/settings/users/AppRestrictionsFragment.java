@@ -60,6 +60,7 @@ import android.widget.Switch;
 import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
 import com.android.settings.Utils;
+import com.android.settings.applications.AppLabelIconCache;
 import com.android.settings.drawable.CircleFramedDrawable;
 
 import java.util.ArrayList;
@@ -460,6 +461,7 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
             Set<String> excludePackages) {
         if (getActivity() == null) return;
         final PackageManager pm = mPackageManager;
+        final AppLabelIconCache cache = AppLabelIconCache.getInstance(getActivity());
         List<ResolveInfo> launchableApps = pm.queryIntentActivities(intent,
                 PackageManager.GET_DISABLED_COMPONENTS | PackageManager.GET_UNINSTALLED_PACKAGES);
         for (ResolveInfo app : launchableApps) {
@@ -484,7 +486,7 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
                     }
                     SelectableAppInfo info = new SelectableAppInfo();
                     info.packageName = app.activityInfo.packageName;
-                    info.appName = app.activityInfo.applicationInfo.loadLabel(pm);
+                    info.appName = cache.getLabel(app.activityInfo.applicationInfo);
                     info.icon = app.activityInfo.loadIcon(pm);
                     info.activityName = app.activityInfo.loadLabel(pm);
                     if (info.activityName == null) info.activityName = info.appName;
@@ -530,6 +532,7 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
         if (context == null) return;
         final PackageManager pm = mPackageManager;
         final IPackageManager ipm = mIPm;
+        final AppLabelIconCache cache = AppLabelIconCache.getInstance(context);
 
         final HashSet<String> excludePackages = new HashSet<String>();
         addSystemImes(excludePackages);
@@ -554,9 +557,9 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
                 // Downloaded app
                 SelectableAppInfo info = new SelectableAppInfo();
                 info.packageName = app.packageName;
-                info.appName = app.loadLabel(pm);
+                info.appName = cache.getLabel(app);
                 info.activityName = info.appName;
-                info.icon = app.loadIcon(pm);
+                info.icon = cache.getIcon(app);
                 mVisibleApps.add(info);
             } else {
                 try {
@@ -590,9 +593,9 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
                     // Downloaded app
                     SelectableAppInfo info = new SelectableAppInfo();
                     info.packageName = app.packageName;
-                    info.appName = app.loadLabel(pm);
+                    info.appName = cache.getLabel(app);
                     info.activityName = info.appName;
-                    info.icon = app.loadIcon(pm);
+                    info.icon = cache.getIcon(app);
                     mVisibleApps.add(info);
                 }
             }
@@ -55,6 +55,7 @@ public class ChartDataUsageView extends ChartView {
     private ChartNetworkSeriesView mDetailSeries;
 
     private NetworkStatsHistory mHistory;
+    private NetworkStatsHistory mDetailHistory;
 
     private ChartSweepView mSweepWarning;
     private ChartSweepView mSweepLimit;
@@ -142,8 +143,15 @@ public class ChartDataUsageView extends ChartView {
     }
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
+        if (isSameHistory(mHistory, stats)) {
+            // Nothing to redraw
+            return;
+        }
         mSeries.bindNetworkStats(stats);
         mHistory = stats;
+        if (stats != null && mDetailHistory != null) {
+            mDetailSeries.setEndTime(stats.getEnd());
+        }
         updateVertAxisBounds(null);
         updateEstimateVisible();
         updatePrimaryRange();
@@ -151,6 +159,10 @@ public class ChartDataUsageView extends ChartView {
     }
 
     public void bindDetailNetworkStats(NetworkStatsHistory stats) {
+        if (isSameHistory(mDetailHistory, stats)) {
+            return;
+        }
+        mDetailHistory = stats;
         mDetailSeries.bindNetworkStats(stats);
         mDetailSeries.setVisibility(stats != null ? View.VISIBLE : View.GONE);
         if (mHistory != null) {
@@ -162,6 +174,33 @@ public class ChartDataUsageView extends ChartView {
         requestLayout();
     }
 
+    /**
+     * Return whether both histories have the same buckets, so that binding
+     * one in place of the other would draw the same thing.
+     */
+    private static boolean isSameHistory(NetworkStatsHistory a, NetworkStatsHistory b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        if (a.size() != b.size() || a.getBucketDuration() != b.getBucketDuration()
+                || a.getStart() != b.getStart() || a.getEnd() != b.getEnd()
+                || a.getTotalBytes() != b.getTotalBytes()) {
+            return false;
+        }
+        NetworkStatsHistory.Entry entryA = null;
+        NetworkStatsHistory.Entry entryB = null;
+        final int size = a.size();
+        for (int i = 0; i < size; i++) {
+            entryA = a.getValues(i, entryA);
+            entryB = b.getValues(i, entryB);
+            if (entryA.bucketStart != entryB.bucketStart
+                    || entryA.rxBytes != entryB.rxBytes
+                    || entryA.txBytes != entryB.txBytes) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public void bindNetworkPolicy(NetworkPolicy policy) {
         if (policy == null) {
             mSweepLimit.setVisibility(View.INVISIBLE);
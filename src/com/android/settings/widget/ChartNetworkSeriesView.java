@@ -29,6 +29,7 @@ import android.graphics.Paint.Style;
 import android.graphics.Path;
 import android.graphics.RectF;
 import android.net.NetworkStatsHistory;
+import android.os.AsyncTask;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.View;
@@ -36,9 +37,17 @@ import android.view.View;
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
 
+import java.util.Arrays;
+
 /**
  * {@link NetworkStatsHistory} series to render inside a {@link ChartView},
  * using {@link ChartAxis} to map into screen coordinates.
+ *
+ * The series is first reduced to at most two points per pixel column (see
+ * {@link #downsample}), in the background for long histories. As this only
+ * depends on the stats and the horizontal bounds, changes of the vertical axis,
+ * for example while a sweep is dragged, only rebuild the {@link Path} from the
+ * reduced points.
  */
 public class ChartNetworkSeriesView extends View {
     private static final String TAG = "ChartNetworkSeriesView";
@@ -46,6 +55,9 @@ public class ChartNetworkSeriesView extends View {
 
     private static final boolean ESTIMATE_ENABLED = false;
 
+    // Histories with more buckets are downsampled in the background
+    private static final int MAX_SYNC_BUCKETS = 1000;
+
     private ChartAxis mHoriz;
     private ChartAxis mVert;
 
@@ -75,6 +87,54 @@ public class ChartNetworkSeriesView extends View {
     private long mMax;
     private long mMaxEstimate;
 
+    private Samples mSamples;
+    private DownsampleTask mDownsampleTask;
+
+    /**
+     * Cumulative usage of a series over time, with at most two points per
+     * pixel column: as the usage can only grow, the first and the last points
+     * of a column are its minimum and its maximum.
+     */
+    static class Samples {
+        final NetworkStatsHistory stats;
+        final long start;
+        final long end;
+        final int width;
+        final long endTime;
+
+        long[] times = new long[64];
+        long[] totals = new long[64];
+        int count;
+
+        /** Total usage, and end of the last bucket or of the extension. */
+        long totalData;
+        long lastTime;
+
+        Samples(NetworkStatsHistory stats, long start, long end, int width, long endTime) {
+            this.stats = stats;
+            this.start = start;
+            this.end = end;
+            this.width = width;
+            this.endTime = endTime;
+        }
+
+        boolean matches(NetworkStatsHistory stats, long start, long end, int width,
+                long endTime) {
+            return this.stats == stats && this.start == start && this.end == end
+                    && this.width == width && this.endTime == endTime;
+        }
+
+        void add(long time, long total) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                totals = Arrays.copyOf(totals, count * 2);
+            }
+            times[count] = time;
+            totals[count] = total;
+            count++;
+        }
+    }
+
     public ChartNetworkSeriesView(Context context) {
         this(context, null, 0);
     }
@@ -162,6 +222,136 @@ public class ChartNetworkSeriesView extends View {
         invalidate();
     }
 
+    /**
+     * Reduce the cumulative usage of the buckets of stats between start and
+     * end to at most two points per pixel column of a chart of the given
+     * width, extending it up to endTime. The points are the ones the outline
+     * of the series goes through, after its start at the origin: with a
+     * horizontal segment to the start of a bucket following a gap, and a
+     * segment to the end of each bucket.
+     */
+    static Samples downsample(NetworkStatsHistory stats, long start, long end, int width,
+            long endTime) {
+        final Samples samples = new Samples(stats, start, end, width, endTime);
+        final long duration = Math.max(1, end - start);
+
+        int column = Integer.MIN_VALUE;
+        boolean pending = false;
+        long pendingTime = 0;
+        long pendingTotal = 0;
+
+        long totalData = 0;
+        long lastTime = start;
+
+        NetworkStatsHistory.Entry entry = null;
+        final int first = stats.getIndexBefore(start);
+        final int last = stats.getIndexAfter(end);
+        // Each bucket adds up to two points: the end of a gap and its own end
+        for (int i = first; i <= last; i++) {
+            entry = stats.getValues(i, entry);
+
+            final long bucketStart = entry.bucketStart;
+            final long bucketEnd = bucketStart + entry.bucketDuration;
+
+            // skip until we find first stats on screen
+            if (bucketEnd < start) continue;
+
+            final long startTotal = totalData;
+            totalData += entry.rxBytes + entry.txBytes;
+
+            for (int point = (lastTime != bucketStart) ? 0 : 1; point < 2; point++) {
+                final long time = (point == 0) ? bucketStart : bucketEnd;
+                final long total = (point == 0) ? startTotal : totalData;
+                final int pointColumn = (int) Math.max(-1,
+                        Math.min(width, (time - start) * width / duration));
+                if (pointColumn != column) {
+                    if (pending) {
+                        samples.add(pendingTime, pendingTotal);
+                        pending = false;
+                    }
+                    samples.add(time, total);
+                    column = pointColumn;
+                } else {
+                    pending = true;
+                    pendingTime = time;
+                    pendingTotal = total;
+                }
+            }
+            lastTime = bucketEnd;
+        }
+        if (pending) {
+            samples.add(pendingTime, pendingTotal);
+        }
+
+        // when data falls short, extend to requested end time
+        if (lastTime < endTime) {
+            samples.add(endTime, totalData);
+            lastTime = endTime;
+        }
+
+        samples.totalData = totalData;
+        samples.lastTime = lastTime;
+        return samples;
+    }
+
+    /**
+     * @return the samples of the current stats and bounds, or, while they are
+     *         built in the background, the previous ones if any.
+     */
+    private Samples getSamples(int width) {
+        if (mSamples != null && mSamples.matches(mStats, mStart, mEnd, width, mEndTime)) {
+            return mSamples;
+        }
+        if (mStats.size() <= MAX_SYNC_BUCKETS) {
+            cancelDownsampling();
+            mSamples = downsample(mStats, mStart, mEnd, width, mEndTime);
+            return mSamples;
+        }
+        if (mDownsampleTask == null
+                || !mDownsampleTask.matches(mStats, mStart, mEnd, width, mEndTime)) {
+            cancelDownsampling();
+            mDownsampleTask = new DownsampleTask(mStats, mStart, mEnd, width, mEndTime);
+            mDownsampleTask.execute();
+        }
+        return mSamples != null && mSamples.stats == mStats ? mSamples : null;
+    }
+
+    private void cancelDownsampling() {
+        if (mDownsampleTask != null) {
+            mDownsampleTask.cancel(false);
+            mDownsampleTask = null;
+        }
+    }
+
+    private class DownsampleTask extends AsyncTask<Void, Void, Samples> {
+        private final Samples mKey;
+
+        DownsampleTask(NetworkStatsHistory stats, long start, long end, int width,
+                long endTime) {
+            // Only used to remember what is being built
+            mKey = new Samples(stats, start, end, width, endTime);
+        }
+
+        boolean matches(NetworkStatsHistory stats, long start, long end, int width,
+                long endTime) {
+            return mKey.matches(stats, start, end, width, endTime);
+        }
+
+        @Override
+        protected Samples doInBackground(Void... params) {
+            return downsample(mKey.stats, mKey.start, mKey.end, mKey.width, mKey.endTime);
+        }
+
+        @Override
+        protected void onPostExecute(Samples samples) {
+            if (mDownsampleTask == this) {
+                mDownsampleTask = null;
+                mSamples = samples;
+                invalidatePath();
+            }
+        }
+    }
+
     /**
      * Erase any existing {@link Path} and generate series outline based on
      * currently bound {@link NetworkStatsHistory} data.
@@ -183,10 +373,16 @@ public class ChartNetworkSeriesView extends View {
         final int width = getWidth();
         final int height = getHeight();
 
-        boolean started = false;
+        final Samples samples = getSamples(width);
+        if (samples == null) {
+            // Drawn once the samples are built
+            return;
+        }
+
         float lastX = 0;
         float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
+        long lastTime = samples.lastTime;
+        long totalData = samples.totalData;
 
         // move into starting position
         mPathStroke.moveTo(lastX, lastY);
@@ -195,53 +391,15 @@ public class ChartNetworkSeriesView extends View {
         // TODO: count fractional data from first bucket crossing start;
         // currently it only accepts first full bucket.
 
-        long totalData = 0;
-
-        NetworkStatsHistory.Entry entry = null;
-
-        final int start = mStats.getIndexBefore(mStart);
-        final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
-
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
-
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
-
-            // skip until we find first stats on screen
-            if (endX < 0) continue;
-
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
-
-            if (lastTime != startTime) {
-                // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
-            }
-
-            // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
-
-            lastX = endX;
-            lastY = endY;
-            lastTime = endTime;
-        }
-
-        // when data falls short, extend to requested end time
-        if (lastTime < mEndTime) {
-            lastX = mHoriz.convertToPoint(mEndTime);
-
+        for (int i = 0; i < samples.count; i++) {
+            lastX = mHoriz.convertToPoint(samples.times[i]);
+            lastY = mVert.convertToPoint(samples.totals[i]);
             mPathStroke.lineTo(lastX, lastY);
             mPathFill.lineTo(lastX, lastY);
         }
 
+        NetworkStatsHistory.Entry entry = null;
+
         if (LOGD) {
             final RectF bounds = new RectF();
             mPathFill.computeBounds(bounds, true);
@@ -295,6 +453,12 @@ public class ChartNetworkSeriesView extends View {
         mEndTime = endTime;
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        cancelDownsampling();
+    }
+
     public void setEstimateVisible(boolean estimateVisible) {
         mEstimateVisible = ESTIMATE_ENABLED ? estimateVisible : false;
         invalidate();
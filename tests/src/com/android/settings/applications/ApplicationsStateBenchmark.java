@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.Application;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+
+/**
+ * Measures how long the users of ApplicationsState (getEntry(), ensureIcon() and
+ * Session.rebuild()) are blocked while other threads are loading icons, either
+ * while holding the lock of the whole state like the loader used to do, or only
+ * the lock of the entry being loaded.
+ */
+public class ApplicationsStateBenchmark extends InstrumentationTestCase {
+
+    private static final String LOG_TAG = "ApplicationsStateBenchmark";
+
+    private static final int LOADER_THREADS = 2;
+    private static final int ITERATIONS = 50;
+    private static final long LOADING_TIMEOUT_MILLIS = 60 * 1000;
+
+    private ApplicationsState mState;
+    private ApplicationsState.Session mSession;
+
+    private volatile boolean mLoading;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Application app =
+                (Application) getInstrumentation().getTargetContext().getApplicationContext();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mState = ApplicationsState.getInstance(app);
+                mSession = mState.newSession(new EmptyCallbacks());
+                mSession.resume();
+            }
+        });
+
+        final long timeout = SystemClock.uptimeMillis() + LOADING_TIMEOUT_MILLIS;
+        while (!allEntriesLoaded() && SystemClock.uptimeMillis() < timeout) {
+            SystemClock.sleep(100);
+        }
+        assertTrue("Entries were not loaded", allEntriesLoaded());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mSession.release();
+            }
+        });
+        super.tearDown();
+    }
+
+    public void testContention() throws InterruptedException {
+        final ArrayList<AppEntry> entries;
+        synchronized (mState.mEntriesMap) {
+            entries = new ArrayList<AppEntry>(mState.mAppEntries);
+        }
+        assertTrue("No applications", entries.size() > 0);
+
+        final long[] global = measure(entries, true);
+        final long[] striped = measure(entries, false);
+        Log.i(LOG_TAG, "Average/max latency with icons loaded under the global lock: "
+                + (global[0] / ITERATIONS / 1000) + "/" + (global[1] / 1000) + " us"
+                + ", under the entry lock: "
+                + (striped[0] / ITERATIONS / 1000) + "/" + (striped[1] / 1000) + " us");
+    }
+
+    /**
+     * @return the total and the maximum latency in nanos.
+     */
+    private long[] measure(final ArrayList<AppEntry> entries, final boolean globalLock)
+            throws InterruptedException {
+        final Thread[] loaders = new Thread[LOADER_THREADS];
+        mLoading = true;
+        for (int n = 0; n < LOADER_THREADS; n++) {
+            final int first = n;
+            loaders[n] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int i = first;
+                    while (mLoading) {
+                        final AppEntry entry = entries.get(i % entries.size());
+                        if (globalLock) {
+                            synchronized (mState.mEntriesMap) {
+                                reloadIcon(entry);
+                            }
+                        } else {
+                            reloadIcon(entry);
+                        }
+                        i += LOADER_THREADS;
+                    }
+                }
+            });
+            loaders[n].start();
+        }
+
+        long total = 0;
+        long max = 0;
+        try {
+            for (int n = 0; n < ITERATIONS; n++) {
+                final AppEntry entry = entries.get((n * 7) % entries.size());
+                final long start = SystemClock.elapsedRealtimeNanos();
+                assertNotNull(mState.getEntry(entry.info.packageName));
+                mState.ensureIcon(entry);
+                mSession.rebuild(null, ApplicationsState.ALPHA_COMPARATOR);
+                final long latency = SystemClock.elapsedRealtimeNanos() - start;
+                total += latency;
+                max = Math.max(max, latency);
+            }
+        } finally {
+            mLoading = false;
+            for (Thread loader : loaders) {
+                loader.join();
+            }
+        }
+        return new long[] { total, max };
+    }
+
+    private void reloadIcon(AppEntry entry) {
+        synchronized (entry) {
+            entry.icon = null;
+            entry.ensureIconLocked(mState.mContext, mState.mPm);
+        }
+    }
+
+    private boolean allEntriesLoaded() {
+        synchronized (mState.mEntriesMap) {
+            return mState.mApplications.size() > 0
+                    && mState.mEntriesMap.size() >= mState.mApplications.size();
+        }
+    }
+
+    private static class EmptyCallbacks implements ApplicationsState.Callbacks {
+        @Override
+        public void onRunningStateChanged(boolean running) {
+        }
+
+        @Override
+        public void onPackageListChanged() {
+        }
+
+        @Override
+        public void onRebuildComplete(ArrayList<AppEntry> apps) {
+        }
+
+        @Override
+        public void onRebuildChanged(ApplicationsState.ChangeSet changes) {
+        }
+
+        @Override
+        public void onPackageIconChanged() {
+        }
+
+        @Override
+        public void onPackageSizeChanged(String packageName) {
+        }
+
+        @Override
+        public void onAllSizesComputed() {
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.NetworkStats;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Compares the aggregation by uid of synthetic {@link NetworkStats} of various sizes, done with
+ * a SparseArray lookup and a profile check per entry like DataUsageAdapter.bindStats() used to
+ * do, and with {@link UidUsageAggregator}.
+ */
+public class UidUsageAggregatorBenchmark extends AndroidTestCase {
+
+    private static final String LOG_TAG = "UidUsageAggregatorBenchmark";
+
+    private static final int[] SIZES = { 1000, 10000, 50000 };
+    private static final int UIDS = 300;
+    private static final int ITERATIONS = 10;
+
+    private static final String[] IFACES = { "wlan0", "rmnet0", "rmnet1" };
+
+    private final ArrayList<UserHandle> mProfiles = new ArrayList<UserHandle>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProfiles.add(new UserHandle(UserHandle.USER_OWNER));
+        mProfiles.add(new UserHandle(10));
+    }
+
+    public void testAggregation() {
+        for (int size : SIZES) {
+            final NetworkStats stats = buildStats(size);
+            final UidUsageAggregator aggregator = new UidUsageAggregator();
+            final long[] profiles = UidUsageAggregator.buildUserBits(mProfiles);
+
+            // Both must find the same totals
+            final SparseArray<Item> items = aggregatePerEntry(stats);
+            aggregator.aggregate(stats);
+            assertEquals(items.size(), aggregator.getCount());
+            for (int i = 0; i < aggregator.getCount(); i++) {
+                final int uid = aggregator.getUid(i);
+                assertEquals(items.get(uid).total, aggregator.getTotal(i));
+                assertEquals(mProfiles.contains(new UserHandle(UserHandle.getUserId(uid))),
+                        UidUsageAggregator.containsUser(profiles, UserHandle.getUserId(uid)));
+            }
+
+            long perEntryNanos = 0;
+            long aggregatorNanos = 0;
+            for (int n = 0; n < ITERATIONS; n++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                aggregatePerEntry(stats);
+                perEntryNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+                start = SystemClock.elapsedRealtimeNanos();
+                aggregator.aggregate(stats);
+                for (int i = 0; i < aggregator.getCount(); i++) {
+                    UidUsageAggregator.containsUser(profiles,
+                            UserHandle.getUserId(aggregator.getUid(i)));
+                }
+                aggregatorNanos += SystemClock.elapsedRealtimeNanos() - start;
+            }
+            Log.i(LOG_TAG, size + " entries: per entry "
+                    + (perEntryNanos / ITERATIONS / 1000) + " us, aggregator "
+                    + (aggregatorNanos / ITERATIONS / 1000) + " us");
+        }
+    }
+
+    private SparseArray<Item> aggregatePerEntry(NetworkStats stats) {
+        final SparseArray<Item> items = new SparseArray<Item>();
+        NetworkStats.Entry entry = null;
+        final int size = stats.size();
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+            final int uid = entry.uid;
+            mProfiles.contains(new UserHandle(UserHandle.getUserId(uid)));
+            Item item = items.get(uid);
+            if (item == null) {
+                item = new Item();
+                items.put(uid, item);
+            }
+            item.uids.put(uid, true);
+            item.total += entry.rxBytes + entry.txBytes;
+        }
+        return items;
+    }
+
+    private static NetworkStats buildStats(int size) {
+        final Random random = new Random(size);
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), size);
+        for (int i = 0; i < size; i++) {
+            // A few users, each with its applications
+            final int userId = (i % 7 == 0) ? 10 : (i % 11 == 0) ? 11 : UserHandle.USER_OWNER;
+            final int uid = UserHandle.getUid(userId, 10000 + random.nextInt(UIDS));
+            stats.addValues(IFACES[i % IFACES.length], uid, NetworkStats.SET_DEFAULT,
+                    random.nextInt(64), random.nextInt(1 << 20), 1, random.nextInt(1 << 20), 1,
+                    0);
+        }
+        return stats;
+    }
+
+    private static class Item {
+        final SparseBooleanArray uids = new SparseBooleanArray();
+        long total;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MergeCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+
+/**
+ * Compares the latency of the ranked search with the former two queries search
+ * (MergeCursor + EXCEPT), and checks that the FTS and prefix index searches find the same rows.
+ */
+public class IndexSearchBenchmark extends InstrumentationTestCase {
+
+    private static final String LOG_TAG = "IndexSearchBenchmark";
+
+    private static final int ITERATIONS = 20;
+    private static final long INDEXING_TIMEOUT_MILLIS = 60 * 1000;
+
+    private static final String[] QUERIES = { "w", "wi", "wifi", "bat", "display sl" };
+
+    // Multi-word queries, whose terms must each be found in one of the columns
+    private static final String[] MULTI_WORD_QUERIES = {
+            "display sl", "sleep disp", "wi fi", "screen lock", "data usage"
+    };
+
+    private static final String[] SELECT_COLUMNS = {
+            IndexColumns.DATA_RANK,
+            IndexColumns.DATA_TITLE,
+            IndexColumns.CLASS_NAME
+    };
+
+    private static final String[] MATCH_COLUMNS_PRIMARY = {
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_KEYWORDS
+    };
+
+    private static final String[] MATCH_COLUMNS_SECONDARY = {
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES
+    };
+
+    private Context mContext;
+    private Index mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mIndex = Index.getInstance(mContext);
+
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mIndex.update();
+            }
+        });
+        final long timeout = SystemClock.uptimeMillis() + INDEXING_TIMEOUT_MILLIS;
+        while (!mIndex.isAvailable() && SystemClock.uptimeMillis() < timeout) {
+            SystemClock.sleep(100);
+        }
+        assertTrue("Indexing did not complete", mIndex.isAvailable());
+    }
+
+    public void testSearchLatency() {
+        final SQLiteDatabase database =
+                IndexDatabaseHelper.getInstance(mContext).getReadableDatabase();
+
+        // Warm up the prefix index and the SQLite caches
+        for (String query : QUERIES) {
+            consume(mIndex.search(query));
+            consume(mIndex.searchFromDatabase(query));
+            consume(searchLegacy(database, query));
+        }
+
+        long legacy = 0;
+        long ranked = 0;
+        long prefix = 0;
+        for (int n = 0; n < ITERATIONS; n++) {
+            for (String query : QUERIES) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                consume(searchLegacy(database, query));
+                legacy += SystemClock.elapsedRealtimeNanos() - start;
+
+                start = SystemClock.elapsedRealtimeNanos();
+                final int rankedCount = consume(mIndex.searchFromDatabase(query));
+                ranked += SystemClock.elapsedRealtimeNanos() - start;
+
+                start = SystemClock.elapsedRealtimeNanos();
+                final int prefixCount = consume(mIndex.search(query));
+                prefix += SystemClock.elapsedRealtimeNanos() - start;
+
+                assertEquals("Result count for '" + query + "'", rankedCount, prefixCount);
+            }
+        }
+
+        final int count = ITERATIONS * QUERIES.length;
+        Log.i(LOG_TAG, "Average search latency: legacy " + (legacy / count / 1000) +
+                " us, ranked " + (ranked / count / 1000) +
+                " us, prefix index " + (prefix / count / 1000) + " us");
+    }
+
+    public void testSearchPathsMatchSameRows() {
+        for (String query : QUERIES) {
+            assertEquals("Rows for '" + query + "'",
+                    getRowKeys(mIndex.searchFromDatabase(query)),
+                    getRowKeys(mIndex.search(query)));
+        }
+        for (String query : MULTI_WORD_QUERIES) {
+            assertEquals("Rows for '" + query + "'",
+                    getRowKeys(mIndex.searchFromDatabase(query)),
+                    getRowKeys(mIndex.search(query)));
+        }
+    }
+
+    /**
+     * @return the sorted keys (class name, key and title) of the rows of the cursor, which
+     *         identify the index rows as the search cursors have no docid.
+     */
+    private static List<String> getRowKeys(Cursor cursor) {
+        try {
+            final int classNameColumn = cursor.getColumnIndexOrThrow(IndexColumns.CLASS_NAME);
+            final int keyColumn = cursor.getColumnIndexOrThrow(IndexColumns.DATA_KEY_REF);
+            final int titleColumn = cursor.getColumnIndexOrThrow(IndexColumns.DATA_TITLE);
+            final List<String> keys = new ArrayList<String>();
+            while (cursor.moveToNext()) {
+                keys.add(cursor.getString(classNameColumn) + "/" + cursor.getString(keyColumn)
+                        + "/" + cursor.getString(titleColumn));
+            }
+            Collections.sort(keys);
+            return keys;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int consume(Cursor cursor) {
+        try {
+            int count = 0;
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+                count++;
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Cursor searchLegacy(SQLiteDatabase database, String query) {
+        final String primarySql = buildSearchSQL(query, MATCH_COLUMNS_PRIMARY) + " ORDER BY " +
+                IndexColumns.DATA_RANK;
+        final String secondarySql = buildSearchSQL(query, MATCH_COLUMNS_SECONDARY) +
+                " EXCEPT " + primarySql;
+        return new MergeCursor(new Cursor[] {
+                database.rawQuery(primarySql, null),
+                database.rawQuery(secondarySql, null) });
+    }
+
+    private static String buildSearchSQL(String query, String[] columnNames) {
+        final StringBuilder match = new StringBuilder();
+        for (int n = 0; n < columnNames.length; n++) {
+            if (n > 0) {
+                match.append(" OR ");
+            }
+            match.append(columnNames[n]);
+            match.append(":");
+            match.append(query);
+            match.append("*");
+        }
+
+        final StringBuilder sb = new StringBuilder("SELECT ");
+        for (int n = 0; n < SELECT_COLUMNS.length; n++) {
+            sb.append((n > 0) ? ", " : "");
+            sb.append(SELECT_COLUMNS[n]);
+        }
+        sb.append(" FROM ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" WHERE ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" MATCH ");
+        DatabaseUtils.appendEscapedSQLString(sb, match.toString());
+        sb.append(" AND ");
+        sb.append(IndexColumns.LOCALE);
+        sb.append(" = ");
+        DatabaseUtils.appendEscapedSQLString(sb, Locale.getDefault().toString());
+        sb.append(" AND ");
+        sb.append(IndexColumns.ENABLED);
+        sb.append(" = 1");
+        return sb.toString();
+    }
+}
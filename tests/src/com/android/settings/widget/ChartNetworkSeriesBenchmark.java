@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.widget;
+
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.graphics.Path;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Measures the time spent building the outline of multi-year hourly histories
+ * for a frame: with a segment per bucket like ChartNetworkSeriesView used to,
+ * with the downsampling, and from already downsampled points, which is what
+ * a frame costs while a sweep is dragged.
+ */
+public class ChartNetworkSeriesBenchmark extends AndroidTestCase {
+
+    private static final String LOG_TAG = "ChartNetworkSeriesBenchmark";
+
+    private static final int[] YEARS = { 1, 3 };
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 600;
+    private static final int ITERATIONS = 20;
+
+    public void testFrameTime() {
+        for (int years : YEARS) {
+            final long end = System.currentTimeMillis();
+            final long start = end - years * 365 * DAY_IN_MILLIS;
+            final NetworkStatsHistory stats = buildHistory(start, end);
+
+            final ChartNetworkSeriesView.Samples samples =
+                    ChartNetworkSeriesView.downsample(stats, start, end, WIDTH, end);
+            assertTrue("Too many points: " + samples.count, samples.count <= 2 * (WIDTH + 3));
+            assertEquals(stats.getValues(Long.MIN_VALUE, Long.MAX_VALUE, null).rxBytes
+                    + stats.getValues(Long.MIN_VALUE, Long.MAX_VALUE, null).txBytes,
+                    samples.totalData);
+
+            final Path path = new Path();
+            long perBucketNanos = 0;
+            long downsampleNanos = 0;
+            long dragNanos = 0;
+            for (int n = 0; n < ITERATIONS; n++) {
+                final long max = samples.totalData + n;
+
+                long begin = SystemClock.elapsedRealtimeNanos();
+                buildPerBucket(path, stats, start, end, max);
+                perBucketNanos += SystemClock.elapsedRealtimeNanos() - begin;
+
+                begin = SystemClock.elapsedRealtimeNanos();
+                buildFromSamples(path, ChartNetworkSeriesView.downsample(stats, start, end,
+                        WIDTH, end), start, end, max);
+                downsampleNanos += SystemClock.elapsedRealtimeNanos() - begin;
+
+                begin = SystemClock.elapsedRealtimeNanos();
+                buildFromSamples(path, samples, start, end, max);
+                dragNanos += SystemClock.elapsedRealtimeNanos() - begin;
+            }
+            Log.i(LOG_TAG, years + " years, " + stats.size() + " buckets, "
+                    + samples.count + " points: per bucket "
+                    + (perBucketNanos / ITERATIONS / 1000) + " us, downsampled "
+                    + (downsampleNanos / ITERATIONS / 1000) + " us, drag "
+                    + (dragNanos / ITERATIONS / 1000) + " us");
+        }
+    }
+
+    private static NetworkStatsHistory buildHistory(long start, long end) {
+        final Random random = new Random(start);
+        final NetworkStatsHistory stats = new NetworkStatsHistory(HOUR_IN_MILLIS,
+                (int) ((end - start) / HOUR_IN_MILLIS) + 1);
+        for (long time = start; time < end; time += HOUR_IN_MILLIS) {
+            // Leave a few gaps
+            if (random.nextInt(50) == 0) continue;
+            final NetworkStats.Entry entry = new NetworkStats.Entry(
+                    random.nextInt(1 << 22), 1, random.nextInt(1 << 20), 1, 0);
+            stats.recordData(time, time + HOUR_IN_MILLIS, entry);
+        }
+        return stats;
+    }
+
+    private static float toX(long time, long start, long end) {
+        return (WIDTH * (float) (time - start)) / (end - start);
+    }
+
+    private static float toY(long total, long max) {
+        return HEIGHT - (HEIGHT * (float) total) / max;
+    }
+
+    private static void buildPerBucket(Path path, NetworkStatsHistory stats, long start,
+            long end, long max) {
+        path.reset();
+        path.moveTo(0, HEIGHT);
+        long totalData = 0;
+        long lastTime = start;
+        float lastY = HEIGHT;
+        NetworkStatsHistory.Entry entry = null;
+        final int first = stats.getIndexBefore(start);
+        final int last = stats.getIndexAfter(end);
+        for (int i = first; i <= last; i++) {
+            entry = stats.getValues(i, entry);
+            final long bucketEnd = entry.bucketStart + entry.bucketDuration;
+            if (bucketEnd < start) continue;
+            totalData += entry.rxBytes + entry.txBytes;
+            if (lastTime != entry.bucketStart) {
+                path.lineTo(toX(entry.bucketStart, start, end), lastY);
+            }
+            lastY = toY(totalData, max);
+            path.lineTo(toX(bucketEnd, start, end), lastY);
+            lastTime = bucketEnd;
+        }
+    }
+
+    private static void buildFromSamples(Path path, ChartNetworkSeriesView.Samples samples,
+            long start, long end, long max) {
+        path.reset();
+        path.moveTo(0, HEIGHT);
+        for (int i = 0; i < samples.count; i++) {
+            path.lineTo(toX(samples.times[i], start, end), toY(samples.totals[i], max));
+        }
+    }
+}